@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that {@link AttachmentImporter} copies a file in one pass that also gives its exact
+ * size and digest, from a stream or a file channel, and that a cancelled copy stops.
+ */
+public class AttachmentImporterTest extends TestCase {
+
+    // Spans a few buffers and ends in the middle of one
+    private static final int CONTENT_SIZE = AttachmentImporter.BUFFER_SIZE * 2 + 1234;
+
+    private byte[] mContent;
+    private File mSource;
+    private File mDest;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContent = new byte[CONTENT_SIZE];
+        new Random(42).nextBytes(mContent);
+        mSource = File.createTempFile("source", ".tmp");
+        FileOutputStream out = new FileOutputStream(mSource);
+        try {
+            out.write(mContent);
+        } finally {
+            out.close();
+        }
+        mDest = File.createTempFile("dest", ".tmp");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSource.delete();
+        mDest.delete();
+        super.tearDown();
+    }
+
+    /*
+     * A stream is copied with its size and digest.
+     */
+    public void testCopyStream() throws IOException {
+        MessageDigest digest = AttachmentStore.newDigest();
+        long size = AttachmentImporter.copy(
+                Channels.newChannel(new ByteArrayInputStream(mContent)), mDest, digest, -1,
+                new AttachmentImporter.Task(null, null));
+        assertCopied(size, digest);
+    }
+
+    /*
+     * A file channel is copied with its size and digest.
+     */
+    public void testCopyFileChannel() throws IOException {
+        MessageDigest digest = AttachmentStore.newDigest();
+        FileChannel in = new FileInputStream(mSource).getChannel();
+        try {
+            long size = AttachmentImporter.copy(in, mDest, digest, in.size(),
+                    new AttachmentImporter.Task(null, null));
+            assertCopied(size, digest);
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * A cancelled copy stops with an InterruptedIOException.
+     */
+    public void testCancel() throws IOException {
+        AttachmentImporter.Task task = new AttachmentImporter.Task(null, null);
+        task.cancel();
+        try {
+            AttachmentImporter.copy(Channels.newChannel(new ByteArrayInputStream(mContent)),
+                    mDest, AttachmentStore.newDigest(), -1, task);
+            fail("Expected the copy to stop");
+        } catch (InterruptedIOException e) {
+            assertTrue(mDest.length() < CONTENT_SIZE);
+        }
+    }
+
+    // Asserts that the destination holds the content, and the size and digest are of it.
+    private void assertCopied(long size, MessageDigest digest) throws IOException {
+        assertEquals(CONTENT_SIZE, size);
+        assertTrue(Arrays.equals(AttachmentStore.newDigest().digest(mContent), digest.digest()));
+        byte[] copied = new byte[(int) mDest.length()];
+        FileInputStream in = new FileInputStream(mDest);
+        try {
+            int offset = 0;
+            while (offset < copied.length) {
+                offset += in.read(copied, offset, copied.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        assertTrue(Arrays.equals(mContent, copied));
+    }
+}
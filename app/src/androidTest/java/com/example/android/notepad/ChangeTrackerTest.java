@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.text.SpannableStringBuilder;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that {@link ChangeTracker} reports a change only when the value differs from the saved
+ * one.
+ */
+public class ChangeTrackerTest extends TestCase {
+
+    /*
+     * A value is unchanged until it is marked dirty, and a dirty value equal to the saved one is
+     * unchanged.
+     */
+    public void testChanges() {
+        ChangeTracker tracker = new ChangeTracker();
+        tracker.setSaved("note");
+        assertFalse(tracker.hasChanged("different"));
+
+        tracker.markDirty();
+        assertTrue(tracker.hasChanged("notes"));
+        assertTrue(tracker.hasChanged("nope"));
+        assertFalse(tracker.hasChanged("note"));
+
+        tracker.setSaved(null);
+        tracker.markDirty();
+        assertFalse(tracker.hasChanged(""));
+        assertTrue(tracker.hasChanged("默认"));
+    }
+
+    /*
+     * Editing text marks it dirty, and editing it back leaves it unchanged.
+     */
+    public void testTextWatcher() {
+        SpannableStringBuilder text = new SpannableStringBuilder("第一行");
+        ChangeTracker tracker = new ChangeTracker();
+        tracker.setSaved(text);
+        text.setSpan(tracker, 0, text.length(), SpannableStringBuilder.SPAN_INCLUSIVE_INCLUSIVE);
+
+        text.append("\n第二行");
+        assertTrue(tracker.hasChanged(text));
+        text.delete(3, text.length());
+        assertFalse(tracker.hasChanged(text));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that {@link NoteEditJournal} records a change to a body as one small edit and that
+ * applying the edit gives back the changed body.
+ */
+public class NoteEditJournalTest extends TestCase {
+
+    /*
+     * An edit covers only the changed range, and applying it to the base gives the text.
+     */
+    public void testRoundTrip() {
+        assertNull(NoteEditJournal.createEdit("same", "same"));
+
+        ContentValues edit = assertRoundTrip("Hello world", "Hello, world");
+        assertEquals(5, (int) edit.getAsInteger(NotePad.NoteEdits.COLUMN_NAME_POSITION));
+        assertEquals(0, (int) edit.getAsInteger(NotePad.NoteEdits.COLUMN_NAME_REMOVED));
+        assertEquals(",", edit.getAsString(NotePad.NoteEdits.COLUMN_NAME_INSERTED));
+
+        assertRoundTrip("", "New note");
+        assertRoundTrip("Deleted", "");
+        assertRoundTrip("aaaa", "aa");
+        assertRoundTrip("abcabc", "abc");
+        assertRoundTrip("第一行\n第二行", "第一行\n修改的第二行");
+        // The surrogate pairs of emoji that share their high surrogate are not split
+        assertRoundTrip("smile 😀 end", "smile 😁 end");
+    }
+
+    /*
+     * An edit made to a body of another length, or whose range does not fit, is not applied.
+     */
+    public void testMismatchedEdits() {
+        assertNull(NoteEditJournal.applyEdit("four", 5, 0, 0, "x"));
+        assertNull(NoteEditJournal.applyEdit("four", 4, 3, 2, "x"));
+        assertNull(NoteEditJournal.applyEdit("four", 4, -1, 0, "x"));
+        assertEquals("fout", NoteEditJournal.applyEdit("four", 4, 3, 1, "t"));
+    }
+
+    /*
+     * An edit made to another text of the same length is not applied.
+     */
+    public void testMismatchedBase() {
+        ContentValues edit = NoteEditJournal.createEdit("four", "fout");
+        long hash = edit.getAsLong(NotePad.NoteEdits.COLUMN_NAME_BASE_HASH);
+        assertEquals(ChangeTracker.hash("four"), hash);
+        assertEquals("fout", NoteEditJournal.applyEdit("four", 4, hash, 3, 1, "t"));
+        assertNull(NoteEditJournal.applyEdit("five", 4, hash, 3, 1, "t"));
+    }
+
+    // Asserts that the edit from base to text gives back text, and returns it.
+    private static ContentValues assertRoundTrip(String base, String text) {
+        ContentValues edit = NoteEditJournal.createEdit(base, text);
+        assertNotNull(edit);
+        int position = edit.getAsInteger(NotePad.NoteEdits.COLUMN_NAME_POSITION);
+        String inserted = edit.getAsString(NotePad.NoteEdits.COLUMN_NAME_INSERTED);
+        assertFalse(position > 0 && Character.isHighSurrogate(base.charAt(position - 1)));
+        assertTrue(inserted.length() <= text.length());
+        assertEquals(text, NoteEditJournal.applyEdit(base,
+                edit.getAsInteger(NotePad.NoteEdits.COLUMN_NAME_BASE_LENGTH),
+                edit.getAsLong(NotePad.NoteEdits.COLUMN_NAME_BASE_HASH), position,
+                edit.getAsInteger(NotePad.NoteEdits.COLUMN_NAME_REMOVED), inserted));
+        return edit;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ActivityInstrumentationTestCase2;
+
+/**
+ * Tests that {@link NoteEditor} leaves a note it did not change untouched when it is closed.
+ */
+public class NoteEditorTest extends ActivityInstrumentationTestCase2<NoteEditor> {
+
+    // A modification date no save would write
+    private static final long MODIFIED = 1000L;
+
+    private ContentResolver mResolver;
+    private Uri mNoteUri;
+
+    public NoteEditorTest() {
+        super(NoteEditor.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getInstrumentation().getTargetContext().getContentResolver();
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "No category");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "A note without a category");
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, MODIFIED);
+        values.putNull(NotePad.Notes.COLUMN_NAME_CATEGORY);
+        mNoteUri = mResolver.insert(NotePad.Notes.CONTENT_URI, values);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mResolver.delete(mNoteUri, null, null);
+        super.tearDown();
+    }
+
+    /*
+     * A note without a category is shown in the first category of the spinner. Opening and
+     * closing it writes neither a category nor a modification date.
+     */
+    public void testOpenNoteWithoutCategory() {
+        setActivityIntent(new Intent(Intent.ACTION_EDIT, mNoteUri));
+        NoteEditor editor = getActivity();
+        // Lets the spinner lay out and report its selection
+        getInstrumentation().waitForIdleSync();
+
+        editor.finish();
+        getInstrumentation().waitForIdleSync();
+
+        Cursor cursor = mResolver.query(mNoteUri, new String[] {
+                NotePad.Notes.COLUMN_NAME_CATEGORY,
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertTrue(cursor.isNull(0));
+            assertEquals(MODIFIED, cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+    }
+}
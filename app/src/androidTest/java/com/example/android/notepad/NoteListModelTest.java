@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that {@link NoteListModel} keeps the loaded notes in the list order while single notes
+ * are inserted, updated and deleted.
+ */
+public class NoteListModelTest extends TestCase {
+
+    private NoteListModel mModel;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mModel = new NoteListModel();
+        // The first page: notes 3, 2 and 1, newest first
+        mModel.setRows(rows(new long[][] { { 3, 300 }, { 2, 200 }, { 1, 100 } }));
+    }
+
+    /*
+     * Pages are appended, and the page token names the last loaded note.
+     */
+    public void testPages() {
+        assertEquals(3, mModel.size());
+        assertEquals("100,1", mModel.getPageToken());
+        mModel.addRows(rows(new long[][] { { 5, 50 } }));
+        assertIds(3, 2, 1, 5);
+        assertEquals("50,5", mModel.getPageToken());
+
+        mModel.setRows(rows(new long[0][]));
+        assertEquals(0, mModel.size());
+        assertNull(mModel.getPageToken());
+    }
+
+    /*
+     * An updated note moves to its new place, and a new note is put at its place.
+     */
+    public void testUpdate() {
+        assertTrue(mModel.update(row(1, 400), true));
+        assertIds(1, 3, 2);
+        assertTrue(mModel.update(row(4, 250), true));
+        assertIds(1, 3, 4, 2);
+
+        // Notes modified at the same time are ordered by _id, highest first
+        assertTrue(mModel.update(row(6, 250), true));
+        assertIds(1, 3, 6, 4, 2);
+    }
+
+    /*
+     * A note that sorts after the loaded rows is left to a later page, unless all rows are
+     * loaded.
+     */
+    public void testUpdateBeyondLoadedRows() {
+        assertFalse(mModel.update(row(7, 10), false));
+        assertIds(3, 2, 1);
+        assertTrue(mModel.update(row(3, 10), false));
+        assertIds(2, 1);
+        assertTrue(mModel.update(row(7, 10), true));
+        assertIds(2, 1, 7);
+    }
+
+    /*
+     * Deleted notes are removed; removing a note that is not loaded changes nothing.
+     */
+    public void testRemove() {
+        assertTrue(mModel.remove(2));
+        assertIds(3, 1);
+        assertFalse(mModel.remove(2));
+        assertIds(3, 1);
+    }
+
+    // Asserts the order of the notes in a snapshot of the model.
+    private void assertIds(long... ids) {
+        Cursor cursor = mModel.toCursor();
+        try {
+            assertEquals(ids.length, cursor.getCount());
+            for (long id : ids) {
+                assertTrue(cursor.moveToNext());
+                assertEquals(id, cursor.getLong(0));
+                assertEquals("Note" + id, cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Returns a cursor over notes given as { _id, modified } pairs.
+    private static Cursor rows(long[][] notes) {
+        MatrixCursor cursor = new MatrixCursor(NotesList.PROJECTION);
+        for (long[] note : notes) {
+            cursor.addRow(new Object[] { note[0], "Note" + note[0], note[1], null, null, 0 });
+        }
+        return cursor;
+    }
+
+    // Returns a cursor positioned on one note.
+    private static Cursor row(long id, long modified) {
+        Cursor cursor = rows(new long[][] { { id, modified } });
+        cursor.moveToFirst();
+        return cursor;
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Measures the throughput and latency of the Note Pad provider. Each test logs rows per second
+ * or microseconds per row under the tag "NotePadProviderBenchmark" and checks the results, so a
+ * regression shows up in the log of a test run. The numbers depend on the device, so they are
+ * not asserted.
+ */
+public class NotePadProviderBenchmark extends ProviderTestCase2<NotePadProvider> {
+
+    private static final String TAG = "NotePadProviderBenchmark";
+
+    // The number of notes each test writes
+    private static final int NOTE_COUNT = 1000;
+
+    // Contains the mock content resolver for the provider under test
+    private MockContentResolver mMockResolver;
+
+    public NotePadProviderBenchmark() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+    }
+
+    /*
+     * Inserts notes one by one, each in its own transaction. This is the baseline.
+     */
+    public void testInsertThroughput() {
+        ContentValues[] notes = createNotes(NOTE_COUNT);
+        long start = SystemClock.elapsedRealtime();
+        for (ContentValues note : notes) {
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, note);
+        }
+        report("insert", NOTE_COUNT, SystemClock.elapsedRealtime() - start);
+        assertEquals(NOTE_COUNT, getCount(NotePad.Notes.CONTENT_URI));
+    }
+
+    /*
+     * Inserts notes with one bulkInsert call.
+     */
+    public void testBulkInsertThroughput() {
+        ContentValues[] notes = createNotes(NOTE_COUNT);
+        long start = SystemClock.elapsedRealtime();
+        assertEquals(NOTE_COUNT, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes));
+        report("bulkInsert", NOTE_COUNT, SystemClock.elapsedRealtime() - start);
+        assertEquals(NOTE_COUNT, getCount(NotePad.Notes.CONTENT_URI));
+    }
+
+    /*
+     * Inserts notes with one attachment each with one applyBatch call, using back references
+     * for the note ids.
+     */
+    public void testApplyBatchThroughput() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (ContentValues note : createNotes(NOTE_COUNT)) {
+            int noteIndex = operations.size();
+            operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                    .withValues(note)
+                    .build());
+            operations.add(ContentProviderOperation.newInsert(NotePad.Attachments.CONTENT_URI)
+                    .withValueBackReference(NotePad.Attachments.COLUMN_NAME_NOTE_ID, noteIndex)
+                    .withValue(NotePad.Attachments.COLUMN_NAME_FILE_TYPE, "image")
+                    .withValue(NotePad.Attachments.COLUMN_NAME_FILE_PATH, "attachment.jpg")
+                    .withValue(NotePad.Attachments.COLUMN_NAME_FILE_NAME, "attachment.jpg")
+                    .withValue(NotePad.Attachments.COLUMN_NAME_FILE_SIZE, 1024)
+                    .build());
+        }
+        long start = SystemClock.elapsedRealtime();
+        mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+        report("applyBatch", operations.size(), SystemClock.elapsedRealtime() - start);
+        assertEquals(NOTE_COUNT, getCount(NotePad.Notes.CONTENT_URI));
+        assertEquals(NOTE_COUNT, getCount(NotePad.Attachments.CONTENT_URI));
+    }
+
+    /*
+     * Updates, queries and deletes single notes by ID through the provider, first through the
+     * notes URI with the ID written into the selection, which compiles new SQL for every note,
+     * then through note ID URIs, which bind the ID to cached statements. Both go through the
+     * same provider path with the same values; only the modification date changes, so no index
+     * entries are rewritten.
+     */
+    public void testSingleRowLatency() {
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, createNotes(NOTE_COUNT));
+        long[] ids = getIds();
+        ContentValues values = new ContentValues();
+
+        long start = SystemClock.elapsedRealtime();
+        for (long id : ids) {
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, id);
+            assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                    NotePad.Notes._ID + " = " + id, null));
+        }
+        reportLatency("update, spliced id", ids.length, SystemClock.elapsedRealtime() - start);
+
+        start = SystemClock.elapsedRealtime();
+        for (long id : ids) {
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, id);
+            assertEquals(1, mMockResolver.update(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id),
+                    values, null, null));
+        }
+        reportLatency("update, note URI", ids.length, SystemClock.elapsedRealtime() - start);
+
+        start = SystemClock.elapsedRealtime();
+        for (long id : ids) {
+            mMockResolver.query(NotePad.Notes.CONTENT_URI, null, NotePad.Notes._ID + " = " + id,
+                    null, null).close();
+        }
+        reportLatency("query, spliced id", ids.length, SystemClock.elapsedRealtime() - start);
+
+        start = SystemClock.elapsedRealtime();
+        for (long id : ids) {
+            mMockResolver.query(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id),
+                    null, null, null, null).close();
+        }
+        reportLatency("query, note URI", ids.length, SystemClock.elapsedRealtime() - start);
+
+        // Each way deletes half of the notes
+        int half = ids.length / 2;
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < half; i++) {
+            assertEquals(1, mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                    NotePad.Notes._ID + " = " + ids[i], null));
+        }
+        reportLatency("delete, spliced id", half, SystemClock.elapsedRealtime() - start);
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = half; i < ids.length; i++) {
+            assertEquals(1, mMockResolver.delete(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, ids[i]),
+                    null, null));
+        }
+        reportLatency("delete, note URI", ids.length - half,
+                SystemClock.elapsedRealtime() - start);
+        assertEquals(0, getCount(NotePad.Notes.CONTENT_URI));
+    }
+
+    /*
+     * Stores a corpus of long log-like notes among short notes, and compares the bytes stored
+     * with the UTF-8 size of the text. Then reads the long notes through note ID URIs, first
+     * compressed, then after storing them as text again.
+     */
+    public void testBodyCompression() {
+        final int longNotes = 50;
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, createNotes(NOTE_COUNT));
+        long[] ids = new long[longNotes];
+        String[] bodies = new String[longNotes];
+        for (int i = 0; i < longNotes; i++) {
+            bodies[i] = createLog(i, 64 * 1024);
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Log " + i);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, bodies[i]);
+            ids[i] = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI, values));
+        }
+        SQLiteDatabase db = getProvider().getOpenHelperForTest().getWritableDatabase();
+        // The bodies stored as text, plus the text of the compressed ones
+        long rawBytes = DatabaseUtils.longForQuery(db, "SELECT SUM(LENGTH(CAST("
+                + NotePad.Notes.COLUMN_NAME_NOTE + " AS BLOB))) FROM "
+                + NotePadProvider.BODY_TABLE_NAME + " WHERE "
+                + NoteBodyCodec.COLUMN_NAME_FORMAT + " = " + NoteBodyCodec.FORMAT_TEXT, null);
+        for (int i = 0; i < longNotes; i++) {
+            if (DatabaseUtils.longForQuery(db, "SELECT " + NoteBodyCodec.COLUMN_NAME_FORMAT
+                    + " FROM " + NotePadProvider.BODY_TABLE_NAME + " WHERE "
+                    + NotePadProvider.BODY_COLUMN_NOTE_ID + " = " + ids[i], null)
+                    == NoteBodyCodec.FORMAT_DEFLATE) {
+                rawBytes += bodies[i].getBytes().length;
+            }
+        }
+        long storedBytes = DatabaseUtils.longForQuery(db, "SELECT SUM(LENGTH(CAST("
+                + NotePad.Notes.COLUMN_NAME_NOTE + " AS BLOB))) FROM "
+                + NotePadProvider.BODY_TABLE_NAME, null);
+        Log.i(TAG, "body storage: " + rawBytes + " bytes of text stored in " + storedBytes
+                + " bytes, " + (storedBytes * 100 / Math.max(1, rawBytes)) + "%");
+        assertTrue(storedBytes < rawBytes);
+
+        long start = SystemClock.elapsedRealtime();
+        readBodies(ids, bodies);
+        reportLatency("read long note, compressed", longNotes,
+                SystemClock.elapsedRealtime() - start);
+
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < longNotes; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, bodies[i]);
+            values.put(NoteBodyCodec.COLUMN_NAME_FORMAT, NoteBodyCodec.FORMAT_TEXT);
+            db.update(NotePadProvider.BODY_TABLE_NAME, values,
+                    NotePadProvider.BODY_COLUMN_NOTE_ID + " = " + ids[i], null);
+        }
+        start = SystemClock.elapsedRealtime();
+        readBodies(ids, bodies);
+        reportLatency("read long note, text", longNotes, SystemClock.elapsedRealtime() - start);
+    }
+
+    /*
+     * Reads small attachments through their data URIs, first kept in the database, then the
+     * same content stored as files, at the smallest and largest sizes that are kept in the
+     * database.
+     */
+    public void testAttachmentReadLatency() throws Exception {
+        final int attachments = 200;
+        long noteId = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                createNotes(1)[0]));
+        Context context = getProvider().getContext();
+        Random random = new Random(0);
+        ArrayList<File> files = new ArrayList<File>();
+        try {
+            for (int size : new int[] { 1024, NotePadProvider.INLINE_DATA_MAX_SIZE }) {
+                Uri[] inline = new Uri[attachments];
+                Uri[] stored = new Uri[attachments];
+                for (int i = 0; i < attachments; i++) {
+                    byte[] content = new byte[size];
+                    random.nextBytes(content);
+                    ContentValues values = new ContentValues();
+                    values.put(NotePad.Attachments.COLUMN_NAME_NOTE_ID, noteId);
+                    values.put(NotePad.Attachments.COLUMN_NAME_FILE_TYPE, "audio/amr");
+                    values.put(NotePad.Attachments.COLUMN_NAME_FILE_NAME, "voice.amr");
+                    values.put(NotePad.Attachments.COLUMN_NAME_FILE_SIZE, size);
+                    values.put(NotePadProvider.ATTACHMENT_VALUE_INLINE_DATA, content);
+                    inline[i] = NotePad.Attachments.getDataUri(ContentUris.parseId(
+                            mMockResolver.insert(NotePad.Attachments.CONTENT_URI, values)));
+
+                    values.remove(NotePadProvider.ATTACHMENT_VALUE_INLINE_DATA);
+                    String path = storeFile(context, content);
+                    files.add(context.getFileStreamPath(path));
+                    values.put(NotePad.Attachments.COLUMN_NAME_FILE_PATH, path);
+                    stored[i] = NotePad.Attachments.getDataUri(ContentUris.parseId(
+                            mMockResolver.insert(NotePad.Attachments.CONTENT_URI, values)));
+                }
+
+                long start = SystemClock.elapsedRealtime();
+                readAttachments(inline, size);
+                reportLatency("read " + size + " byte attachment, database", attachments,
+                        SystemClock.elapsedRealtime() - start);
+
+                start = SystemClock.elapsedRealtime();
+                readAttachments(stored, size);
+                reportLatency("read " + size + " byte attachment, file", attachments,
+                        SystemClock.elapsedRealtime() - start);
+            }
+        } finally {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    // Stores content as an attachment file the way the importer does, and returns its name.
+    private static String storeFile(Context context, byte[] content) throws IOException {
+        File temp = AttachmentStore.createTempFile(context);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return AttachmentStore.commit(context, temp,
+                AttachmentStore.toHex(AttachmentStore.newDigest().digest(content)));
+    }
+
+    // Reads attachments to the end through their data URIs and checks their sizes.
+    private void readAttachments(Uri[] dataUris, int size) throws IOException {
+        byte[] buffer = new byte[8192];
+        for (Uri dataUri : dataUris) {
+            InputStream in = mMockResolver.openInputStream(dataUri);
+            try {
+                int length = 0;
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    length += count;
+                }
+                assertEquals(size, length);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    // Reads the bodies of notes through note ID URIs and checks them.
+    private void readBodies(long[] ids, String[] bodies) {
+        String[] projection = { NotePad.Notes.COLUMN_NAME_NOTE };
+        for (int i = 0; i < ids.length; i++) {
+            Cursor cursor = mMockResolver.query(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, ids[i]),
+                    projection, null, null, null);
+            try {
+                assertTrue(cursor.moveToFirst());
+                assertEquals(bodies[i].length(), cursor.getString(0).length());
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    // Creates a log of about length characters, like one pasted from a sync or crash report.
+    private static String createLog(int seed, int length) {
+        String[] levels = { "DEBUG", "INFO", "WARN", "ERROR" };
+        String[] messages = { "Sync started for account", "Fetched changes from server",
+                "Retrying request after timeout", "Conflict resolved in favour of local copy",
+                "Sync finished" };
+        Random random = new Random(seed);
+        StringBuilder builder = new StringBuilder(length + 128);
+        long time = 1700000000000L + seed * 86400000L;
+        while (builder.length() < length) {
+            time += random.nextInt(5000);
+            builder.append(time).append(' ')
+                    .append(levels[random.nextInt(levels.length)]).append(" SyncAdapter: ")
+                    .append(messages[random.nextInt(messages.length)]).append(" id=")
+                    .append(random.nextInt(100000)).append('\n');
+        }
+        return builder.toString();
+    }
+
+    // Creates the values of count notes with distinct titles and bodies.
+    private static ContentValues[] createNotes(int count) {
+        ContentValues[] notes = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            notes[i] = new ContentValues();
+            notes[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "Imported note " + i);
+            notes[i].put(NotePad.Notes.COLUMN_NAME_NOTE,
+                    "Body of imported note " + i + ", with a few words to index");
+        }
+        return notes;
+    }
+
+    // Returns the number of rows at a URI.
+    private int getCount(Uri uri) {
+        Cursor cursor = mMockResolver.query(uri, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Returns the IDs of all notes.
+    private long[] getIds() {
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes._ID }, null, null, null);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Logs the mean latency of a single-row operation.
+    private static void reportLatency(String operation, int rows, long elapsedMillis) {
+        Log.i(TAG, operation + ": " + rows + " rows in " + elapsedMillis + " ms, "
+                + (elapsedMillis * 1000L / Math.max(1, rows)) + " us/row");
+    }
+
+    // Logs the throughput of an operation.
+    private static void report(String operation, int rows, long elapsedMillis) {
+        Log.i(TAG, operation + ": " + rows + " rows in " + elapsedMillis + " ms, "
+                + (rows * 1000L / Math.max(1, elapsedMillis)) + " rows/s");
+    }
+}
@@ -16,23 +16,48 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /*
  */
@@ -147,14 +172,33 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
             TEST_NOTES[index].setModificationDate(START_DATE + (index * ONE_WEEK_MILLIS));
 
             // Adds a record to the database.
-            mDb.insertOrThrow(
-                NotePad.Notes.TABLE_NAME,             // the table name for the insert
-                NotePad.Notes.COLUMN_NAME_TITLE,      // column set to null if empty values map
-                TEST_NOTES[index].getContentValues()  // the values map to insert
-            );
+            insertNoteRow(TEST_NOTES[index].getContentValues());
         }
     }
 
+    /*
+     * Inserts a note directly into the database, bypassing the provider: the body goes into
+     * the body table and the other columns into the notes table.
+     *
+     * @return The _id of the note.
+     */
+    private long insertNoteRow(ContentValues values) {
+        ContentValues noteValues = new ContentValues(values);
+        ContentValues bodyValues = new ContentValues();
+        bodyValues.put(NotePad.Notes.COLUMN_NAME_NOTE,
+                noteValues.getAsString(NotePad.Notes.COLUMN_NAME_NOTE));
+        noteValues.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+
+        long noteId = mDb.insertOrThrow(
+            NotePad.Notes.TABLE_NAME,             // the table name for the insert
+            NotePad.Notes.COLUMN_NAME_TITLE,      // column set to null if empty values map
+            noteValues                            // the values map to insert
+        );
+        bodyValues.put(NotePadProvider.BODY_COLUMN_NOTE_ID, noteId);
+        mDb.insertOrThrow(NotePadProvider.BODY_TABLE_NAME, null, bodyValues);
+        return noteId;
+    }
+
     /*
      * Tests the provider's publicly available URIs. If the URI is not one that the provider
      * understands, the provider should throw an exception. It also tests the provider's getType()
@@ -790,6 +834,1539 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Tests updates and deletes through note ID URIs, which bind the ID and use compiled
+     * statements when there are no other selection criteria.
+     */
+    public void testSingleNoteUpdatesAndDeletes() {
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                TEST_NOTES[0].getContentValues());
+        Uri otherUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                TEST_NOTES[1].getContentValues());
+
+        // Subtest 1.
+        // An update without criteria changes only that note, and repeating it with other
+        // columns compiles another statement.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, 42L);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        Cursor cursor = mMockResolver.query(noteUri, new String[] {
+                NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Renamed", cursor.getString(0));
+        assertEquals(42L, cursor.getLong(1));
+        cursor.close();
+        cursor = mMockResolver.query(otherUri, new String[] { NotePad.Notes.COLUMN_NAME_TITLE },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TEST_NOTES[1].title, cursor.getString(0));
+        cursor.close();
+
+        // Subtest 2.
+        // Selection arguments follow the bound note ID.
+        final String SELECTION = NotePad.Notes.COLUMN_NAME_TITLE + " = ?";
+        assertEquals(0, mMockResolver.update(noteUri, values, SELECTION,
+                new String[] { TEST_NOTES[0].title }));
+        assertEquals(0, mMockResolver.delete(noteUri, SELECTION,
+                new String[] { TEST_NOTES[0].title }));
+        cursor = mMockResolver.query(noteUri, null, SELECTION, new String[] { "Renamed" }, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Subtest 3.
+        // A delete without criteria removes only that note.
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        assertEquals(0, mMockResolver.delete(noteUri, null, null));
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that note bodies are kept in their own table behind the notes contract: the notes
+     * table has no body column, and every write keeps one body row per note.
+     */
+    public void testBodiesAreStoredSeparately() {
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                TEST_NOTES[0].getContentValues());
+        long noteId = ContentUris.parseId(noteUri);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, TEST_NOTES[1].getContentValues());
+
+        // Subtest 1.
+        // The notes table holds only the metadata, and the body table the body.
+        Cursor cursor = mDb.query(NotePad.Notes.TABLE_NAME, null, null, null, null, null, null);
+        assertEquals(-1, cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE));
+        cursor.close();
+        assertEquals(TEST_NOTES[0].note, getStoredBody(noteId));
+
+        // Subtest 2.
+        // Updates write the body, the metadata or both, and selections may refer to the body.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "New body");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals("New body", getStoredBody(noteId));
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "New title");
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_NOTE + " = ?", new String[] { "New body" }));
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE },
+                NotePad.Notes.COLUMN_NAME_NOTE + " = ?", new String[] { "New body" }, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(noteId, cursor.getLong(0));
+        assertEquals("New title", cursor.getString(1));
+        cursor.close();
+
+        // Subtest 3.
+        // Deleting a note, also by a selection on its body, deletes its body.
+        assertEquals(1, mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_NOTE + " = ?", new String[] { "New body" }));
+        assertNull(getStoredBody(noteId));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.BODY_TABLE_NAME));
+    }
+
+    /*
+     * Tests that upgrading from version 9 moves the bodies out of the notes table and keeps
+     * the notes, their ids and the delete triggers.
+     */
+    public void testUpgradeSplitsBodies() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            db.execSQL("CREATE TABLE notes (_id INTEGER PRIMARY KEY, title TEXT, note TEXT,"
+                    + " created INTEGER, modified INTEGER, category TEXT);");
+            db.execSQL("CREATE TABLE attachments (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + " note_id INTEGER NOT NULL, file_type TEXT NOT NULL,"
+                    + " file_path TEXT NOT NULL, file_name TEXT NOT NULL,"
+                    + " file_size LONG NOT NULL);");
+            db.execSQL("CREATE VIRTUAL TABLE notes_fts USING fts4(title, note);");
+            db.execSQL("CREATE TABLE note_trigrams (trigram TEXT NOT NULL,"
+                    + " note_id INTEGER NOT NULL, PRIMARY KEY (trigram, note_id));");
+            db.execSQL("INSERT INTO notes VALUES (7, 'Old title', 'Old body', 1, 2, 'work');");
+            db.execSQL("INSERT INTO notes VALUES (9, 'Other', 'Other body', 1, 3, NULL);");
+            db.execSQL("INSERT INTO attachments VALUES (NULL, 7, 'image', 'a.jpg', 'a.jpg', 30);");
+            db.execSQL("INSERT INTO attachments VALUES (NULL, 7, 'image', 'b.jpg', 'b.jpg', 12);");
+
+            getProvider().getOpenHelperForTest().onUpgrade(db, 9, 10);
+
+            Cursor cursor = db.query(NotePadProvider.NOTES_WITH_BODIES, new String[] {
+                    NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE,
+                    NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_CATEGORY },
+                    null, null, null, null, NotePad.Notes._ID);
+            assertEquals(2, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(7, cursor.getLong(0));
+            assertEquals("Old title", cursor.getString(1));
+            assertEquals("Old body", cursor.getString(2));
+            assertEquals("work", cursor.getString(3));
+            cursor.close();
+
+            cursor = db.query(NotePad.Notes.TABLE_NAME, null, null, null, null, null,
+                    NotePad.Notes._ID);
+            assertEquals(-1, cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE));
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Old body", cursor.getString(
+                    cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_PREVIEW)));
+            assertEquals(2, cursor.getInt(
+                    cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_WORD_COUNT)));
+            assertEquals(2, cursor.getInt(
+                    cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_ATTACHMENT_COUNT)));
+            assertEquals(42, cursor.getLong(
+                    cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_ATTACHMENT_BYTES)));
+            cursor.close();
+
+            db.delete(NotePad.Notes.TABLE_NAME, NotePad.Notes._ID + " = 7", null);
+            assertEquals(1, DatabaseUtils.queryNumEntries(db, NotePadProvider.BODY_TABLE_NAME));
+        } finally {
+            db.close();
+        }
+    }
+
+    /*
+     * Tests that the preview, length and word count of a note follow its body, and that
+     * clients cannot write them.
+     */
+    public void testDerivedColumns() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "  Hello,   world!\n\n第二行 ");
+        values.put(NotePad.Notes.COLUMN_NAME_WORD_COUNT, 100);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertDerivedColumns(noteUri, "Hello, world! 第二行", 23, 5);
+
+        // Updating the body updates the derived columns; writing them directly does nothing.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "one two three");
+        values.put(NotePad.Notes.COLUMN_NAME_PREVIEW, "Not the body");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertDerivedColumns(noteUri, "one two three", 13, 3);
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Title");
+        values.put(NotePad.Notes.COLUMN_NAME_BODY_LENGTH, 0);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertDerivedColumns(noteUri, "one two three", 13, 3);
+
+        // The preview of a long body is cut.
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 2 * NoteSummary.PREVIEW_LENGTH) {
+            body.append("word ");
+        }
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body.toString());
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertDerivedColumns(noteUri, body.substring(0, NoteSummary.PREVIEW_LENGTH - 1),
+                body.length(), body.length() / 5);
+    }
+
+    // Asserts the columns derived from the body of a note.
+    private void assertDerivedColumns(Uri noteUri, String preview, int length, int words) {
+        Cursor cursor = mMockResolver.query(noteUri, new String[] {
+                NotePad.Notes.COLUMN_NAME_PREVIEW, NotePad.Notes.COLUMN_NAME_BODY_LENGTH,
+                NotePad.Notes.COLUMN_NAME_WORD_COUNT }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(preview, cursor.getString(0));
+            assertEquals(length, cursor.getInt(1));
+            assertEquals(words, cursor.getInt(2));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests that the attachment count and total size of a note follow its attachments.
+     */
+    public void testAttachmentTotals() {
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                TEST_NOTES[0].getContentValues());
+        Uri otherUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                TEST_NOTES[1].getContentValues());
+        assertAttachmentTotals(noteUri, 0, 0);
+
+        Uri first = insertAttachment(ContentUris.parseId(noteUri), 100);
+        insertAttachment(ContentUris.parseId(noteUri), 20);
+        assertAttachmentTotals(noteUri, 2, 120);
+
+        // Changing the size of an attachment or moving it to another note changes the totals.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Attachments.COLUMN_NAME_FILE_SIZE, 50);
+        assertEquals(1, mMockResolver.update(first, values, null, null));
+        assertAttachmentTotals(noteUri, 2, 70);
+        values.put(NotePad.Attachments.COLUMN_NAME_NOTE_ID, ContentUris.parseId(otherUri));
+        assertEquals(1, mMockResolver.update(first, values, null, null));
+        assertAttachmentTotals(noteUri, 1, 20);
+        assertAttachmentTotals(otherUri, 1, 50);
+
+        // Deleting an attachment changes the totals; clients cannot write them.
+        assertEquals(1, mMockResolver.delete(first, null, null));
+        assertAttachmentTotals(otherUri, 0, 0);
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Title");
+        values.put(NotePad.Notes.COLUMN_NAME_ATTACHMENT_COUNT, 9);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertAttachmentTotals(noteUri, 1, 20);
+    }
+
+    // Inserts an attachment of a note through the provider.
+    private Uri insertAttachment(long noteId, long size) {
+        return insertAttachment(noteId, size, "attachment.jpg");
+    }
+
+    // Inserts an attachment of a note that refers to a file through the provider.
+    private Uri insertAttachment(long noteId, long size, String path) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Attachments.COLUMN_NAME_NOTE_ID, noteId);
+        values.put(NotePad.Attachments.COLUMN_NAME_FILE_TYPE, "image");
+        values.put(NotePad.Attachments.COLUMN_NAME_FILE_PATH, path);
+        values.put(NotePad.Attachments.COLUMN_NAME_FILE_NAME, "attachment.jpg");
+        values.put(NotePad.Attachments.COLUMN_NAME_FILE_SIZE, size);
+        return mMockResolver.insert(NotePad.Attachments.CONTENT_URI, values);
+    }
+
+    // Asserts the attachment count and total size of a note.
+    private void assertAttachmentTotals(Uri noteUri, int count, long bytes) {
+        Cursor cursor = mMockResolver.query(noteUri, new String[] {
+                NotePad.Notes.COLUMN_NAME_ATTACHMENT_COUNT,
+                NotePad.Notes.COLUMN_NAME_ATTACHMENT_BYTES }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(count, cursor.getInt(0));
+            assertEquals(bytes, cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests that attachments with the same content share one file, which is deleted with the
+     * last attachment that refers to it.
+     */
+    public void testAttachmentsShareFiles() throws IOException {
+        Context context = getProvider().getContext();
+        long noteId = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                TEST_NOTES[0].getContentValues()));
+        long otherId = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                TEST_NOTES[1].getContentValues()));
+
+        // Subtest 1.
+        // Committing the same content twice gives the same blob, and the duplicate is dropped.
+        String path = commitBlob(context, "Photo");
+        assertEquals(path, commitBlob(context, "Photo"));
+        String otherPath = commitBlob(context, "Other photo");
+        assertFalse(path.equals(otherPath));
+        File blob = context.getFileStreamPath(path);
+        File otherBlob = context.getFileStreamPath(otherPath);
+        try {
+            Uri first = insertAttachment(noteId, 5, path);
+            Uri second = insertAttachment(otherId, 5, path);
+            insertAttachment(noteId, 11, otherPath);
+
+            // Subtest 2.
+            // Deleting one of two references keeps the file; deleting the last one removes it.
+            assertEquals(1, mMockResolver.delete(first, null, null));
+            sweepFiles();
+            assertTrue(blob.exists());
+            assertEquals(1, mMockResolver.delete(second, null, null));
+            sweepFiles();
+            assertFalse(blob.exists());
+
+            // Subtest 3.
+            // Deleting the attachments of a note removes the files only they refer to.
+            assertEquals(1, mMockResolver.delete(NotePad.Attachments.CONTENT_URI,
+                    NotePad.Attachments.COLUMN_NAME_NOTE_ID + " = ?",
+                    new String[] { String.valueOf(noteId) }));
+            sweepFiles();
+            assertFalse(otherBlob.exists());
+        } finally {
+            blob.delete();
+            otherBlob.delete();
+        }
+    }
+
+    /*
+     * Tests that deleting a note deletes its attachments and queues their files in the same
+     * transaction, that a sweep deletes the queued files and the attachment files nothing
+     * references, and that it counts what it reclaimed.
+     */
+    public void testFileSweep() throws IOException {
+        Context context = getProvider().getContext();
+        long noteId = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                TEST_NOTES[0].getContentValues()));
+        String path = commitBlob(context, "Photo");
+        String otherPath = commitBlob(context, "Other photo");
+        File blob = context.getFileStreamPath(path);
+        File otherBlob = context.getFileStreamPath(otherPath);
+        File orphan = null;
+        try {
+            insertAttachment(noteId, 5, path);
+            insertAttachment(noteId, 11, otherPath);
+            Bundle before = sweepFiles();
+
+            // Subtest 1.
+            // Deleting the note deletes its attachments and queues their files, which stay
+            // until the sweep.
+            assertEquals(1, mMockResolver.delete(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId),
+                    null, null));
+            assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.Attachments.TABLE_NAME));
+            assertEquals(2, DatabaseUtils.queryNumEntries(mDb,
+                    NotePadProvider.FILE_DELETES_TABLE_NAME));
+            assertTrue(blob.exists());
+            assertTrue(otherBlob.exists());
+
+            // Subtest 2.
+            // The sweep deletes the queued files and a blob left by a crash between its commit
+            // and the insert of its row, empties the queue and counts the files and bytes it
+            // reclaimed.
+            orphan = context.getFileStreamPath(commitBlob(context, "Orphan"));
+            Bundle result = sweepFiles();
+            assertFalse(blob.exists());
+            assertFalse(otherBlob.exists());
+            assertFalse(orphan.exists());
+            assertEquals(0, DatabaseUtils.queryNumEntries(mDb,
+                    NotePadProvider.FILE_DELETES_TABLE_NAME));
+            assertEquals(3, result.getLong(NotePad.EXTRA_RECLAIMED_FILES));
+            long bytes = "Photo".length() + "Other photo".length() + "Orphan".length();
+            assertEquals(bytes, result.getLong(NotePad.EXTRA_RECLAIMED_BYTES));
+            assertEquals(before.getLong(NotePad.EXTRA_TOTAL_RECLAIMED_FILES) + 3,
+                    result.getLong(NotePad.EXTRA_TOTAL_RECLAIMED_FILES));
+            assertEquals(before.getLong(NotePad.EXTRA_TOTAL_RECLAIMED_BYTES) + bytes,
+                    result.getLong(NotePad.EXTRA_TOTAL_RECLAIMED_BYTES));
+
+            // Subtest 3.
+            // Nothing is left to sweep.
+            assertEquals(0, sweepFiles().getLong(NotePad.EXTRA_RECLAIMED_FILES));
+        } finally {
+            blob.delete();
+            otherBlob.delete();
+            if (orphan != null) {
+                orphan.delete();
+            }
+        }
+    }
+
+    // Deletes the files of deleted attachments now instead of in the background.
+    private Bundle sweepFiles() {
+        return mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_SWEEP_FILES,
+                null, null);
+    }
+
+    /*
+     * Tests that the content of an attachment is served from its stored file, with its type and
+     * openable columns, and that a reader can seek in it.
+     */
+    public void testAttachmentData() throws IOException {
+        Context context = getProvider().getContext();
+        long noteId = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                TEST_NOTES[0].getContentValues()));
+        String text = "The content of an attachment";
+        String path = commitBlob(context, text);
+        File blob = context.getFileStreamPath(path);
+        try {
+            Uri dataUri = NotePad.Attachments.getDataUri(ContentUris.parseId(
+                    insertAttachment(noteId, text.length(), path)));
+
+            // Subtest 1.
+            // Legacy file types become a wildcard MIME type, which filters streams.
+            assertEquals("image/*", mMockResolver.getType(dataUri));
+            assertEquals(1, mMockResolver.getStreamTypes(dataUri, "image/*").length);
+            assertNull(mMockResolver.getStreamTypes(dataUri, "text/plain"));
+
+            // Subtest 2.
+            // The name and size are given as openable columns.
+            Cursor cursor = mMockResolver.query(dataUri, null, null, null, null);
+            try {
+                assertTrue(cursor.moveToFirst());
+                assertEquals("attachment.jpg", cursor.getString(
+                        cursor.getColumnIndexOrThrow(OpenableColumns.DISPLAY_NAME)));
+                assertEquals(text.length(), cursor.getLong(
+                        cursor.getColumnIndexOrThrow(OpenableColumns.SIZE)));
+            } finally {
+                cursor.close();
+            }
+
+            // Subtest 3.
+            // The descriptor is on the stored file: it has its size and can be read from any
+            // position.
+            ParcelFileDescriptor descriptor = mMockResolver.openFileDescriptor(dataUri, "r");
+            try {
+                assertEquals(blob.length(), descriptor.getStatSize());
+                FileInputStream in = new FileInputStream(descriptor.getFileDescriptor());
+                FileChannel channel = in.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocate(7);
+                channel.position(4);
+                assertEquals(7, channel.read(buffer));
+                assertEquals("content", new String(buffer.array(), "UTF-8"));
+            } finally {
+                descriptor.close();
+            }
+
+            // Subtest 4.
+            // Typed opens match the type of the file, and writes are refused.
+            AssetFileDescriptor asset =
+                    mMockResolver.openTypedAssetFileDescriptor(dataUri, "image/*", null);
+            asset.close();
+            try {
+                mMockResolver.openTypedAssetFileDescriptor(dataUri, "text/plain", null);
+                fail("Opened an image as text");
+            } catch (FileNotFoundException e) {
+                // Expected
+            }
+            try {
+                mMockResolver.openFileDescriptor(dataUri, "w");
+                fail("Opened an attachment for writing");
+            } catch (FileNotFoundException e) {
+                // Expected
+            }
+
+            // Subtest 5.
+            // An open descriptor stays readable after its attachment is deleted.
+            descriptor = mMockResolver.openFileDescriptor(dataUri, "r");
+            try {
+                assertEquals(1, mMockResolver.delete(NotePad.Attachments.CONTENT_URI,
+                        NotePad.Attachments.COLUMN_NAME_NOTE_ID + " = ?",
+                        new String[] { String.valueOf(noteId) }));
+                assertFalse(blob.exists());
+                FileInputStream in = new FileInputStream(descriptor.getFileDescriptor());
+                assertEquals('T', in.read());
+            } finally {
+                descriptor.close();
+            }
+            try {
+                mMockResolver.openFileDescriptor(dataUri, "r");
+                fail("Opened a deleted attachment");
+            } catch (FileNotFoundException e) {
+                // Expected
+            }
+        } finally {
+            blob.delete();
+        }
+    }
+
+    /*
+     * Tests that an import whose note is deleted before its attachment is inserted reports the
+     * provider's refusal as a failure instead of throwing on the import thread, and that an
+     * import cancelled before the delete, as the editor does, reports nothing.
+     */
+    public void testImportIntoDeletedNote() throws Exception {
+        final Context context = getProvider().getContext();
+        File sourceFile = File.createTempFile("source", ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(sourceFile);
+            try {
+                out.write("Attachment".getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            Uri source = Uri.fromFile(sourceFile);
+            Handler handler = new Handler(Looper.getMainLooper());
+
+            // Subtest 1.
+            // The note is deleted while its attachment is imported.
+            Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                    TEST_NOTES[0].getContentValues());
+            assertEquals(1, mMockResolver.delete(noteUri, null, null));
+            final Exception[] failure = new Exception[1];
+            final CountDownLatch failed = new CountDownLatch(1);
+            AttachmentImporter.runImport(context, source, ContentUris.parseId(noteUri),
+                    new AttachmentImporter.Task(handler, new ImportListener() {
+                        @Override
+                        public void onFailed(Exception e) {
+                            failure[0] = e;
+                            failed.countDown();
+                        }
+                    }));
+            assertTrue(failed.await(5, TimeUnit.SECONDS));
+            assertTrue(failure[0] instanceof RuntimeException);
+            assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.Attachments.TABLE_NAME));
+
+            // Subtest 2.
+            // The import is cancelled before the note is deleted, and reports nothing.
+            noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                    TEST_NOTES[1].getContentValues());
+            AttachmentImporter.Task task = new AttachmentImporter.Task(handler,
+                    new ImportListener());
+            task.cancel();
+            assertEquals(1, mMockResolver.delete(noteUri, null, null));
+            AttachmentImporter.runImport(context, source, ContentUris.parseId(noteUri), task);
+            assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.Attachments.TABLE_NAME));
+
+            // Runs after anything the import posted
+            final CountDownLatch idle = new CountDownLatch(1);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    idle.countDown();
+                }
+            });
+            assertTrue(idle.await(5, TimeUnit.SECONDS));
+        } finally {
+            sourceFile.delete();
+        }
+    }
+
+    // Fails on every report of an import; tests override the ones they expect.
+    private static class ImportListener implements AttachmentImporter.Listener {
+        @Override
+        public void onProgress(long copied, long total) {
+            // Progress may be reported before the import fails
+        }
+
+        @Override
+        public void onImported(Uri attachmentUri) {
+            fail("Unexpected import of " + attachmentUri);
+        }
+
+        @Override
+        public void onFailed(Exception e) {
+            fail("Unexpected failure: " + e);
+        }
+    }
+
+    /*
+     * Tests that a small attachment is kept in the database, read through the same data URI as
+     * a file, and removed with its attachment.
+     */
+    public void testInlineAttachments() throws IOException {
+        long noteId = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                TEST_NOTES[0].getContentValues()));
+        byte[] content = "A short voice note".getBytes("UTF-8");
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Attachments.COLUMN_NAME_NOTE_ID, noteId);
+        values.put(NotePad.Attachments.COLUMN_NAME_FILE_TYPE, "audio/amr");
+        values.put(NotePad.Attachments.COLUMN_NAME_FILE_NAME, "voice.amr");
+        values.put(NotePad.Attachments.COLUMN_NAME_FILE_SIZE, content.length);
+
+        // Subtest 1.
+        // Content larger than the inline limit is refused.
+        values.put(NotePadProvider.ATTACHMENT_VALUE_INLINE_DATA,
+                new byte[NotePadProvider.INLINE_DATA_MAX_SIZE + 1]);
+        try {
+            mMockResolver.insert(NotePad.Attachments.CONTENT_URI, values);
+            fail("Inlined an attachment larger than the limit");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        // Subtest 2.
+        // The content is stored in the database, and the attachment has no file.
+        values.put(NotePadProvider.ATTACHMENT_VALUE_INLINE_DATA, content);
+        Uri attachmentUri = mMockResolver.insert(NotePad.Attachments.CONTENT_URI, values);
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.INLINE_DATA_TABLE_NAME));
+        Cursor cursor = mMockResolver.query(attachmentUri, null, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("", cursor.getString(
+                    cursor.getColumnIndexOrThrow(NotePad.Attachments.COLUMN_NAME_FILE_PATH)));
+            assertEquals(-1, cursor.getColumnIndex(NotePadProvider.INLINE_DATA_COLUMN_DATA));
+            assertEquals(-1, cursor.getColumnIndex(NotePadProvider.ATTACHMENT_VALUE_INLINE_DATA));
+        } finally {
+            cursor.close();
+        }
+        assertAttachmentTotals(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                noteId), 1, content.length);
+
+        // Subtest 3.
+        // The content is read through the data URI, with the type of the attachment.
+        Uri dataUri = NotePad.Attachments.getDataUri(ContentUris.parseId(attachmentUri));
+        assertEquals("audio/amr", mMockResolver.getType(dataUri));
+        InputStream in = mMockResolver.openInputStream(dataUri);
+        try {
+            byte[] read = new byte[content.length + 1];
+            int length = 0;
+            int count;
+            while ((count = in.read(read, length, read.length - length)) > 0) {
+                length += count;
+            }
+            assertEquals(content.length, length);
+            for (int i = 0; i < length; i++) {
+                assertEquals(content[i], read[i]);
+            }
+        } finally {
+            in.close();
+        }
+
+        // Subtest 4.
+        // Deleting the attachment removes its content.
+        assertEquals(1, mMockResolver.delete(attachmentUri, null, null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.INLINE_DATA_TABLE_NAME));
+        try {
+            mMockResolver.openInputStream(dataUri);
+            fail("Opened a deleted attachment");
+        } catch (FileNotFoundException e) {
+            // Expected
+        }
+    }
+
+    // Imports text as an attachment blob the way the editor does, and returns its file name.
+    private static String commitBlob(Context context, String text) throws IOException {
+        byte[] content = text.getBytes("UTF-8");
+        File temp = AttachmentStore.createTempFile(context);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        String name = AttachmentStore.commit(context, temp,
+                AttachmentStore.toHex(AttachmentStore.newDigest().digest(content)));
+        assertFalse(temp.exists());
+        return name;
+    }
+
+    /*
+     * Tests that edits appended to the journal are applied to the body before it is read or
+     * searched, and that writing the body discards the pending edits.
+     */
+    public void testEditJournal() {
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Journal", "Hello world").getContentValues());
+        long noteId = ContentUris.parseId(noteUri);
+        Uri editsUri = NotePad.NoteEdits.getContentUri(noteId);
+        assertEquals(NotePad.NoteEdits.CONTENT_TYPE, mMockResolver.getType(editsUri));
+
+        // Subtest 1.
+        // Edits are stored as they come, and the body is not written.
+        mMockResolver.insert(editsUri, NoteEditJournal.createEdit("Hello world", "Hello, world"));
+        ContentValues edit = NoteEditJournal.createEdit("Hello, world", "Hello, brave world");
+        edit.put(NotePad.NoteEdits.COLUMN_NAME_MODIFICATION_DATE, START_DATE + 1000);
+        mMockResolver.insert(editsUri, edit);
+        assertEquals(2, getEditCount(editsUri));
+        assertEquals("Hello world", getStoredBody(noteId));
+
+        // Subtest 2.
+        // Reading the note applies the edits in order and takes the time of the last one.
+        Cursor cursor = mMockResolver.query(noteUri, new String[] {
+                NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Hello, brave world", cursor.getString(0));
+        assertEquals(START_DATE + 1000, cursor.getLong(1));
+        cursor.close();
+        assertEquals(0, getEditCount(editsUri));
+        assertEquals("Hello, brave world", getStoredBody(noteId));
+
+        // Subtest 3.
+        // Search finds the edited text.
+        mMockResolver.insert(editsUri,
+                NoteEditJournal.createEdit("Hello, brave world", "Hello, brave new world"));
+        assertEquals(1, getSearchCount("new"));
+        assertEquals(0, getEditCount(editsUri));
+
+        // Subtest 4.
+        // Writing the body discards the pending edits, and an edit made to another body is
+        // not inserted, even when that body has the same length.
+        mMockResolver.insert(editsUri, NoteEditJournal.createEdit("Hello, brave new world", ""));
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Replaced");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(0, getEditCount(editsUri));
+        assertNull(mMockResolver.insert(editsUri,
+                NoteEditJournal.createEdit("Not the body", "Changed")));
+        assertEquals("Replaced".length(), "Rewrites".length());
+        assertNull(mMockResolver.insert(editsUri,
+                NoteEditJournal.createEdit("Rewrites", "Rewrites!")));
+        assertEquals(0, getEditCount(editsUri));
+        Bundle result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.METHOD_COMPACT_EDITS, null, null);
+        assertEquals(0, result.getInt(NotePad.EXTRA_COMPACTED_NOTES));
+        assertEquals(0, getEditCount(editsUri));
+        assertEquals("Replaced", getStoredBody(noteId));
+
+        // Subtest 5.
+        // Deleting the note deletes its edits.
+        mMockResolver.insert(editsUri, NoteEditJournal.createEdit("Replaced", "Replaced!"));
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        assertEquals(0, getEditCount(editsUri));
+    }
+
+    // Returns the number of pending edits at an edits URI.
+    private int getEditCount(Uri editsUri) {
+        Cursor cursor = mMockResolver.query(editsUri, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests that every saved body is kept as a revision, mostly as deltas, that each revision
+     * reads back as its body, and that old revisions are removed.
+     */
+    public void testRevisions() {
+        ContentValues values = new NoteInfo("History", "Version 0").getContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long noteId = ContentUris.parseId(noteUri);
+        Uri revisionsUri = NotePad.NoteRevisions.getContentUri(noteId);
+        assertEquals(NotePad.NoteRevisions.CONTENT_TYPE, mMockResolver.getType(revisionsUri));
+        assertEquals(0, getRevisionCount(revisionsUri));
+
+        // Subtest 1.
+        // The first change keeps the replaced body too; a change of title only is no revision.
+        updateBody(noteUri, "Version 0, changed", START_DATE + 1000);
+        updateBody(noteUri, "Version 0, changed twice", START_DATE + 2000);
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        Cursor cursor = mMockResolver.query(revisionsUri, null, null, null, null);
+        long[] ids = new long[cursor.getCount()];
+        try {
+            assertEquals(3, cursor.getCount());
+            int createdIndex = cursor.getColumnIndex(
+                    NotePad.NoteRevisions.COLUMN_NAME_CREATE_DATE);
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(cursor.getColumnIndex(NotePad.NoteRevisions._ID));
+                // Newest first
+                assertEquals(START_DATE + (2 - i) * 1000, cursor.getLong(createdIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        assertEquals("Version 0, changed twice", getRevisionBody(noteId, ids[0]));
+        assertEquals("Version 0, changed", getRevisionBody(noteId, ids[1]));
+        assertEquals("Version 0", getRevisionBody(noteId, ids[2]));
+        assertEquals(NotePad.NoteRevisions.CONTENT_ITEM_TYPE,
+                mMockResolver.getType(NotePad.NoteRevisions.getContentUri(noteId, ids[0])));
+        assertNull(getRevisionBody(noteId, ids[0] + 1000));
+
+        // Subtest 2.
+        // Edits from the journal become a revision when they are applied.
+        mMockResolver.insert(NotePad.NoteEdits.getContentUri(noteId), NoteEditJournal.createEdit(
+                "Version 0, changed twice", "Version 0, changed three times"));
+        assertEquals(4, getRevisionCount(revisionsUri));
+
+        // Subtest 3.
+        // Most revisions are deltas, and the oldest are removed a chain at a time.
+        StringBuilder body = new StringBuilder("Version 0, changed three times");
+        for (int i = 0; i < 2 * NotePadProvider.MAX_REVISIONS; i++) {
+            body.append(" line ").append(i);
+            updateBody(noteUri, body.toString(), START_DATE + 10000 + i);
+        }
+        int count = getRevisionCount(revisionsUri);
+        assertTrue(count >= NotePadProvider.MAX_REVISIONS);
+        assertTrue(count < NotePadProvider.MAX_REVISIONS
+                + NotePadProvider.REVISION_SNAPSHOT_INTERVAL);
+        long snapshots = DatabaseUtils.queryNumEntries(mDb, NotePadProvider.REVISIONS_TABLE_NAME,
+                NotePadProvider.REVISION_COLUMN_SNAPSHOT + " IS NOT NULL");
+        assertTrue(snapshots <= count / NotePadProvider.REVISION_SNAPSHOT_INTERVAL + 1);
+
+        cursor = mMockResolver.query(revisionsUri, null, null, null,
+                NotePad.NoteRevisions._ID + " ASC");
+        try {
+            assertTrue(cursor.moveToFirst());
+            long oldest = cursor.getLong(cursor.getColumnIndex(NotePad.NoteRevisions._ID));
+            assertTrue(cursor.moveToLast());
+            long newest = cursor.getLong(cursor.getColumnIndex(NotePad.NoteRevisions._ID));
+            assertEquals(body.toString(), getRevisionBody(noteId, newest));
+            assertTrue(getRevisionBody(noteId, oldest).startsWith(
+                    "Version 0, changed three times line 0"));
+        } finally {
+            cursor.close();
+        }
+
+        // Subtest 4.
+        // Deleting the note deletes its revisions.
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.REVISIONS_TABLE_NAME));
+    }
+
+    // Writes the body and modification date of a note.
+    private void updateBody(Uri noteUri, String body, long modified) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body);
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, modified);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+    }
+
+    // Returns the number of revisions of a note.
+    private int getRevisionCount(Uri revisionsUri) {
+        Cursor cursor = mMockResolver.query(revisionsUri, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Returns the body of a revision, or null if there is no such revision.
+    private String getRevisionBody(long noteId, long revisionId) {
+        Cursor cursor = mMockResolver.query(
+                NotePad.NoteRevisions.getContentUri(noteId, revisionId),
+                new String[] { NotePad.NoteRevisions.COLUMN_NAME_NOTE }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests that long bodies are stored compressed and read back as text, and that short or
+     * incompressible bodies are stored as text.
+     */
+    public void testLargeBodiesAreCompressed() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; builder.length() < 2 * NoteBodyCodec.COMPRESSION_THRESHOLD; i++) {
+            builder.append("12:00:").append(i % 60).append(" INFO Sync finished, ")
+                    .append(i).append(" notes\n");
+        }
+        String body = builder.toString();
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Log");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long noteId = ContentUris.parseId(noteUri);
+
+        // Subtest 1.
+        // The body is stored as a smaller BLOB, and queries return the text.
+        assertStoredFormat(noteId, NoteBodyCodec.FORMAT_DEFLATE, "blob");
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(Cursor.FIELD_TYPE_STRING, cursor.getType(0));
+        assertEquals(body, cursor.getString(0));
+        cursor.close();
+
+        // Subtest 2.
+        // Search reads the text.
+        assertEquals(1, getSearchCount("Sync"));
+
+        // Subtest 3.
+        // An update to a short body stores it as text again.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertStoredFormat(noteId, NoteBodyCodec.FORMAT_TEXT, "text");
+        assertEquals("Short", getStoredBody(noteId));
+
+        // Subtest 4.
+        // A corrupt body is reported rather than returned.
+        try {
+            NoteBodyCodec.decompress(new byte[] { 1, 2, 3 });
+            fail("Expected SQLException");
+        } catch (SQLException e) {
+            // Expected
+        }
+    }
+
+    // Asserts how the body of a note is stored.
+    private void assertStoredFormat(long noteId, int format, String type) {
+        Cursor cursor = mDb.query(NotePadProvider.BODY_TABLE_NAME, new String[] {
+                NoteBodyCodec.COLUMN_NAME_FORMAT,
+                "typeof(" + NotePad.Notes.COLUMN_NAME_NOTE + ")" },
+                NotePadProvider.BODY_COLUMN_NOTE_ID + " = ?",
+                new String[] { String.valueOf(noteId) }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(format, cursor.getInt(0));
+            assertEquals(type, cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Returns the body stored for a note, or null if it has no body row.
+    private String getStoredBody(long noteId) {
+        Cursor cursor = mDb.query(NotePadProvider.BODY_TABLE_NAME,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE },
+                NotePadProvider.BODY_COLUMN_NOTE_ID + " = ?",
+                new String[] { String.valueOf(noteId) }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests full-text search through the search URI. The FTS index is maintained by the provider,
+     * so the test data is inserted through the resolver, and updates and deletes must be
+     * reflected in the results.
+     */
+    public void testSearch() {
+        // Builds a search URI for the words "note 5", which only appear together in Note5's body.
+        Uri searchUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "note 5")
+                .build();
+
+        // Subtest 1.
+        // Searching an empty table returns an empty cursor.
+        Cursor cursor = mMockResolver.query(searchUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+
+        // Subtest 2.
+        // Searching the test data returns only the matching note.
+        for (NoteInfo note : TEST_NOTES) {
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, note.getContentValues());
+        }
+        cursor = mMockResolver.query(
+            searchUri,                                      // the search URI
+            new String[] { NotePad.Notes.COLUMN_NAME_TITLE }, // only the title is needed
+            null,                                           // no selection criteria
+            null,                                           // no selection arguments
+            null                                            // default sort order
+        );
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TEST_NOTES[5].title, cursor.getString(0));
+
+        // Subtest 3.
+        // A prefix of a word matches, so every note is found while the user is still typing.
+        Uri prefixUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "no")
+                .build();
+        cursor = mMockResolver.query(prefixUri, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+
+        // Search text without searchable words matches no notes instead of every note.
+        assertEquals(0, getSearchCount("!!"));
+
+        // A limit keeps the best ranked results in rank order, or the first ones in the
+        // caller's order.
+        String[] titleProjection = { NotePad.Notes.COLUMN_NAME_TITLE };
+        ArrayList<String> ranked = getStrings(mMockResolver.query(prefixUri, titleProjection,
+                null, null, null));
+        Uri limitedUri = prefixUri.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "3")
+                .build();
+        assertEquals(ranked.subList(0, 3), getStrings(mMockResolver.query(limitedUri,
+                titleProjection, null, null, null)));
+        ArrayList<String> byTitle = getStrings(mMockResolver.query(prefixUri, titleProjection,
+                null, null, NotePad.Notes.COLUMN_NAME_TITLE));
+        assertEquals(byTitle.subList(0, 3), getStrings(mMockResolver.query(limitedUri,
+                titleProjection, null, null, NotePad.Notes.COLUMN_NAME_TITLE)));
+
+        // Subtest 4.
+        // Updating the body of a note re-indexes it.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Rewritten body");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { TEST_NOTES[5].title });
+        cursor = mMockResolver.query(searchUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+
+        // Subtest 5.
+        // Deleting a note removes it from the index.
+        Uri rewrittenUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "rewritten")
+                .build();
+        cursor = mMockResolver.query(rewrittenUri, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { TEST_NOTES[5].title });
+        cursor = mMockResolver.query(rewrittenUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+    }
+
+    /*
+     * Tests searching Chinese text. CJK runs are indexed as bigrams, so a word found anywhere
+     * inside a run of characters matches, while the same characters in another order do not.
+     */
+    public void testSearchCjk() {
+        NoteInfo note = new NoteInfo("会议记录", "明天下午讨论全文检索的实现方案");
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, note.getContentValues());
+        NoteInfo other = new NoteInfo("购物清单", "牛奶和面包");
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, other.getContentValues());
+
+        // A two-character word in the middle of the body matches.
+        assertEquals(1, getSearchCount("检索"));
+
+        // A longer word matches as a phrase of bigrams.
+        assertEquals(1, getSearchCount("全文检索"));
+
+        // The last character of a run matches on its own.
+        assertEquals(1, getSearchCount("案"));
+
+        // The same characters out of order do not match.
+        assertEquals(0, getSearchCount("索检"));
+
+        // Words from the title and the body can be combined.
+        assertEquals(1, getSearchCount("会议 下午"));
+        assertEquals(0, getSearchCount("会议 牛奶"));
+    }
+
+    /*
+     * Tests the rank and snippet columns of a search. A note that matches in its title ranks above
+     * one that only mentions the word in its body, and the snippet highlights the match.
+     */
+    public void testSearchRankAndSnippet() {
+        NoteInfo bodyOnly = new NoteInfo("Groceries", "Milk, bread and a reminder about the budget");
+        bodyOnly.setModificationDate(START_DATE);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, bodyOnly.getContentValues());
+        NoteInfo inTitle = new NoteInfo("Budget review", "Go through the budget <draft> line by line");
+        inTitle.setModificationDate(START_DATE);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, inTitle.getContentValues());
+        NoteInfo cjk = new NoteInfo("会议记录", "明天下午讨论全文检索的实现方案");
+        cjk.setModificationDate(START_DATE);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, cjk.getContentValues());
+
+        final String[] projection = {
+                NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_SEARCH_RANK,
+                NotePad.Notes.COLUMN_NAME_SNIPPET
+        };
+
+        // Subtest 1.
+        // Without a sort order, the note that matches in its title comes first.
+        Uri searchUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "budget")
+                .build();
+        Cursor cursor = mMockResolver.query(searchUri, projection, null, null, null);
+        try {
+            assertEquals(2, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(inTitle.title, cursor.getString(0));
+            double firstRank = cursor.getDouble(1);
+            assertEquals("Go through the <b>budget</b> &lt;draft&gt; line by line",
+                    cursor.getString(2));
+            assertTrue(cursor.moveToNext());
+            assertEquals(bodyOnly.title, cursor.getString(0));
+            assertTrue(cursor.getDouble(1) > 0);
+            assertTrue(firstRank > cursor.getDouble(1));
+        } finally {
+            cursor.close();
+        }
+
+        // Subtest 2.
+        // A CJK match is highlighted as a whole word, without the separators of the index.
+        searchUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "全文检索")
+                .build();
+        cursor = mMockResolver.query(searchUri, projection, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("明天下午讨论<b>全文检索</b>的实现方案", cursor.getString(2));
+        } finally {
+            cursor.close();
+        }
+
+        // Subtest 3.
+        // Of two equally matching notes, the more recently modified one ranks higher.
+        long now = System.currentTimeMillis();
+        byte[] matchInfo = new NoteMatchInfo(1, 2, 10).setLengths(3, 20).setHits(0, 1, 1, 2)
+                .toBlob();
+        assertTrue(NotePadProvider.computeSearchRank(matchInfo, now, now)
+                > NotePadProvider.computeSearchRank(matchInfo, START_DATE, now));
+        assertEquals(0.0, NotePadProvider.computeSearchRank(null, now, now), 0.0);
+    }
+
+    // Builds a matchinfo(notes_fts, 'pcnalx') blob for tests of the rank computation.
+    private static class NoteMatchInfo {
+        final int[] values;
+        final int phrases;
+        final int columns;
+
+        NoteMatchInfo(int phrases, int columns, int rows) {
+            this.phrases = phrases;
+            this.columns = columns;
+            values = new int[3 + 2 * columns + 3 * phrases * columns];
+            values[0] = phrases;
+            values[1] = columns;
+            values[2] = rows;
+        }
+
+        // Sets the same length for a column in this row and on average
+        NoteMatchInfo setLengths(int... lengths) {
+            for (int i = 0; i < columns; i++) {
+                values[3 + i] = lengths[i];
+                values[3 + columns + i] = lengths[i];
+            }
+            return this;
+        }
+
+        // Sets the hits in this row and the number of rows with hits for a phrase and column
+        NoteMatchInfo setHits(int phrase, int column, int hits, int rowsWithHits) {
+            int base = 3 + 2 * columns + 3 * (phrase * columns + column);
+            values[base] = hits;
+            values[base + 1] = hits;
+            values[base + 2] = rowsWithHits;
+            return this;
+        }
+
+        byte[] toBlob() {
+            ByteBuffer buffer = ByteBuffer.allocate(values.length * 4)
+                    .order(ByteOrder.nativeOrder());
+            buffer.asIntBuffer().put(values);
+            return buffer.array();
+        }
+    }
+
+    /*
+     * Tests the fuzzy search. It finds text inside words and text with typing errors, up to the
+     * allowed distance.
+     */
+    public void testFuzzySearch() {
+        NoteInfo budget = new NoteInfo("Budget review", "Quarterly numbers for the marketing team");
+        Uri budgetUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, budget.getContentValues());
+        NoteInfo cjk = new NoteInfo("会议记录", "明天下午讨论全文检索的实现方案");
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, cjk.getContentValues());
+
+        // Subtest 1.
+        // Text inside a word matches, without errors.
+        assertEquals(1, getFuzzySearchCount("udge", null));
+        assertEquals(1, getFuzzySearchCount("文检索", null));
+        assertEquals(1, getFuzzySearchCount("MARKET", null));
+
+        // Subtest 2.
+        // A typing error matches only if the distance allows it.
+        assertEquals(1, getFuzzySearchCount("quartelry", null));
+        assertEquals(1, getFuzzySearchCount("marketimg", "1"));
+        assertEquals(0, getFuzzySearchCount("marketimg", "0"));
+
+        // Subtest 3.
+        // Search text shorter than a trigram finds nothing.
+        assertEquals(0, getFuzzySearchCount("bu", null));
+
+        // Subtest 4.
+        // Updates and deletes keep the trigram index current.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Holiday plans");
+        mMockResolver.update(budgetUri, values, null, null);
+        assertEquals(0, getFuzzySearchCount("marketing", null));
+        assertEquals(1, getFuzzySearchCount("holiday", null));
+        mMockResolver.delete(budgetUri, null, null);
+        assertEquals(0, getFuzzySearchCount("holiday", null));
+    }
+
+    // Returns the number of notes found by a fuzzy search, with the default distance if null.
+    private int getFuzzySearchCount(String searchText, String distance) {
+        Uri.Builder builder = NotePad.Notes.FUZZY_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, searchText);
+        if (distance != null) {
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_DISTANCE, distance);
+        }
+        Cursor cursor = mMockResolver.query(builder.build(), null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests bulkInsert and applyBatch. Both insert every row, and a failing operation in a batch
+     * rolls back the whole batch.
+     */
+    public void testBulkInsertAndApplyBatch() throws Exception {
+        // Subtest 1.
+        // bulkInsert inserts every note, and the notes are searchable.
+        ContentValues[] values = new ContentValues[TEST_NOTES.length];
+        for (int i = 0; i < TEST_NOTES.length; i++) {
+            values[i] = TEST_NOTES[i].getContentValues();
+        }
+        assertEquals(TEST_NOTES.length, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, values));
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+        assertEquals(1, getSearchCount("note 5"));
+
+        // Subtest 2.
+        // applyBatch inserts a note and its attachment, using a back reference for the note id.
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValues(new NoteInfo("Batch note", "Inserted in a batch").getContentValues())
+                .build());
+        operations.add(ContentProviderOperation.newInsert(NotePad.Attachments.CONTENT_URI)
+                .withValueBackReference(NotePad.Attachments.COLUMN_NAME_NOTE_ID, 0)
+                .withValue(NotePad.Attachments.COLUMN_NAME_FILE_TYPE, "image")
+                .withValue(NotePad.Attachments.COLUMN_NAME_FILE_PATH, "batch.jpg")
+                .withValue(NotePad.Attachments.COLUMN_NAME_FILE_NAME, "batch.jpg")
+                .withValue(NotePad.Attachments.COLUMN_NAME_FILE_SIZE, 1)
+                .build());
+        ContentProviderResult[] results = mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+        assertEquals(2, results.length);
+        Uri attachmentsUri = Uri.withAppendedPath(results[0].uri, "attachments");
+        cursor = mMockResolver.query(attachmentsUri, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Subtest 3.
+        // A failing operation rolls back the operations before it.
+        operations.clear();
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValues(new NoteInfo("Rolled back", "Never committed").getContentValues())
+                .build());
+        operations.add(ContentProviderOperation.newDelete(NotePad.Notes.CONTENT_URI)
+                .withSelection(NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+                        new String[] { "No such note" })
+                .withExpectedCount(1)
+                .build());
+        try {
+            mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+            fail("Expected an OperationApplicationException for the expected count");
+        } catch (OperationApplicationException e) {
+            // The test passes
+        }
+        assertEquals(0, getSearchCount("rolled"));
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length + 1, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests reading the notes in pages. Walking the pages with the last row of each page as the
+     * start of the next returns every note once, in the page sort order, including notes that
+     * were modified at the same time.
+     */
+    public void testPagedQueries() {
+        insertData();
+
+        // Adds notes that share a modification date with the first test note.
+        for (int i = 0; i < 3; i++) {
+            NoteInfo note = new NoteInfo("Same time " + i, "Tied modification date");
+            note.setModificationDate(TEST_NOTES[0].modDate);
+            insertNoteRow(note.getContentValues());
+        }
+
+        final String[] projection = {
+                NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        };
+        ArrayList<Long> expected = new ArrayList<Long>();
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection, null, null,
+                NotePad.Notes.PAGE_SORT_ORDER);
+        while (cursor.moveToNext()) {
+            expected.add(cursor.getLong(0));
+        }
+        cursor.close();
+        assertEquals(TEST_NOTES.length + 3, expected.size());
+
+        // Subtest 1.
+        // Pages of 4 notes return every note once, in order.
+        ArrayList<Long> paged = new ArrayList<Long>();
+        String after = null;
+        int pages = 0;
+        do {
+            Uri.Builder builder = NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "4");
+            if (after != null) {
+                builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER, after);
+            }
+            cursor = mMockResolver.query(builder.build(), projection, null, null, null);
+            assertTrue(cursor.getCount() <= 4);
+            after = null;
+            while (cursor.moveToNext()) {
+                paged.add(cursor.getLong(0));
+                after = cursor.getLong(1) + "," + cursor.getLong(0);
+            }
+            cursor.close();
+            pages++;
+        } while (after != null);
+        assertEquals(expected, paged);
+        assertEquals(5, pages);
+
+        // Subtest 2.
+        // Paged queries only accept the page sort order and valid parameters.
+        Uri pageUri = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "4")
+                .build();
+        try {
+            mMockResolver.query(pageUri, projection, null, null, NotePad.Notes.COLUMN_NAME_TITLE);
+            fail("Expected an IllegalArgumentException for the sort order");
+        } catch (IllegalArgumentException e) {
+            // The test passes
+        }
+        Uri badStartUri = pageUri.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER, "yesterday")
+                .build();
+        try {
+            mMockResolver.query(badStartUri, projection, null, null, null);
+            fail("Expected an IllegalArgumentException for the page start");
+        } catch (IllegalArgumentException e) {
+            // The test passes
+        }
+    }
+
+    /*
+     * Tests that a query through the provider proceeds while another thread holds a write
+     * transaction open, as an autosave does, and sees the data committed before it.
+     */
+    public void testReadersProceedDuringWriteTransaction() throws Exception {
+        insertData();
+
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch finishWriting = new CountDownLatch(1);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mDb.beginTransactionNonExclusive();
+                try {
+                    insertNoteRow(new NoteInfo("Unsaved", "Uncommitted note").getContentValues());
+                    writing.countDown();
+                    finishWriting.await(10, TimeUnit.SECONDS);
+                    mDb.setTransactionSuccessful();
+                } catch (InterruptedException e) {
+                    // Rolls the insert back
+                } finally {
+                    mDb.endTransaction();
+                }
+            }
+        });
+        writer.start();
+
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            assertTrue(writing.await(5, TimeUnit.SECONDS));
+            Future<Integer> count = reader.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                            new String[] { NotePad.Notes._ID }, null, null, null);
+                    try {
+                        return cursor.getCount();
+                    } finally {
+                        cursor.close();
+                    }
+                }
+            });
+
+            // Times out if the reader waits for the writer to commit.
+            assertEquals(TEST_NOTES.length, count.get(2, TimeUnit.SECONDS).intValue());
+        } finally {
+            finishWriting.countDown();
+            writer.join();
+            reader.shutdown();
+        }
+    }
+
+    /*
+     * Tests that threads writing more distinct sets of columns than the statement cache holds
+     * never execute a statement the cache has closed, as evicting an entry in use would.
+     */
+    public void testConcurrentWritesEvictCachedStatements() throws Exception {
+        final String[] columns = {
+                NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_NOTE,
+                NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                NotePad.Notes.COLUMN_NAME_CATEGORY
+        };
+        // Every non-empty subset of the columns is a distinct update statement
+        final int sets = (1 << columns.length) - 1;
+        assertTrue(sets > NotePadProvider.STATEMENT_CACHE_SIZE);
+
+        final int threads = 4;
+        final Uri[] noteUris = new Uri[threads];
+        for (int i = 0; i < threads; i++) {
+            noteUris[i] = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                    TEST_NOTES[i].getContentValues());
+        }
+
+        ExecutorService writers = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayList<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < threads; i++) {
+                final Uri noteUri = noteUris[i];
+                final int offset = i * sets / threads;
+                results.add(writers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int round = 0; round < 3 * sets; round++) {
+                            // The threads start at different sets so they evict each other's
+                            int set = (offset + round) % sets + 1;
+                            ContentValues values = new ContentValues();
+                            for (int c = 0; c < columns.length; c++) {
+                                if ((set & (1 << c)) == 0) {
+                                    continue;
+                                }
+                                if (columns[c].equals(NotePad.Notes.COLUMN_NAME_CREATE_DATE)
+                                        || columns[c].equals(
+                                                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE)) {
+                                    values.put(columns[c], (long) round);
+                                } else {
+                                    values.put(columns[c], columns[c] + " " + round);
+                                }
+                            }
+                            assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            // Rethrows the IllegalStateException of a closed statement
+            for (Future<Void> result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            writers.shutdown();
+        }
+    }
+
+    /*
+     * Tests the checkpoint methods of the provider.
+     */
+    public void testCheckpoint() {
+        insertData();
+
+        Bundle result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.METHOD_SET_AUTO_CHECKPOINT, "500", null);
+        assertEquals(500, result.getLong(NotePad.EXTRA_AUTO_CHECKPOINT));
+
+        result = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_CHECKPOINT,
+                "FULL", null);
+        assertFalse(result.getBoolean(NotePad.EXTRA_CHECKPOINT_BUSY));
+        assertEquals(result.getLong(NotePad.EXTRA_CHECKPOINT_LOG_FRAMES),
+                result.getLong(NotePad.EXTRA_CHECKPOINT_CHECKPOINTED_FRAMES));
+
+        try {
+            mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_CHECKPOINT,
+                    "EVERYTHING", null);
+            fail("Expected an IllegalArgumentException for an invalid mode");
+        } catch (IllegalArgumentException e) {
+            // The test passes
+        }
+    }
+
+    /*
+     * Tests that the queries the notes list and the note editor run most often use an index.
+     * Fails if a query reads a whole table, or sorts its results in a temporary b-tree.
+     */
+    public void testHotQueriesUseIndexes() {
+        insertData();
+
+        // The notes list, sorted by modification date.
+        assertUsesIndexes(SQLiteQueryBuilder.buildQueryString(false, NotePad.Notes.TABLE_NAME,
+                NotesList.PROJECTION, null, null, null, NotePad.Notes.DEFAULT_SORT_ORDER, null),
+                null);
+
+        // The notes list, filtered by category.
+        assertUsesIndexes(SQLiteQueryBuilder.buildQueryString(false, NotePad.Notes.TABLE_NAME,
+                NotesList.PROJECTION, NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?", null, null,
+                NotePad.Notes.DEFAULT_SORT_ORDER, null), new String[] { "work" });
+
+        // A later page of the notes list, with and without a category filter.
+        String pageStart = NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " <= ? AND ("
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " < ? OR "
+                + NotePad.Notes._ID + " < ?)";
+        String[] pageStartArgs = { String.valueOf(START_DATE), String.valueOf(START_DATE), "5" };
+        assertUsesIndexes(SQLiteQueryBuilder.buildQueryString(false, NotePad.Notes.TABLE_NAME,
+                NotesList.PROJECTION, pageStart, null, null, NotePad.Notes.PAGE_SORT_ORDER, "50"),
+                pageStartArgs);
+        assertUsesIndexes(SQLiteQueryBuilder.buildQueryString(false, NotePad.Notes.TABLE_NAME,
+                NotesList.PROJECTION, pageStart + " AND "
+                + NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?", null, null,
+                NotePad.Notes.PAGE_SORT_ORDER, "50"),
+                new String[] { pageStartArgs[0], pageStartArgs[1], pageStartArgs[2], "work" });
+
+        // The editor, reading one note and its body.
+        assertUsesIndexes(SQLiteQueryBuilder.buildQueryString(false,
+                NotePadProvider.NOTES_WITH_BODIES,
+                NoteEditor.PROJECTION, NotePad.Notes._ID + "=1", null, null,
+                NotePad.Notes.DEFAULT_SORT_ORDER, null), null);
+
+        // The editor, reading the attachments of one note.
+        assertUsesIndexes(SQLiteQueryBuilder.buildQueryString(false,
+                NotePad.Attachments.TABLE_NAME, NoteEditor.ATTACHMENT_PROJECTION,
+                NotePad.Attachments.COLUMN_NAME_NOTE_ID + "=1", null, null,
+                NotePad.Attachments.DEFAULT_SORT_ORDER, null), null);
+    }
+
+    // Asserts that no step of the query plan of sql is a full table scan or a sort.
+    private void assertUsesIndexes(String sql, String[] selectionArgs) {
+        Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+        try {
+            int detailIndex = plan.getColumnIndexOrThrow("detail");
+            assertTrue(plan.getCount() > 0);
+            while (plan.moveToNext()) {
+                String detail = plan.getString(detailIndex);
+                assertFalse(sql + ": " + detail,
+                        detail.startsWith("SCAN") && !detail.contains(" USING "));
+                assertFalse(sql + ": " + detail, detail.contains("TEMP B-TREE"));
+            }
+        } finally {
+            plan.close();
+        }
+    }
+
+    // Returns the first column of every row of a cursor, and closes it.
+    private static ArrayList<String> getStrings(Cursor cursor) {
+        ArrayList<String> strings = new ArrayList<String>();
+        try {
+            while (cursor.moveToNext()) {
+                strings.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return strings;
+    }
+
+    // Returns the number of notes found by a search for the given text.
+    private int getSearchCount(String searchText) {
+        Uri searchUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, searchText)
+                .build();
+        Cursor cursor = mMockResolver.query(searchUri, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
     // A utility for converting note data to a ContentValues map.
     private static class NoteInfo {
         String title;
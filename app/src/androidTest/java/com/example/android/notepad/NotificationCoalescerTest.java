@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentUris;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.test.mock.MockContentResolver;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that {@link NotificationCoalescer} merges bursts of change notifications and still
+ * delivers every changed URI.
+ */
+public class NotificationCoalescerTest extends TestCase {
+
+    private static final long QUIET_PERIOD_MILLIS = 50;
+    private static final long MAX_DELAY_MILLIS = 200;
+
+    // Delivers the notifications, like the main thread does for the provider
+    private HandlerThread mThread;
+
+    // Records the notifications that reach the resolver
+    private RecordingResolver mResolver;
+
+    private NotificationCoalescer mCoalescer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("NotificationCoalescerTest");
+        mThread.start();
+        mResolver = new RecordingResolver();
+        mCoalescer = new NotificationCoalescer(mResolver, mThread.getLooper(),
+                QUIET_PERIOD_MILLIS, MAX_DELAY_MILLIS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+        super.tearDown();
+    }
+
+    /*
+     * A burst of notifications for one URI is delivered once, after the burst.
+     */
+    public void testBurstIsDeliveredOnce() throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            mCoalescer.notifyChange(NotePad.Notes.CONTENT_URI);
+        }
+        assertEquals(0, mResolver.getCount());
+        waitForDeliveries(1);
+        SystemClock.sleep(QUIET_PERIOD_MILLIS * 2);
+        assertEquals(1, mResolver.getCount());
+        assertEquals(NotePad.Notes.CONTENT_URI, mResolver.get(0));
+    }
+
+    /*
+     * A few distinct URIs are delivered as they are; more than MAX_PENDING_URIS are collapsed
+     * into their top-level URIs.
+     */
+    public void testManyUrisAreCollapsed() throws InterruptedException {
+        Uri first = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+        Uri second = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 2);
+        mCoalescer.notifyChange(first);
+        mCoalescer.notifyChange(second);
+        mCoalescer.notifyChange(first);
+        waitForDeliveries(2);
+        assertEquals(second, mResolver.get(0));
+        assertEquals(first, mResolver.get(1));
+
+        for (int i = 0; i <= NotificationCoalescer.MAX_PENDING_URIS; i++) {
+            mCoalescer.notifyChange(ContentUris.withAppendedId(
+                    NotePad.Notes.CONTENT_ID_URI_BASE, i));
+        }
+        mCoalescer.notifyChange(ContentUris.withAppendedId(NotePad.Attachments.CONTENT_URI, 1));
+        waitForDeliveries(4);
+        assertEquals(NotePad.Notes.CONTENT_URI, mResolver.get(2));
+        assertEquals(ContentUris.withAppendedId(NotePad.Attachments.CONTENT_URI, 1),
+                mResolver.get(3));
+    }
+
+    /*
+     * A URI notified again is delivered in the place of its last notification. A note inserted,
+     * deleted and inserted again under the same _id ends with the insert.
+     */
+    public void testRenotifiedUriMovesToEnd() throws InterruptedException {
+        Uri note = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+        Uri inserted = withOperation(note, NotePad.OPERATION_INSERT);
+        Uri deleted = withOperation(note, NotePad.OPERATION_DELETE);
+        mCoalescer.notifyChange(inserted);
+        mCoalescer.notifyChange(deleted);
+        mCoalescer.notifyChange(inserted);
+        waitForDeliveries(2);
+        SystemClock.sleep(QUIET_PERIOD_MILLIS * 2);
+        assertEquals(2, mResolver.getCount());
+        assertEquals(deleted, mResolver.get(0));
+        assertEquals(inserted, mResolver.get(1));
+    }
+
+    // Returns uri with the operation query parameter of a row-level change.
+    private static Uri withOperation(Uri uri, String operation) {
+        return uri.buildUpon()
+                .appendQueryParameter(NotePad.QUERY_PARAMETER_OPERATION, operation)
+                .build();
+    }
+
+    /*
+     * A steady stream of notifications is still delivered within the maximum delay.
+     */
+    public void testSteadyStreamIsDeliveredWithinMaxDelay() throws InterruptedException {
+        long start = SystemClock.uptimeMillis();
+        while (mResolver.getCount() == 0) {
+            assertTrue(SystemClock.uptimeMillis() - start < MAX_DELAY_MILLIS * 5);
+            mCoalescer.notifyChange(NotePad.Notes.CONTENT_URI);
+            SystemClock.sleep(QUIET_PERIOD_MILLIS / 5);
+        }
+    }
+
+    /*
+     * flush() delivers the pending notifications at once and cancels the scheduled delivery.
+     */
+    public void testFlush() throws InterruptedException {
+        mCoalescer.notifyChange(NotePad.Notes.CONTENT_URI);
+        mCoalescer.flush();
+        assertEquals(1, mResolver.getCount());
+        SystemClock.sleep(MAX_DELAY_MILLIS * 2);
+        assertEquals(1, mResolver.getCount());
+        mCoalescer.flush();
+        assertEquals(1, mResolver.getCount());
+    }
+
+    // Waits until count notifications were delivered, failing after a few maximum delays.
+    private void waitForDeliveries(int count) {
+        long start = SystemClock.uptimeMillis();
+        while (mResolver.getCount() < count) {
+            assertTrue("timed out waiting for " + count + " notifications",
+                    SystemClock.uptimeMillis() - start < MAX_DELAY_MILLIS * 10);
+            SystemClock.sleep(10);
+        }
+    }
+
+    /*
+     * A resolver that records the URIs it is asked to notify.
+     */
+    private static class RecordingResolver extends MockContentResolver {
+        private final List<Uri> mNotified = new ArrayList<Uri>();
+
+        @Override
+        public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork) {
+            synchronized (mNotified) {
+                mNotified.add(uri);
+            }
+        }
+
+        int getCount() {
+            synchronized (mNotified) {
+                return mNotified.size();
+            }
+        }
+
+        Uri get(int index) {
+            synchronized (mNotified) {
+                return mNotified.get(index);
+            }
+        }
+    }
+}
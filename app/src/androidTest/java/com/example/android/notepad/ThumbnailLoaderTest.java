@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import java.io.FileOutputStream;
+
+/**
+ * Tests that {@link ThumbnailLoader} decodes images at a reduced size, keeps the thumbnails
+ * in memory within their byte budget, dropping the least recently used first, and reuses the
+ * bitmaps it drops through {@link BitmapPool}.
+ */
+public class ThumbnailLoaderTest extends AndroidTestCase {
+
+    // The bytes of a 10x10 ARGB_8888 bitmap
+    private static final int BITMAP_BYTES = 10 * 10 * 4;
+
+    // The number of images in the note scrolled through
+    private static final int IMAGE_COUNT = 100;
+
+    // The size of the thumbnails made from them
+    private static final int THUMBNAIL_SIZE = 16;
+
+    private static final String IMAGE_PREFIX = "thumbnail_test_";
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (int i = 0; i < IMAGE_COUNT; i++) {
+            getContext().deleteFile(IMAGE_PREFIX + i);
+        }
+        super.tearDown();
+    }
+
+    public void testCalculateInSampleSize() {
+        assertEquals(1, ThumbnailLoader.calculateInSampleSize(64, 64, 64));
+        assertEquals(1, ThumbnailLoader.calculateInSampleSize(127, 4000, 64));
+        assertEquals(2, ThumbnailLoader.calculateInSampleSize(128, 128, 64));
+        assertEquals(32, ThumbnailLoader.calculateInSampleSize(4000, 3000, 64));
+
+        // Smaller than the thumbnail already
+        assertEquals(1, ThumbnailLoader.calculateInSampleSize(10, 10, 64));
+    }
+
+    public void testMemoryCacheBound() {
+        ThumbnailLoader loader = new ThumbnailLoader(getContext(), 10, BITMAP_BYTES * 2);
+        Bitmap first = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        Bitmap second = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        Bitmap third = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+
+        loader.putInMemory("first", first);
+        loader.putInMemory("second", second);
+        assertEquals(BITMAP_BYTES * 2, loader.getMemoryBytes());
+
+        // Using the first makes the second the least recently used
+        assertSame(first, loader.getFromMemory("first"));
+        loader.putInMemory("third", third);
+        assertEquals(BITMAP_BYTES * 2, loader.getMemoryBytes());
+        assertSame(first, loader.getFromMemory("first"));
+        assertNull(loader.getFromMemory("second"));
+        assertSame(third, loader.getFromMemory("third"));
+
+        // Replacing a thumbnail does not count it twice
+        loader.putInMemory("third", Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888));
+        assertEquals(BITMAP_BYTES * 2, loader.getMemoryBytes());
+
+        // A thumbnail larger than the budget is not kept
+        loader.putInMemory("large", Bitmap.createBitmap(20, 20, Bitmap.Config.ARGB_8888));
+        assertEquals(0, loader.getMemoryBytes());
+        assertNull(loader.getFromMemory("large"));
+    }
+
+    public void testPool() {
+        BitmapPool pool = new BitmapPool(BITMAP_BYTES * 2);
+        Bitmap small = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        Bitmap wide = Bitmap.createBitmap(20, 5, Bitmap.Config.ARGB_8888);
+        pool.put(small);
+        pool.put(wide);
+        assertEquals(BITMAP_BYTES * 2, pool.getBytes());
+
+        // Only a bitmap of the same size class is given out
+        assertNull(pool.get(10, 10, Bitmap.Config.RGB_565));
+        assertSame(small, pool.get(10, 10, Bitmap.Config.ARGB_8888));
+        assertNull(pool.get(10, 10, Bitmap.Config.ARGB_8888));
+        assertEquals(BITMAP_BYTES, pool.getBytes());
+
+        // Over the budget, the least recently used size class is recycled
+        pool.put(small);
+        pool.put(Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888));
+        assertEquals(BITMAP_BYTES * 2, pool.getBytes());
+        assertTrue(wide.isRecycled());
+        assertNull(pool.get(20, 5, Bitmap.Config.ARGB_8888));
+
+        // Immutable bitmaps cannot be decoded into
+        pool.put(Bitmap.createBitmap(new int[100], 10, 10, Bitmap.Config.ARGB_8888));
+        assertEquals(BITMAP_BYTES * 2, pool.getBytes());
+
+        pool.trimToSize(0);
+        assertEquals(0, pool.getBytes());
+        assertTrue(small.isRecycled());
+    }
+
+    public void testSteadyStateAllocatesNothing() throws Exception {
+        for (int i = 0; i < IMAGE_COUNT; i++) {
+            writeImage(IMAGE_PREFIX + i, i);
+        }
+
+        // Memory holds a third of the thumbnails, so scrolling keeps missing it
+        long thumbnailBytes = THUMBNAIL_SIZE * THUMBNAIL_SIZE * 4;
+        ThumbnailLoader loader = new ThumbnailLoader(getContext(), THUMBNAIL_SIZE,
+                thumbnailBytes * IMAGE_COUNT / 3);
+        BitmapPool pool = loader.getBitmapPool();
+
+        // The first pass makes the thumbnails, the second fills the pool
+        scroll(loader);
+        scroll(loader);
+        int allocations = pool.getAllocationCount();
+        long allocatedBytes = pool.getAllocatedBytes();
+        int reuses = pool.getReuseCount();
+
+        scroll(loader);
+        scroll(loader);
+        assertEquals(allocations, pool.getAllocationCount());
+        assertEquals(allocatedBytes, pool.getAllocatedBytes());
+        assertTrue(pool.getReuseCount() >= reuses + IMAGE_COUNT);
+
+        // Memory is given back when the system asks
+        loader.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(0, loader.getMemoryBytes());
+        assertEquals(0, pool.getBytes());
+    }
+
+    // Shows and then releases the thumbnail of every image, as the editor does for its views.
+    private void scroll(ThumbnailLoader loader) {
+        for (int i = 0; i < IMAGE_COUNT; i++) {
+            Bitmap thumbnail = loader.getThumbnail(IMAGE_PREFIX + i,
+                    Uri.fromFile(getContext().getFileStreamPath(IMAGE_PREFIX + i)), "image/png");
+            assertNotNull(thumbnail);
+            assertEquals(THUMBNAIL_SIZE, thumbnail.getWidth());
+            assertEquals(THUMBNAIL_SIZE, thumbnail.getHeight());
+            loader.release(thumbnail);
+        }
+    }
+
+    // Writes a PNG image, larger than a thumbnail and different for every seed, to a private file.
+    private void writeImage(String name, int seed) throws Exception {
+        Bitmap image = Bitmap.createBitmap(THUMBNAIL_SIZE * 4, THUMBNAIL_SIZE * 3,
+                Bitmap.Config.ARGB_8888);
+        image.eraseColor(Color.rgb(seed, 255 - seed, seed * 2));
+        FileOutputStream out = getContext().openFileOutput(name, Context.MODE_PRIVATE);
+        try {
+            image.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } finally {
+            out.close();
+        }
+        image.recycle();
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Imports a file picked by the user as an attachment of a note, off the UI thread. The file is
+ * read once: through a FileChannel when its provider gives a file descriptor, otherwise through
+ * its stream. The same pass writes it to a temporary file, digests it for {@link AttachmentStore}
+ * and counts its exact size. Files of at most {@link NotePadProvider#INLINE_DATA_MAX_SIZE} bytes
+ * are then given to the provider to keep in the database; larger ones become blobs. Progress
+ * and the result are reported on the main thread, and an import can be cancelled until its
+ * attachment row is inserted.
+ */
+final class AttachmentImporter {
+
+    /**
+     * Receives the progress and result of an import on the main thread. Nothing is reported
+     * after the import is cancelled.
+     */
+    interface Listener {
+        /**
+         * Called as the file is copied.
+         *
+         * @param total The size of the file, or -1 if its provider does not tell.
+         */
+        void onProgress(long copied, long total);
+
+        /**
+         * Called when the attachment has been inserted.
+         */
+        void onImported(Uri attachmentUri);
+
+        /**
+         * Called when the file could not be imported: it could not be read or copied, or the
+         * provider refused the attachment, for example because its note was deleted.
+         */
+        void onFailed(Exception e);
+    }
+
+    // The size of the buffer files are copied through. Large reads keep the number of system
+    // calls, and of digest updates, per file small.
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    // The shortest time between progress reports
+    private static final long PROGRESS_INTERVAL_MILLIS = 100;
+
+    // Imports run one at a time on a background thread
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "AttachmentImporter");
+                }
+            });
+
+    // This class cannot be instantiated
+    private AttachmentImporter() {
+    }
+
+    /**
+     * An import that has been started. Set to package visibility for testing purposes.
+     */
+    static final class Task {
+        private final AtomicBoolean mCancelled = new AtomicBoolean();
+        private final Handler mHandler;
+        private final Listener mListener;
+
+        // Only used by the import thread
+        private long mLastProgressTime;
+
+        Task(Handler handler, Listener listener) {
+            mHandler = handler;
+            mListener = listener;
+        }
+
+        /**
+         * Stops the import. The copy stops at the next buffer and the temporary file is deleted.
+         */
+        void cancel() {
+            mCancelled.set(true);
+        }
+
+        boolean isCancelled() {
+            return mCancelled.get();
+        }
+
+        // Posts the progress, unless the last report was too recent and the copy is not done.
+        void reportProgress(final long copied, final long total) {
+            if (mListener == null) {
+                return;
+            }
+            long now = SystemClock.uptimeMillis();
+            if (now - mLastProgressTime < PROGRESS_INTERVAL_MILLIS && copied != total) {
+                return;
+            }
+            mLastProgressTime = now;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCancelled()) {
+                        mListener.onProgress(copied, total);
+                    }
+                }
+            });
+        }
+
+        void reportImported(final Uri attachmentUri) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCancelled()) {
+                        mListener.onImported(attachmentUri);
+                    }
+                }
+            });
+        }
+
+        void reportFailed(final Exception e) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCancelled()) {
+                        mListener.onFailed(e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts importing source as an attachment of a note.
+     *
+     * @return The import, which can be cancelled.
+     */
+    static Task start(Context context, final Uri source, final long noteId, Listener listener) {
+        final Context appContext = context.getApplicationContext();
+        final Task task = new Task(new Handler(Looper.getMainLooper()), listener);
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runImport(appContext, source, noteId, task);
+            }
+        });
+        return task;
+    }
+
+    /**
+     * Imports source as an attachment of a note on the calling thread and reports the result
+     * to task. Every failure is reported, since an exception thrown on the import thread would
+     * end the process. Set to package visibility for testing purposes.
+     */
+    static void runImport(Context context, Uri source, long noteId, Task task) {
+        try {
+            Uri attachmentUri = importFile(context, source, noteId, task);
+            if (attachmentUri != null) {
+                task.reportImported(attachmentUri);
+            }
+        } catch (IOException e) {
+            task.reportFailed(e);
+        } catch (RuntimeException e) {
+            // The source provider denied access, or the provider refused the row
+            task.reportFailed(e);
+        }
+    }
+
+    /**
+     * Copies source into the attachment store and inserts the attachment row.
+     *
+     * @return The URI of the attachment, or null if the import was cancelled.
+     */
+    private static Uri importFile(Context context, Uri source, long noteId, Task task)
+            throws IOException {
+        ContentResolver resolver = context.getContentResolver();
+
+        // The name and, if the provider knows it, the size of the file
+        String fileName = source.getLastPathSegment();
+        long total = -1;
+        if (ContentResolver.SCHEME_CONTENT.equals(source.getScheme())) {
+            Cursor cursor = resolver.query(source, new String[] {
+                    OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE }, null, null, null);
+            if (cursor != null) {
+                try {
+                    if (cursor.moveToFirst()) {
+                        if (!cursor.isNull(0)) {
+                            fileName = cursor.getString(0);
+                        }
+                        if (!cursor.isNull(1)) {
+                            total = cursor.getLong(1);
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+        if (fileName == null) {
+            fileName = "unknown_file";
+        }
+
+        File temp = AttachmentStore.createTempFile(context);
+        try {
+            MessageDigest digest = AttachmentStore.newDigest();
+            long size;
+            ParcelFileDescriptor descriptor = null;
+            try {
+                descriptor = resolver.openFileDescriptor(source, "r");
+            } catch (FileNotFoundException e) {
+                // The provider only serves streams
+            }
+            if (descriptor != null) {
+                try {
+                    // The size of a regular file; pipes and sockets have none
+                    if (descriptor.getStatSize() >= 0) {
+                        total = descriptor.getStatSize();
+                    }
+                    FileInputStream in = new FileInputStream(descriptor.getFileDescriptor());
+                    size = copy(in.getChannel(), temp, digest, total, task);
+                } finally {
+                    descriptor.close();
+                }
+            } else {
+                InputStream in = resolver.openInputStream(source);
+                if (in == null) {
+                    throw new FileNotFoundException("Cannot open " + source);
+                }
+                try {
+                    size = copy(Channels.newChannel(in), temp, digest, total, task);
+                } finally {
+                    in.close();
+                }
+            }
+
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Attachments.COLUMN_NAME_NOTE_ID, noteId);
+            // The type column cannot be null, and file URIs and some providers give no type
+            String type = resolver.getType(source);
+            values.put(NotePad.Attachments.COLUMN_NAME_FILE_TYPE,
+                    type != null ? type : NotePadProvider.DEFAULT_ATTACHMENT_TYPE);
+            values.put(NotePad.Attachments.COLUMN_NAME_FILE_NAME, fileName);
+            values.put(NotePad.Attachments.COLUMN_NAME_FILE_SIZE, size);
+            String contentHash = AttachmentStore.toHex(digest.digest());
+            values.put(NotePad.Attachments.COLUMN_NAME_CONTENT_HASH, contentHash);
+
+            // A small file is kept in the database instead of becoming a blob
+            if (size <= NotePadProvider.INLINE_DATA_MAX_SIZE) {
+                values.put(NotePadProvider.ATTACHMENT_VALUE_INLINE_DATA, readFully(temp, size));
+                return task.isCancelled()
+                        ? null : resolver.insert(NotePad.Attachments.CONTENT_URI, values);
+            }
+
+            // The blob cannot be swept between being committed and being referenced
+            synchronized (AttachmentStore.LOCK) {
+                if (task.isCancelled()) {
+                    return null;
+                }
+                values.put(NotePad.Attachments.COLUMN_NAME_FILE_PATH,
+                        AttachmentStore.commit(context, temp, contentHash));
+                return resolver.insert(NotePad.Attachments.CONTENT_URI, values);
+            }
+        } catch (InterruptedIOException e) {
+            if (task.isCancelled()) {
+                return null;
+            }
+            throw e;
+        } finally {
+            // Gone already if it became a blob or was a duplicate
+            temp.delete();
+        }
+    }
+
+    // Reads a copied file of the given size.
+    private static byte[] readFully(File file, long size) throws IOException {
+        byte[] data = new byte[(int) size];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) {
+                    throw new IOException("File shorter than " + size + " bytes: " + file);
+                }
+                read += count;
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Copies in to dest through one buffer, adding every byte to digest and reporting progress
+     * to task. Set to package visibility for testing purposes.
+     *
+     * @param total The size of the input, or -1 if it is not known.
+     * @return The number of bytes copied.
+     * @throws InterruptedIOException if task is cancelled.
+     */
+    static long copy(ReadableByteChannel in, File dest, MessageDigest digest, long total,
+            Task task) throws IOException {
+        FileOutputStream out = new FileOutputStream(dest);
+        try {
+            FileChannel outChannel = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long copied = 0;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                if (task.isCancelled()) {
+                    throw new InterruptedIOException("Import cancelled");
+                }
+                digest.update(buffer.array(), buffer.arrayOffset(), buffer.position());
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    outChannel.write(buffer);
+                }
+                buffer.clear();
+                copied += count;
+                task.reportProgress(copied, total);
+            }
+            return copied;
+        } finally {
+            out.close();
+        }
+    }
+}
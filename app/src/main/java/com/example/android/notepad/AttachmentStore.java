@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Stores attachment files by the SHA-256 digest of their content, so a file attached to many
+ * notes is stored once. Every attachment row whose {@link NotePad.Attachments#COLUMN_NAME_FILE_PATH}
+ * names a blob is a reference to it. Deleting a row queues its file, and the provider's sweeper
+ * deletes a blob once no row references it.
+ *
+ * A file is imported by copying it to a temporary file while digesting it, then committing the
+ * temporary file under its digest and inserting the attachment row. Both the commit and the
+ * insert, and the provider's sweeps of blobs, hold {@link #LOCK}, so a blob is never deleted
+ * between being found and being referenced.
+ */
+final class AttachmentStore {
+
+    /**
+     * Held while blobs are committed and their rows inserted, and while blobs without
+     * references are removed
+     */
+    static final Object LOCK = new Object();
+
+    // The file name of a blob is this prefix followed by the hex digest of its content
+    private static final String BLOB_PREFIX = "blob_";
+
+    // Attachments imported before blobs were copied to files named with this prefix
+    private static final String LEGACY_PREFIX = "attachment_";
+
+    // Temporary files of imports are named with this prefix and suffix
+    private static final String IMPORT_PREFIX = "import";
+    private static final String IMPORT_SUFFIX = ".tmp";
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // This class cannot be instantiated
+    private AttachmentStore() {
+    }
+
+    /**
+     * Returns a new digest of the algorithm blobs are named by.
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates an empty temporary file in the private files directory, on the same file system
+     * as the blobs, for a file being imported.
+     */
+    static File createTempFile(Context context) throws IOException {
+        return File.createTempFile(IMPORT_PREFIX, IMPORT_SUFFIX, context.getFilesDir());
+    }
+
+    /**
+     * Returns whether a file in the private files directory holds the content of attachments,
+     * as a blob or as the copy of a file imported before blobs.
+     */
+    static boolean isAttachmentFile(String name) {
+        return name.startsWith(BLOB_PREFIX) || name.startsWith(LEGACY_PREFIX);
+    }
+
+    /**
+     * Returns whether a file in the private files directory is the temporary file of an import.
+     */
+    static boolean isImportFile(String name) {
+        return name.startsWith(IMPORT_PREFIX) && name.endsWith(IMPORT_SUFFIX);
+    }
+
+    /**
+     * Returns the digest as lower case hex.
+     */
+    static String toHex(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Returns the file name of the blob with the given hex digest.
+     */
+    static String getBlobName(String digest) {
+        return BLOB_PREFIX + digest;
+    }
+
+    /**
+     * Makes the content of temp the blob with the given hex digest. If the blob exists, temp is
+     * a duplicate and is deleted; otherwise temp becomes the blob. The caller must hold
+     * {@link #LOCK} until it has inserted the row that references the blob.
+     *
+     * @return The file name of the blob, relative to the private files directory.
+     * @throws IOException if temp cannot be moved.
+     */
+    static String commit(Context context, File temp, String digest) throws IOException {
+        String name = getBlobName(digest);
+        File blob = context.getFileStreamPath(name);
+        if (blob.exists()) {
+            temp.delete();
+        } else if (!temp.renameTo(blob)) {
+            throw new IOException("Cannot move " + temp + " to " + blob);
+        }
+        return name;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps bitmaps that are no longer shown so decoding can reuse them through
+ * {@link android.graphics.BitmapFactory.Options#inBitmap} instead of allocating. Bitmaps are kept
+ * by size class, their width, height and config, since until KitKat a bitmap can only be reused
+ * for an image of exactly its size. The pool is bounded by the bytes of its bitmaps and recycles
+ * those of the least recently used size class first.
+ *
+ * The pool counts the bitmaps decoding had to allocate and those it reused, so steady-state
+ * allocation can be measured.
+ */
+final class BitmapPool {
+
+    private final long mMaxBytes;
+
+    // The free bitmaps of each size class, least recently used class first. Guarded by this.
+    private final LinkedHashMap<String, ArrayDeque<Bitmap>> mFree =
+            new LinkedHashMap<String, ArrayDeque<Bitmap>>(4, 0.75f, true);
+    private long mBytes;
+
+    // Guarded by this
+    private int mAllocationCount;
+    private long mAllocatedBytes;
+    private int mReuseCount;
+
+    /**
+     * @param maxBytes The most bytes the free bitmaps may take.
+     */
+    BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    private static String getSizeClass(int width, int height, Bitmap.Config config) {
+        return width + "x" + height + ":" + config;
+    }
+
+    static long getByteCount(Bitmap bitmap) {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Takes a free bitmap of the given size class out of the pool.
+     *
+     * @return The bitmap, or null if the pool has none.
+     */
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        ArrayDeque<Bitmap> free = mFree.get(getSizeClass(width, height, config));
+        Bitmap bitmap = free == null ? null : free.poll();
+        if (bitmap != null) {
+            mBytes -= getByteCount(bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Gives a bitmap that is no longer shown to the pool. Immutable bitmaps cannot be decoded
+     * into and are left to the garbage collector.
+     */
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        String sizeClass = getSizeClass(bitmap.getWidth(), bitmap.getHeight(),
+                bitmap.getConfig());
+        ArrayDeque<Bitmap> free = mFree.get(sizeClass);
+        if (free == null) {
+            free = new ArrayDeque<Bitmap>();
+            mFree.put(sizeClass, free);
+        }
+        free.push(bitmap);
+        mBytes += getByteCount(bitmap);
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Recycles free bitmaps, least recently used size class first, until the rest take at most
+     * maxBytes.
+     */
+    synchronized void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<String, ArrayDeque<Bitmap>>> classes = mFree.entrySet().iterator();
+        while (mBytes > maxBytes && classes.hasNext()) {
+            ArrayDeque<Bitmap> free = classes.next().getValue();
+            while (mBytes > maxBytes && !free.isEmpty()) {
+                Bitmap bitmap = free.removeLast();
+                mBytes -= getByteCount(bitmap);
+                bitmap.recycle();
+            }
+            if (free.isEmpty()) {
+                classes.remove();
+            }
+        }
+    }
+
+    /**
+     * Records that decoding reused a bitmap of the pool.
+     */
+    synchronized void recordReuse() {
+        mReuseCount++;
+    }
+
+    /**
+     * Records that decoding allocated a new bitmap.
+     */
+    synchronized void recordAllocation(Bitmap bitmap) {
+        mAllocationCount++;
+        mAllocatedBytes += getByteCount(bitmap);
+    }
+
+    /**
+     * Returns the bytes the free bitmaps take.
+     */
+    synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Returns the number of bitmaps decoding has allocated.
+     */
+    synchronized int getAllocationCount() {
+        return mAllocationCount;
+    }
+
+    /**
+     * Returns the bytes of the bitmaps decoding has allocated.
+     */
+    synchronized long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    /**
+     * Returns the number of times decoding reused a bitmap of the pool.
+     */
+    synchronized int getReuseCount() {
+        return mReuseCount;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.text.Editable;
+import android.text.TextWatcher;
+
+/**
+ * Tells whether a value an editor shows differs from the value last saved, without keeping a
+ * copy of the saved value. Until the value is marked dirty, it is unchanged and checking costs
+ * nothing; attached to an EditText as a TextWatcher, typing marks it dirty. A dirty value is
+ * compared with the saved one by length and by a 64-bit hash of its characters, so text that
+ * was edited back to what was saved does not count as a change.
+ */
+final class ChangeTracker implements TextWatcher {
+
+    // FNV-1a 64-bit parameters
+    private static final long HASH_OFFSET = 0xcbf29ce484222325L;
+    private static final long HASH_PRIME = 0x100000001b3L;
+
+    private boolean mDirty;
+    private int mSavedLength;
+    private long mSavedHash = HASH_OFFSET;
+
+    /**
+     * Records value as saved and clears the dirty flag. A null value is the same as an empty
+     * one.
+     */
+    void setSaved(CharSequence value) {
+        mSavedLength = value != null ? value.length() : 0;
+        mSavedHash = hash(value);
+        mDirty = false;
+    }
+
+    /**
+     * Marks the value as possibly changed since it was saved.
+     */
+    void markDirty() {
+        mDirty = true;
+    }
+
+    /**
+     * Returns true if value differs from the saved value. A dirty value that turns out to equal
+     * the saved one is marked clean again.
+     */
+    boolean hasChanged(CharSequence value) {
+        if (!mDirty) {
+            return false;
+        }
+        int length = value != null ? value.length() : 0;
+        if (length == mSavedLength && hash(value) == mSavedHash) {
+            mDirty = false;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the FNV-1a hash of the characters of value.
+     */
+    static long hash(CharSequence value) {
+        long hash = HASH_OFFSET;
+        if (value != null) {
+            for (int i = 0, length = value.length(); i < length; i++) {
+                char c = value.charAt(i);
+                hash = (hash ^ (c & 0xff)) * HASH_PRIME;
+                hash = (hash ^ (c >>> 8)) * HASH_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+        mDirty = true;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.SQLException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Stores large note bodies compressed. A body of at least {@link #COMPRESSION_THRESHOLD}
+ * characters is stored as a BLOB of its UTF-8 text compressed with deflate, if that saves space;
+ * any other body is stored as TEXT. The format column of the body table records which form a
+ * row has. Cursors returned by {@link #wrap} turn compressed bodies back into text, so clients
+ * never see the stored form.
+ */
+final class NoteBodyCodec {
+
+    /**
+     * The column of the body table that records how the body is stored
+     */
+    static final String COLUMN_NAME_FORMAT = "format";
+
+    /**
+     * Value of {@link #COLUMN_NAME_FORMAT}: the body is TEXT
+     */
+    static final int FORMAT_TEXT = 0;
+
+    /**
+     * Value of {@link #COLUMN_NAME_FORMAT}: the body is a BLOB of deflated UTF-8 text
+     */
+    static final int FORMAT_DEFLATE = 1;
+
+    // The shortest body that is compressed, in characters. Shorter bodies fit in a few pages,
+    // and reading them as text is cheaper than inflating them.
+    static final int COMPRESSION_THRESHOLD = 4 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // The size of the buffers used to deflate and inflate
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    // This class cannot be instantiated
+    private NoteBodyCodec() {
+    }
+
+    /**
+     * Puts a body into values in its stored form, with its format.
+     *
+     * @param column The name of the body column in values.
+     */
+    static void putBody(ContentValues values, String column, String body) {
+        if (body != null && body.length() >= COMPRESSION_THRESHOLD) {
+            byte[] text = body.getBytes(UTF_8);
+            byte[] compressed = compress(text);
+            // Text that does not compress is kept readable
+            if (compressed.length < text.length) {
+                values.put(column, compressed);
+                values.put(COLUMN_NAME_FORMAT, FORMAT_DEFLATE);
+                return;
+            }
+        }
+        values.put(column, body);
+        values.put(COLUMN_NAME_FORMAT, FORMAT_TEXT);
+    }
+
+    /**
+     * Returns the cursor that reads bodies as text, or cursor itself if it has no body column.
+     *
+     * @param column The name of the body column in cursor.
+     */
+    static Cursor wrap(Cursor cursor, String column) {
+        if (cursor == null) {
+            return null;
+        }
+        int index = cursor.getColumnIndex(column);
+        return index < 0 ? cursor : new DecompressingCursor(cursor, index);
+    }
+
+    /**
+     * Deflates bytes.
+     */
+    static byte[] compress(byte[] bytes) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Inflates a compressed body back into text.
+     *
+     * @throws SQLException if the data is not a complete deflate stream.
+     */
+    static String decompress(byte[] compressed) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new SQLException("Truncated note body");
+                }
+                out.write(buffer, 0, count);
+            }
+            return new String(out.toByteArray(), UTF_8);
+        } catch (DataFormatException e) {
+            throw new SQLException("Corrupt note body: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Reads the body column as text, inflating compressed bodies. The text of the current row
+     * is kept, so reading the column again is free.
+     */
+    private static class DecompressingCursor extends CursorWrapper {
+        private final int mBodyIndex;
+
+        // The row whose inflated body is kept, or -1
+        private int mDecodedPosition = -1;
+        private String mDecoded;
+
+        DecompressingCursor(Cursor cursor, int bodyIndex) {
+            super(cursor);
+            mBodyIndex = bodyIndex;
+        }
+
+        private boolean isCompressed(int columnIndex) {
+            return columnIndex == mBodyIndex
+                    && super.getType(columnIndex) == Cursor.FIELD_TYPE_BLOB;
+        }
+
+        private String getBody() {
+            int position = getPosition();
+            if (position != mDecodedPosition) {
+                mDecoded = decompress(super.getBlob(mBodyIndex));
+                mDecodedPosition = position;
+            }
+            return mDecoded;
+        }
+
+        @Override
+        public int getType(int columnIndex) {
+            return isCompressed(columnIndex)
+                    ? Cursor.FIELD_TYPE_STRING : super.getType(columnIndex);
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            return isCompressed(columnIndex) ? getBody() : super.getString(columnIndex);
+        }
+
+        @Override
+        public byte[] getBlob(int columnIndex) {
+            return isCompressed(columnIndex) ? getBody().getBytes(UTF_8)
+                    : super.getBlob(columnIndex);
+        }
+
+        @Override
+        public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+            if (!isCompressed(columnIndex)) {
+                super.copyStringToBuffer(columnIndex, buffer);
+                return;
+            }
+            String body = getBody();
+            if (buffer.data == null || buffer.data.length < body.length()) {
+                buffer.data = body.toCharArray();
+            } else {
+                body.getChars(0, body.length(), buffer.data, 0);
+            }
+            buffer.sizeCopied = body.length();
+        }
+    }
+}
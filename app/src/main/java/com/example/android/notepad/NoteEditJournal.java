@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+
+/**
+ * Turns a change to a note body into an edit of {@link NotePad.NoteEdits} and applies edits
+ * back to a body. An edit replaces one range of the body: the change between two versions is
+ * everything between their common prefix and their common suffix, which for typing is a few
+ * characters however long the note is.
+ */
+final class NoteEditJournal {
+
+    // This class cannot be instantiated
+    private NoteEditJournal() {
+    }
+
+    /**
+     * Returns the values of the edit that turns base into text, or null if they are equal.
+     */
+    static ContentValues createEdit(String base, String text) {
+        if (base.equals(text)) {
+            return null;
+        }
+        int limit = Math.min(base.length(), text.length());
+        int prefix = 0;
+        while (prefix < limit && base.charAt(prefix) == text.charAt(prefix)) {
+            prefix++;
+        }
+        // A surrogate pair is never split between the prefix and the edit
+        if (prefix > 0 && Character.isHighSurrogate(base.charAt(prefix - 1))) {
+            prefix--;
+        }
+        int suffix = 0;
+        limit -= prefix;
+        while (suffix < limit && base.charAt(base.length() - 1 - suffix)
+                == text.charAt(text.length() - 1 - suffix)) {
+            suffix++;
+        }
+        if (suffix > 0 && Character.isLowSurrogate(base.charAt(base.length() - suffix))) {
+            suffix--;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.NoteEdits.COLUMN_NAME_BASE_LENGTH, base.length());
+        values.put(NotePad.NoteEdits.COLUMN_NAME_BASE_HASH, ChangeTracker.hash(base));
+        values.put(NotePad.NoteEdits.COLUMN_NAME_POSITION, prefix);
+        values.put(NotePad.NoteEdits.COLUMN_NAME_REMOVED, base.length() - prefix - suffix);
+        values.put(NotePad.NoteEdits.COLUMN_NAME_INSERTED,
+                text.substring(prefix, text.length() - suffix));
+        return values;
+    }
+
+    /**
+     * Returns body with an edit applied, or null if the edit was not made to this body: its
+     * length or the {@link ChangeTracker#hash} of its characters differs, or the range of the
+     * edit does not fit in it.
+     */
+    static String applyEdit(String body, int baseLength, long baseHash, int position,
+            int removed, String inserted) {
+        if (body.length() != baseLength || ChangeTracker.hash(body) != baseHash) {
+            return null;
+        }
+        return applyEdit(body, baseLength, position, removed, inserted);
+    }
+
+    /**
+     * Returns body with an edit applied, or null if the edit was not made to a body of this
+     * length or its range does not fit in it. Only for edits known to be made to a body of
+     * this text, such as the deltas of revisions.
+     */
+    static String applyEdit(String body, int baseLength, int position, int removed,
+            String inserted) {
+        if (body.length() != baseLength || position < 0 || removed < 0
+                || position + removed > body.length()) {
+            return null;
+        }
+        StringBuilder result = new StringBuilder(
+                body.length() - removed + (inserted == null ? 0 : inserted.length()));
+        result.append(body, 0, position);
+        if (inserted != null) {
+            result.append(inserted);
+        }
+        result.append(body, position + removed, body.length());
+        return result.toString();
+    }
+}
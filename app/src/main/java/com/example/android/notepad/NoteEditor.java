@@ -18,6 +18,7 @@ package com.example.android.notepad;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.ComponentName;
@@ -37,7 +38,7 @@ import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.provider.MediaStore;
+import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -45,6 +46,8 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
@@ -56,10 +59,6 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -72,8 +71,8 @@ public class NoteEditor extends Activity {
     // 日志TAG
     private static final String TAG = "NoteEditor";
 
-    // 查询投影：新增修改时间和分类字段
-    private static final String[] PROJECTION =
+    // 查询投影：新增修改时间和分类字段（包可见，用于测试查询计划）
+    static final String[] PROJECTION =
             new String[]{
                     NotePad.Notes._ID,
                     NotePad.Notes.COLUMN_NAME_TITLE,
@@ -82,6 +81,17 @@ public class NoteEditor extends Activity {
                     NotePad.Notes.COLUMN_NAME_CATEGORY // 新增：分类
             };
 
+    // 附件列表的查询投影（包可见，用于测试查询计划）
+    static final String[] ATTACHMENT_PROJECTION =
+            new String[]{
+                    NotePad.Attachments._ID,
+                    NotePad.Attachments.COLUMN_NAME_FILE_TYPE,
+                    NotePad.Attachments.COLUMN_NAME_FILE_NAME,
+                    NotePad.Attachments.COLUMN_NAME_FILE_SIZE,
+                    NotePad.Attachments.COLUMN_NAME_FILE_PATH,
+                    NotePad.Attachments.COLUMN_NAME_CONTENT_HASH // 缩略图按附件内容缓存
+            };
+
     // 保存状态常量
     private static final String ORIGINAL_CONTENT = "origContent";
     private static final String ORIGINAL_TITLE = "origTitle"; // 新增：原始标题
@@ -99,6 +109,10 @@ public class NoteEditor extends Activity {
     private String mOriginalContent;
     private String mOriginalTitle; // 新增：原始标题
     private String mOriginalCategory; // 新增：原始分类
+    private String mSavedText; // 数据库中（含未合并的编辑）的正文，编辑日志相对它计算修改
+    // 正文和分类相对数据库的改动：没有改动时暂停和菜单都不必比较整篇正文，也不写数据库
+    private final ChangeTracker mBodyTracker = new ChangeTracker();
+    private final ChangeTracker mCategoryTracker = new ChangeTracker();
     private Spinner mCategorySpinner; // 新增：分类选择器
     private ImageButton mAddCategoryButton; // 添加自定义分类按钮
     private ArrayAdapter<String> mCategoryAdapter; // 新增：分类适配器
@@ -119,6 +133,8 @@ public class NoteEditor extends Activity {
     private Button mBtnAddAttachment; // 添加附件按钮
     private LinearLayout mAttachmentContainer; // 附件预览容器
     private TextView mNoteModifyTime; // 笔记修改时间戳
+    private AttachmentImporter.Task mImportTask; // 正在进行的附件导入
+    private ProgressDialog mImportDialog; // 附件导入进度
 
     /**
      * 原有：带行线的EditText（完全保留）
@@ -193,6 +209,7 @@ public class NoteEditor extends Activity {
 
         // 原有：绑定内容编辑框
         mText = (EditText) findViewById(R.id.note);
+        mText.addTextChangedListener(mBodyTracker);
 
         // 新增：绑定新布局中的UI控件
         mBtnAddAttachment = (Button) findViewById(R.id.btn_add_attachment);
@@ -202,6 +219,17 @@ public class NoteEditor extends Activity {
 
         // 新增：初始化分类选择器
         mAddCategoryButton = (ImageButton) findViewById(R.id.add_category_button);
+        mCategorySpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                mCategoryTracker.markDirty();
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+                mCategoryTracker.markDirty();
+            }
+        });
 
         // 加载分类列表
         mSharedPreferences = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
@@ -254,6 +282,8 @@ public class NoteEditor extends Activity {
             int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
             String note = mCursor.getString(colNoteIndex);
             mText.setTextKeepState(note);
+            mSavedText = note != null ? note : "";
+            mBodyTracker.setSaved(mSavedText);
 
             // 新增：加载并显示修改时间戳
             int colModifyTimeIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
@@ -289,6 +319,9 @@ public class NoteEditor extends Activity {
             if (mOriginalCategory == null) {
                 mOriginalCategory = category;
             }
+            // 记录选择器显示的分类：空的或不在列表中的分类显示为默认，选择器第一次布局时
+            // 触发的onItemSelected不能让它被当作修改
+            mCategoryTracker.setSaved((String) mCategorySpinner.getSelectedItem());
 
             // 新增：加载附件列表
             loadAttachments();
@@ -302,6 +335,14 @@ public class NoteEditor extends Activity {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        // 页面关闭时不再导入，也不再显示进度
+        cancelImport();
+        releaseAttachmentViews();
+        super.onDestroy();
+    }
+
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
@@ -315,17 +356,16 @@ public class NoteEditor extends Activity {
         super.onPause();
         Log.d(TAG, "onPause() called, mCursor: " + (mCursor != null) + ", mState: " + mState);
         if (mCursor != null) {
-            String text = mText.getText().toString();
-            int length = text.length();
+            int length = mText.length();
             Log.d(TAG, "文本长度: " + length + ", 正在退出: " + isFinishing());
             // 原有：空内容删除笔记
             if (isFinishing() && (length == 0)) {
                 setResult(RESULT_CANCELED);
                 deleteNote();
             } else if (mState == STATE_EDIT) {
-                Log.d(TAG, "更新编辑的笔记");
-                updateNote(text, null);
+                saveEdits();
             } else if (mState == STATE_INSERT) {
+                String text = mText.getText().toString();
                 updateNote(text, text);
                 mState = STATE_EDIT;
             }
@@ -349,14 +389,7 @@ public class NoteEditor extends Activity {
 
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
-        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-        String savedNote = mCursor.getString(colNoteIndex);
-        String currentNote = mText.getText().toString();
-        if (savedNote.equals(currentNote)) {
-            menu.findItem(R.id.menu_revert).setVisible(false);
-        } else {
-            menu.findItem(R.id.menu_revert).setVisible(true);
-        }
+        menu.findItem(R.id.menu_revert).setVisible(mBodyTracker.hasChanged(mText.getText()));
         return super.onPrepareOptionsMenu(menu);
     }
 
@@ -364,8 +397,11 @@ public class NoteEditor extends Activity {
     public boolean onOptionsItemSelected(MenuItem item) {
         int id = item.getItemId();
         if (id == R.id.menu_save) {
-            String text = mText.getText().toString();
-            updateNote(text, null);
+            if (mState == STATE_EDIT) {
+                saveEdits();
+            } else {
+                updateNote(mText.getText().toString(), null);
+            }
             finish();
         } else if (id == R.id.menu_delete) {
             deleteNote();
@@ -440,6 +476,38 @@ public class NoteEditor extends Activity {
                 null,
                 null
         );
+        mSavedText = text;
+        mBodyTracker.setSaved(text);
+        mCategoryTracker.setSaved(category);
+    }
+
+    // 暂停时保存：正文只把修改的部分追加到编辑日志，不重写整篇正文，由provider在后台合并；
+    // 分类变化时才更新笔记。什么都没改时不写数据库，也就没有通知，修改时间不变
+    private final void saveEdits() {
+        if (mBodyTracker.hasChanged(mText.getText())) {
+            String text = mText.getText().toString();
+            ContentValues edit = NoteEditJournal.createEdit(mSavedText, text);
+            if (edit != null && getContentResolver().insert(
+                    NotePad.NoteEdits.getContentUri(mNoteId), edit) == null) {
+                // 正文在打开后被其他地方改写，编辑不再适用：写入整篇正文，不丢失输入
+                ContentValues values = new ContentValues();
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+                values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                        System.currentTimeMillis());
+                getContentResolver().update(mUri, values, null, null);
+            }
+            mSavedText = text;
+            mBodyTracker.setSaved(text);
+        }
+
+        String category = (String) mCategorySpinner.getSelectedItem();
+        if (mCategoryTracker.hasChanged(category)) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, category);
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+            getContentResolver().update(mUri, values, null, null);
+            mCategoryTracker.setSaved(category);
+        }
     }
 
     // 原有：撤销修改（保留逻辑）
@@ -464,6 +532,8 @@ public class NoteEditor extends Activity {
     // 原有：删除笔记（保留逻辑）
     private final void deleteNote() {
         if (mCursor != null) {
+            // 导入中的附件不能再插入到已删除的笔记
+            cancelImport();
             mCursor.close();
             mCursor = null;
             getContentResolver().delete(mUri, null, null);
@@ -471,8 +541,7 @@ public class NoteEditor extends Activity {
             if (mNoteModifyTime != null) {
                 mNoteModifyTime.setText(""); // 清空时间戳
             }
-            // 删除笔记时同时删除关联附件
-            deleteAttachments();
+            // 附件由外键的ON DELETE CASCADE随笔记一起删除，文件由provider在后台清理
         }
     }
 
@@ -504,37 +573,74 @@ public class NoteEditor extends Activity {
     }
 
     /**
-     * 保存附件（复制到私有目录 + 插入数据库）
+     * 保存附件：在后台线程复制到附件存储并插入数据库，期间显示进度，可以取消
      */
     private void saveAttachment(Uri fileUri) {
-        try {
-            // 获取文件信息
-            String fileName = getFileName(fileUri);
-            String fileType = getContentResolver().getType(fileUri);
-            long fileSize = getContentResolver().openInputStream(fileUri).available();
-
-            // 生成唯一文件名
-            String destFileName = "attachment_" + System.currentTimeMillis() + "_" + fileName;
-            // 复制到应用私有目录
-            copyFileToPrivateDir(fileUri, destFileName);
-
-            // 插入附件数据到数据库
-            ContentValues values = new ContentValues();
-            values.put(NotePad.Attachments.COLUMN_NAME_NOTE_ID, mNoteId);
-            values.put(NotePad.Attachments.COLUMN_NAME_FILE_TYPE, fileType);
-            values.put(NotePad.Attachments.COLUMN_NAME_FILE_PATH, destFileName);
-            values.put(NotePad.Attachments.COLUMN_NAME_FILE_NAME, fileName);
-            values.put(NotePad.Attachments.COLUMN_NAME_FILE_SIZE, fileSize);
+        cancelImport();
+        final ProgressDialog dialog = new ProgressDialog(this);
+        dialog.setTitle("正在导入附件");
+        dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        dialog.setIndeterminate(true);
+        dialog.setMax(100);
+        dialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface d) {
+                cancelImport();
+            }
+        });
+        dialog.setButton(DialogInterface.BUTTON_NEGATIVE, getText(android.R.string.cancel),
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface d, int which) {
+                        cancelImport();
+                    }
+                });
+        dialog.show();
+        mImportDialog = dialog;
+
+        mImportTask = AttachmentImporter.start(this, fileUri, mNoteId,
+                new AttachmentImporter.Listener() {
+                    @Override
+                    public void onProgress(long copied, long total) {
+                        // 不知道文件大小时保持不确定进度
+                        if (total > 0) {
+                            dialog.setIndeterminate(false);
+                            dialog.setProgress((int) (copied * 100 / total));
+                        }
+                    }
+
+                    @Override
+                    public void onImported(Uri attachmentUri) {
+                        finishImport();
+                        // 刷新附件列表
+                        loadAttachments();
+                        Toast.makeText(NoteEditor.this, "附件添加成功", Toast.LENGTH_SHORT).show();
+                    }
 
-            getContentResolver().insert(NotePad.Attachments.CONTENT_URI, values);
+                    @Override
+                    public void onFailed(Exception e) {
+                        finishImport();
+                        Log.e(TAG, "保存附件失败", e);
+                        Toast.makeText(NoteEditor.this, "附件添加失败", Toast.LENGTH_SHORT).show();
+                    }
+                });
+    }
 
-            // 刷新附件列表
-            loadAttachments();
-            Toast.makeText(this, "附件添加成功", Toast.LENGTH_SHORT).show();
+    /**
+     * 取消正在进行的附件导入
+     */
+    private void cancelImport() {
+        if (mImportTask != null) {
+            mImportTask.cancel();
+        }
+        finishImport();
+    }
 
-        } catch (IOException e) {
-            Log.e(TAG, "保存附件失败", e);
-            Toast.makeText(this, "附件添加失败", Toast.LENGTH_SHORT).show();
+    private void finishImport() {
+        mImportTask = null;
+        if (mImportDialog != null) {
+            mImportDialog.dismiss();
+            mImportDialog = null;
         }
     }
 
@@ -542,18 +648,14 @@ public class NoteEditor extends Activity {
      * 加载当前笔记的所有附件
      */
     private void loadAttachments() {
+        releaseAttachmentViews();
         mAttachmentContainer.removeAllViews();
 
         // 查询当前笔记的附件
         Uri attachmentsUri = Uri.parse(NotePad.Notes.CONTENT_URI + "/" + mNoteId + "/attachments");
         Cursor cursor = getContentResolver().query(
                 attachmentsUri,
-                new String[]{
-                        NotePad.Attachments._ID,
-                        NotePad.Attachments.COLUMN_NAME_FILE_TYPE,
-                        NotePad.Attachments.COLUMN_NAME_FILE_NAME,
-                        NotePad.Attachments.COLUMN_NAME_FILE_SIZE
-                },
+                ATTACHMENT_PROJECTION,
                 null, null, null);
 
         if (cursor != null) {
@@ -562,9 +664,12 @@ public class NoteEditor extends Activity {
                 String fileType = cursor.getString(1);
                 String fileName = cursor.getString(2);
                 long fileSize = cursor.getLong(3);
+                // 旧附件没有内容摘要，用文件路径（同样由内容决定）作为缩略图的缓存键
+                String contentKey = cursor.isNull(5) ? cursor.getString(4) : cursor.getString(5);
 
                 // 创建附件预览视图并添加到容器
-                View attachmentView = createAttachmentView(attachmentId, fileType, fileName, fileSize);
+                View attachmentView = createAttachmentView(attachmentId, fileType, fileName,
+                        fileSize, contentKey);
                 mAttachmentContainer.addView(attachmentView);
             }
             cursor.close();
@@ -572,24 +677,40 @@ public class NoteEditor extends Activity {
     }
 
     /**
-     * 创建单个附件的预览视图
-     */
-    /**
-     * 创建单个附件的预览视图
+     * 交还附件视图显示的缩略图，以便解码下一批缩略图时复用其内存
      */
+    private void releaseAttachmentViews() {
+        if (mAttachmentContainer == null) {
+            return;
+        }
+        ThumbnailLoader loader = ThumbnailLoader.getInstance(this);
+        for (int i = 0; i < mAttachmentContainer.getChildCount(); i++) {
+            View icon = ((ViewGroup) mAttachmentContainer.getChildAt(i)).getChildAt(0);
+            loader.release((ImageView) icon);
+        }
+    }
+
     /**
-     * 创建单个附件的预览视图（简化版）
+     * 创建单个附件的预览视图。图片和视频先显示默认图标，缩略图由 ThumbnailLoader 在后台生成后替换
      */
-    private View createAttachmentView(long attachmentId, String fileType, String fileName, long fileSize) {
+    private View createAttachmentView(long attachmentId, String fileType, String fileName,
+            long fileSize, String contentKey) {
         // 使用更简单的布局
         LinearLayout view = new LinearLayout(this);
         view.setOrientation(LinearLayout.HORIZONTAL);
         view.setPadding(16, 8, 16, 8);
 
-        // 添加图标
+        // 添加图标或缩略图
         ImageView icon = new ImageView(this);
-        icon.setImageResource(R.drawable.ic_menu_save);
-        icon.setLayoutParams(new LinearLayout.LayoutParams(40, 40));
+        setDefaultIcon(icon, fileType);
+        icon.setScaleType(ImageView.ScaleType.CENTER_CROP);
+        int iconSize = Math.round(ThumbnailLoader.THUMBNAIL_SIZE_DP
+                * getResources().getDisplayMetrics().density);
+        icon.setLayoutParams(new LinearLayout.LayoutParams(iconSize, iconSize));
+        if (!TextUtils.isEmpty(contentKey) && ThumbnailLoader.hasThumbnail(fileType)) {
+            ThumbnailLoader.getInstance(this).load(contentKey,
+                    NotePad.Attachments.getDataUri(attachmentId), fileType, icon);
+        }
         view.addView(icon);
 
         // 添加文件名
@@ -598,39 +719,27 @@ public class NoteEditor extends Activity {
         textView.setPadding(16, 0, 0, 0);
         view.addView(textView);
 
-        // 简单的点击事件
-        view.setOnClickListener(v -> {
-            Toast.makeText(NoteEditor.this, "附件: " + fileName, Toast.LENGTH_SHORT).show();
-        });
+        // 点击用其他应用打开附件
+        view.setOnClickListener(v -> openAttachment(attachmentId));
 
         return view;
     }
 
     /**
-     * 打开文件
+     * 打开附件：把附件内容URI交给查看器并授予读权限，查看器直接读取（可随机读取）我们存储的文件，不需要复制
      */
-    private void openFile(String filePath, String fileType) {
-        File file = getFileStreamPath(filePath);
-        if (file.exists()) {
-            try {
-                Uri fileUri = Uri.fromFile(file);
-
-                Intent intent = new Intent(Intent.ACTION_VIEW);
-                intent.setDataAndType(fileUri, fileType);
-                intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-
-                // 检查是否有应用可以处理该文件
-                if (intent.resolveActivity(getPackageManager()) != null) {
-                    startActivity(intent);
-                } else {
-                    Toast.makeText(this, "没有应用可以打开此文件", Toast.LENGTH_SHORT).show();
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "打开文件失败: " + e.getMessage());
-                Toast.makeText(this, "打开文件失败: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-            }
+    private void openAttachment(long attachmentId) {
+        Uri dataUri = NotePad.Attachments.getDataUri(attachmentId);
+        Intent intent = new Intent(Intent.ACTION_VIEW);
+        // 类型由 provider 给出，旧附件的 "image" 等类型会被规范为 MIME 类型
+        intent.setDataAndType(dataUri, getContentResolver().getType(dataUri));
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+
+        // 检查是否有应用可以处理该文件
+        if (intent.resolveActivity(getPackageManager()) != null) {
+            startActivity(intent);
         } else {
-            Toast.makeText(this, "文件不存在", Toast.LENGTH_SHORT).show();
+            Toast.makeText(this, "没有应用可以打开此文件", Toast.LENGTH_SHORT).show();
         }
     }
 
@@ -653,48 +762,6 @@ public class NoteEditor extends Activity {
         }
     }
 
-    /**
-     * 辅助：从URI解析文件名
-     */
-    private String getFileName(Uri uri) {
-        String fileName = "unknown_file";
-        if (ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())) {
-            Cursor cursor = getContentResolver().query(
-                    uri,
-                    new String[]{MediaStore.MediaColumns.DISPLAY_NAME},
-                    null, null, null);
-            if (cursor != null && cursor.moveToFirst()) {
-                fileName = cursor.getString(0);
-                cursor.close();
-            }
-        } else {
-            fileName = uri.getLastPathSegment();
-        }
-        return fileName;
-    }
-
-    /**
-     * 辅助：复制文件到应用私有目录
-     */
-    private void copyFileToPrivateDir(Uri sourceUri, String destFileName) throws IOException {
-        InputStream in = null;
-        OutputStream out = null;
-        try {
-            in = getContentResolver().openInputStream(sourceUri);
-            out = openFileOutput(destFileName, MODE_PRIVATE);
-
-            byte[] buffer = new byte[4096];
-            int length;
-            while ((length = in.read(buffer)) != -1) {
-                out.write(buffer, 0, length);
-            }
-            out.flush();
-        } finally {
-            if (in != null) in.close();
-            if (out != null) out.close();
-        }
-    }
-
     /**
      * 辅助：格式化文件大小（B/KB/MB/GB）
      */
@@ -736,32 +803,6 @@ public class NoteEditor extends Activity {
         return null;
     }
 
-    /**
-     * 辅助：删除当前笔记的所有附件（文件+数据库记录）
-     */
-    private void deleteAttachments() {
-        Uri attachmentsUri = Uri.parse(NotePad.Notes.CONTENT_URI + "/" + mNoteId + "/attachments");
-        Cursor cursor = getContentResolver().query(
-                attachmentsUri,
-                new String[]{NotePad.Attachments._ID, NotePad.Attachments.COLUMN_NAME_FILE_PATH},
-                null, null, null);
-        if (cursor != null) {
-            while (cursor.moveToNext()) {
-                long attachmentId = cursor.getLong(0);
-                String filePath = cursor.getString(1);
-                // 删除文件
-                File file = getFileStreamPath(filePath);
-                if (file.exists()) {
-                    file.delete();
-                }
-                // 删除数据库记录
-                Uri attachmentUri = ContentUris.withAppendedId(NotePad.Attachments.CONTENT_URI, attachmentId);
-                getContentResolver().delete(attachmentUri, null, null);
-            }
-            cursor.close();
-        }
-    }
-
     /**
      * 加载分类列表
      */
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds the rows of the note list that have been loaded, in {@link NotePad.Notes#PAGE_SORT_ORDER},
+ * so that a change to one note can be applied by fetching just that note instead of querying the
+ * whole list again. Pages are appended as they load, and {@link #toCursor} gives the adapter a
+ * snapshot of the rows.
+ */
+final class NoteListModel {
+
+    // The loaded rows, each holding the values of the columns
+    private final List<Object[]> mRows = new ArrayList<Object[]>();
+
+    private String[] mColumns;
+    private int mIdIndex = -1;
+    private int mModifiedIndex = -1;
+
+    /**
+     * Replaces the rows with the rows of cursor, whose columns must include
+     * {@link NotePad.Notes#_ID} and {@link NotePad.Notes#COLUMN_NAME_MODIFICATION_DATE} if rows
+     * are going to be added or updated later.
+     */
+    void setRows(Cursor cursor) {
+        mRows.clear();
+        mColumns = cursor.getColumnNames();
+        mIdIndex = cursor.getColumnIndex(NotePad.Notes._ID);
+        mModifiedIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+        addRows(cursor);
+    }
+
+    /**
+     * Appends the rows of cursor, which must have the same columns and come after the loaded
+     * rows in the sort order, such as the next page.
+     */
+    void addRows(Cursor cursor) {
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            mRows.add(readRow(cursor));
+        }
+    }
+
+    /**
+     * Returns the number of loaded rows.
+     */
+    int size() {
+        return mRows.size();
+    }
+
+    /**
+     * Returns the modification date and the _id of the last loaded row, separated by a comma,
+     * as {@link NotePad.Notes#QUERY_PARAMETER_AFTER} expects, or null if there are no rows.
+     */
+    String getPageToken() {
+        if (mRows.isEmpty()) {
+            return null;
+        }
+        Object[] last = mRows.get(mRows.size() - 1);
+        return getLong(last, mModifiedIndex) + "," + getLong(last, mIdIndex);
+    }
+
+    /**
+     * Removes the note with the given _id.
+     *
+     * @return true if the note was loaded.
+     */
+    boolean remove(long id) {
+        int index = indexOf(id);
+        if (index < 0) {
+            return false;
+        }
+        mRows.remove(index);
+        return true;
+    }
+
+    /**
+     * Puts the current row of cursor at its place in the sort order, replacing the loaded row
+     * with the same _id. A row that sorts after the last loaded row is only added if all rows
+     * are loaded; otherwise it belongs to a page that has not been loaded yet.
+     *
+     * @param allLoaded true if no more pages follow the loaded rows.
+     * @return true if the rows changed.
+     */
+    boolean update(Cursor cursor, boolean allLoaded) {
+        Object[] row = readRow(cursor);
+        boolean removed = remove(getLong(row, mIdIndex));
+        int index = findPosition(row);
+        if (index == mRows.size() && !allLoaded) {
+            return removed;
+        }
+        mRows.add(index, row);
+        return true;
+    }
+
+    /**
+     * Returns a cursor over a snapshot of the loaded rows.
+     */
+    Cursor toCursor() {
+        MatrixCursor cursor = new MatrixCursor(mColumns, mRows.size());
+        for (Object[] row : mRows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    private int indexOf(long id) {
+        for (int i = 0; i < mRows.size(); i++) {
+            if (getLong(mRows.get(i), mIdIndex) == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Returns the index of the first loaded row that sorts after row.
+    private int findPosition(Object[] row) {
+        long modified = getLong(row, mModifiedIndex);
+        long id = getLong(row, mIdIndex);
+        int low = 0;
+        int high = mRows.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            Object[] other = mRows.get(middle);
+            long otherModified = getLong(other, mModifiedIndex);
+            // Newest first, and among notes modified at the same time, highest _id first
+            boolean before = otherModified > modified
+                    || (otherModified == modified && getLong(other, mIdIndex) > id);
+            if (before) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private Object[] readRow(Cursor cursor) {
+        Object[] row = new Object[mColumns.length];
+        for (int i = 0; i < row.length; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row[i] = cursor.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    row[i] = cursor.getDouble(i);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    row[i] = cursor.getBlob(i);
+                    break;
+                case Cursor.FIELD_TYPE_NULL:
+                    row[i] = null;
+                    break;
+                default:
+                    row[i] = cursor.getString(i);
+                    break;
+            }
+        }
+        return row;
+    }
+
+    private static long getLong(Object[] row, int index) {
+        Object value = row[index];
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+}
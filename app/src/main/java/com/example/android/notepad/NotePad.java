@@ -16,6 +16,7 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -28,6 +29,121 @@ import android.provider.BaseColumns;
 public final class NotePad {
     public static final String AUTHORITY = "com.google.provider.NotePad";
 
+    /**
+     * Method of {@link android.content.ContentResolver#call} that copies the write-ahead log
+     * back into the database. The argument is the checkpoint mode, PASSIVE (the default), FULL
+     * or RESTART. The result holds {@link #EXTRA_CHECKPOINT_BUSY},
+     * {@link #EXTRA_CHECKPOINT_LOG_FRAMES} and {@link #EXTRA_CHECKPOINT_CHECKPOINTED_FRAMES}.
+     */
+    public static final String METHOD_CHECKPOINT = "checkpoint";
+
+    /**
+     * Method of {@link android.content.ContentResolver#call} that sets how many pages the
+     * write-ahead log may grow to before a commit checkpoints it. The argument is the number of
+     * pages, 0 disables automatic checkpoints. The setting is kept, and the result holds the
+     * setting in effect in {@link #EXTRA_AUTO_CHECKPOINT}.
+     */
+    public static final String METHOD_SET_AUTO_CHECKPOINT = "setAutoCheckpoint";
+
+    /**
+     * Method of {@link android.content.ContentResolver#call} that applies the pending edits of
+     * {@link NoteEdits} to the note bodies now instead of in the background. Only the app
+     * itself may call it. The result holds the number of notes updated in
+     * {@link #EXTRA_COMPACTED_NOTES}.
+     */
+    public static final String METHOD_COMPACT_EDITS = "compactEdits";
+
+    /**
+     * Method of {@link android.content.ContentResolver#call} that deletes now, instead of in the
+     * background, the files of deleted attachments and the attachment files no attachment
+     * references. Only the app itself may call it. The result holds the files and bytes
+     * reclaimed by this call in {@link #EXTRA_RECLAIMED_FILES} and
+     * {@link #EXTRA_RECLAIMED_BYTES}, and since the provider was created in
+     * {@link #EXTRA_TOTAL_RECLAIMED_FILES} and {@link #EXTRA_TOTAL_RECLAIMED_BYTES}.
+     */
+    public static final String METHOD_SWEEP_FILES = "sweepFiles";
+
+    /**
+     * Result of {@link #METHOD_CHECKPOINT}: true if the checkpoint could not complete because of
+     * readers or writers
+     * <P>Type: boolean</P>
+     */
+    public static final String EXTRA_CHECKPOINT_BUSY = "busy";
+
+    /**
+     * Result of {@link #METHOD_CHECKPOINT}: the number of frames in the write-ahead log
+     * <P>Type: long</P>
+     */
+    public static final String EXTRA_CHECKPOINT_LOG_FRAMES = "log_frames";
+
+    /**
+     * Result of {@link #METHOD_CHECKPOINT}: the number of frames copied into the database
+     * <P>Type: long</P>
+     */
+    public static final String EXTRA_CHECKPOINT_CHECKPOINTED_FRAMES = "checkpointed_frames";
+
+    /**
+     * Result of {@link #METHOD_SET_AUTO_CHECKPOINT}: the number of pages now in effect
+     * <P>Type: long</P>
+     */
+    public static final String EXTRA_AUTO_CHECKPOINT = "auto_checkpoint";
+
+    /**
+     * Result of {@link #METHOD_COMPACT_EDITS}: the number of notes whose edits were applied
+     * <P>Type: int</P>
+     */
+    public static final String EXTRA_COMPACTED_NOTES = "compacted_notes";
+
+    /**
+     * Result of {@link #METHOD_SWEEP_FILES}: the number of files deleted
+     * <P>Type: long</P>
+     */
+    public static final String EXTRA_RECLAIMED_FILES = "reclaimed_files";
+
+    /**
+     * Result of {@link #METHOD_SWEEP_FILES}: the bytes of the files deleted
+     * <P>Type: long</P>
+     */
+    public static final String EXTRA_RECLAIMED_BYTES = "reclaimed_bytes";
+
+    /**
+     * Result of {@link #METHOD_SWEEP_FILES}: the number of files deleted by every sweep since
+     * the provider was created
+     * <P>Type: long</P>
+     */
+    public static final String EXTRA_TOTAL_RECLAIMED_FILES = "total_reclaimed_files";
+
+    /**
+     * Result of {@link #METHOD_SWEEP_FILES}: the bytes of the files deleted by every sweep since
+     * the provider was created
+     * <P>Type: long</P>
+     */
+    public static final String EXTRA_TOTAL_RECLAIMED_BYTES = "total_reclaimed_bytes";
+
+    /**
+     * Query parameter of the URI passed to
+     * {@link android.database.ContentObserver#onChange(boolean, Uri)} when a single note or
+     * attachment changed: which of {@link #OPERATION_INSERT}, {@link #OPERATION_UPDATE} and
+     * {@link #OPERATION_DELETE} changed it. Changes to many rows are notified with the table URI
+     * and no operation.
+     */
+    public static final String QUERY_PARAMETER_OPERATION = "op";
+
+    /**
+     * Value of {@link #QUERY_PARAMETER_OPERATION}: the row was inserted
+     */
+    public static final String OPERATION_INSERT = "insert";
+
+    /**
+     * Value of {@link #QUERY_PARAMETER_OPERATION}: the row was updated
+     */
+    public static final String OPERATION_UPDATE = "update";
+
+    /**
+     * Value of {@link #QUERY_PARAMETER_OPERATION}: the row was deleted
+     */
+    public static final String OPERATION_DELETE = "delete";
+
 
     // This class cannot be instantiated
     private NotePad() {
@@ -74,6 +190,16 @@ public final class NotePad {
          */
         public static final int NOTE_ID_PATH_POSITION = 1;
 
+        /**
+         * Path part for the full-text search URI
+         */
+        private static final String PATH_SEARCH = "/notes/search";
+
+        /**
+         * Path part for the fuzzy search URI
+         */
+        private static final String PATH_FUZZY_SEARCH = "/notes/fuzzy";
+
         /**
          * Path part for the Live Folder URI
          */
@@ -98,6 +224,37 @@ public final class NotePad {
         public static final Uri CONTENT_ID_URI_PATTERN
             = Uri.parse(SCHEME + AUTHORITY + PATH_NOTE_ID + "/#");
 
+        /**
+         * The content:// style URL for a full-text search over note titles and bodies. Callers
+         * must supply the search text in the {@link #QUERY_PARAMETER_SEARCH} query parameter.
+         * Rows have the same columns as {@link #CONTENT_URI}, plus {@link #COLUMN_NAME_SEARCH_RANK}
+         * and {@link #COLUMN_NAME_SNIPPET}. Without a sort order, the best matches come first.
+         * Search text without searchable words, such as punctuation alone, matches no notes.
+         * Callers may supply the largest number of results in {@link #QUERY_PARAMETER_LIMIT}.
+         */
+        public static final Uri SEARCH_URI = Uri.parse(SCHEME + AUTHORITY + PATH_SEARCH);
+
+        /**
+         * Query parameter of {@link #SEARCH_URI} carrying the text the user typed
+         */
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+
+        /**
+         * The content:// style URL for a search that finds the search text anywhere inside a
+         * word and tolerates typing errors. Callers must supply the search text, at least three
+         * characters long, in the {@link #QUERY_PARAMETER_SEARCH} query parameter, and may
+         * supply the number of errors to allow in {@link #QUERY_PARAMETER_DISTANCE}. Rows have
+         * the same columns as {@link #CONTENT_URI}.
+         */
+        public static final Uri FUZZY_SEARCH_URI = Uri.parse(SCHEME + AUTHORITY + PATH_FUZZY_SEARCH);
+
+        /**
+         * Query parameter of {@link #FUZZY_SEARCH_URI} carrying the number of inserted, deleted
+         * or replaced characters allowed in a match. By default, none for up to four
+         * characters, one for up to eight and two for longer search text.
+         */
+        public static final String QUERY_PARAMETER_DISTANCE = "distance";
+
         /**
          * The content Uri pattern for a notes listing for live folders
          */
@@ -124,6 +281,26 @@ public final class NotePad {
          */
         public static final String DEFAULT_SORT_ORDER = "modified DESC";
 
+        /**
+         * The sort order of a page of notes. Notes modified at the same time are ordered by _id,
+         * so that every note has a unique place in the order.
+         */
+        public static final String PAGE_SORT_ORDER = "modified DESC, _id DESC";
+
+        /**
+         * Query parameter of {@link #CONTENT_URI} carrying the largest number of notes to
+         * return. A query with this parameter or {@link #QUERY_PARAMETER_AFTER} returns a page
+         * sorted by {@link #PAGE_SORT_ORDER}. Also limits the results of {@link #SEARCH_URI}.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameter of {@link #CONTENT_URI} carrying where a page starts: the modification
+         * date and the _id of the last note of the previous page, separated by a comma. The
+         * page holds the notes after that note in {@link #PAGE_SORT_ORDER}.
+         */
+        public static final String QUERY_PARAMETER_AFTER = "after";
+
         /*
          * Column definitions
          */
@@ -157,7 +334,216 @@ public final class NotePad {
          * <P>Type: TEXT</P>
          */
         public static final String COLUMN_NAME_CATEGORY = "category";
+
+        /**
+         * Column name for the start of the note body, with white space collapsed, for showing
+         * under the title in a list. Kept up to date by the provider and read-only.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_PREVIEW = "preview";
+
+        /**
+         * Column name for the number of characters in the note body. Kept up to date by the
+         * provider and read-only.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_BODY_LENGTH = "body_length";
+
+        /**
+         * Column name for the number of words in the note body; each Chinese or Japanese
+         * character counts as a word. Kept up to date by the provider and read-only.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_WORD_COUNT = "word_count";
+
+        /**
+         * Column name for the number of attachments of the note. Kept up to date by the
+         * provider and read-only.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_ATTACHMENT_COUNT = "attachment_count";
+
+        /**
+         * Column name for the total size of the attachments of the note, in bytes. Kept up to
+         * date by the provider and read-only.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_ATTACHMENT_BYTES = "attachment_bytes";
+
+        /**
+         * Column name for the relevance of a search result, higher is better. Combines how well
+         * the title and body match the search text with how recently the note was modified.
+         * Only available from {@link #SEARCH_URI}.
+         * <P>Type: REAL</P>
+         */
+        public static final String COLUMN_NAME_SEARCH_RANK = "search_rank";
+
+        /**
+         * Column name for a short excerpt of the note body around the search match. The matched
+         * words are wrapped in &lt;b&gt; tags and the rest of the text is HTML-escaped, so it can
+         * be shown with {@link android.text.Html#fromHtml(String)}. Only available from
+         * {@link #SEARCH_URI}.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_SNIPPET = "snippet";
     }
+    /**
+     * Edit journal contract. Instead of writing the whole body of a note, an editor may insert
+     * the change it made as an edit into {@link #getContentUri(long)}, which is a small append
+     * however long the note is. The provider applies the pending edits of a note to its body,
+     * in order, in the background, before the body is read or searched, and when
+     * {@link NotePad#METHOD_COMPACT_EDITS} is called. The edits are kept in the database until
+     * then, so no edit is lost if the process dies. Writing the body directly discards the
+     * pending edits of the note.
+     *
+     * <p>An edit must be made to the current text of the note, that is its body with the
+     * pending edits applied, which {@link #COLUMN_NAME_BASE_LENGTH} and
+     * {@link #COLUMN_NAME_BASE_HASH} identify. If the text was changed by another client since
+     * the editor read it, the edit is not inserted and insert returns null; the editor should
+     * then write its whole text to the body instead.</p>
+     */
+    public static final class NoteEdits implements BaseColumns {
+
+        // This class cannot be instantiated
+        private NoteEdits() {}
+
+        /**
+         * Path part of the edits of a note, after the note ID URI
+         */
+        public static final String PATH_EDITS = "edits";
+
+        /**
+         * The MIME type of the edits of a note
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note.edit";
+
+        /**
+         * Column name for the _id of the note the edit applies to. Set by the provider from
+         * the URI.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_ID = "note_id";
+
+        /**
+         * Column name for the length of the text the edit was made to
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_BASE_LENGTH = "base_length";
+
+        /**
+         * Column name for the hash of the text the edit was made to: the 64-bit FNV-1a hash of
+         * the low and then the high byte of each of its UTF-16 characters
+         * <P>Type: INTEGER (long)</P>
+         */
+        public static final String COLUMN_NAME_BASE_HASH = "base_hash";
+
+        /**
+         * Column name for the character offset in the body where the edit starts
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_POSITION = "position";
+
+        /**
+         * Column name for the number of characters the edit removes at its position
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_REMOVED = "removed";
+
+        /**
+         * Column name for the text the edit inserts at its position
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_INSERTED = "inserted";
+
+        /**
+         * Column name for the time of the edit, which becomes the modification date of the
+         * note when the edit is applied. Defaults to the time of the insert.
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_MODIFICATION_DATE = "modified";
+
+        /**
+         * Returns the URI of the edits of a note.
+         */
+        public static Uri getContentUri(long noteId) {
+            return Notes.CONTENT_ID_URI_BASE.buildUpon()
+                    .appendPath(String.valueOf(noteId))
+                    .appendPath(PATH_EDITS)
+                    .build();
+        }
+    }
+
+    /**
+     * The saved versions of a note's body. Each time the body is written, the version it
+     * replaces and the new version are kept as revisions, so a note has revisions once its body
+     * has changed, the newest being the current body. The provider stores most revisions as the
+     * difference from the one before, and keeps the most recent ones. Revisions are read-only.
+     */
+    public static final class NoteRevisions implements BaseColumns {
+
+        // This class cannot be instantiated
+        private NoteRevisions() {}
+
+        /**
+         * Path part of the revisions of a note, after the note ID URI
+         */
+        public static final String PATH_REVISIONS = "revisions";
+
+        /**
+         * The MIME type of the revisions of a note
+         */
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.google.note.revision";
+
+        /**
+         * The MIME type of a single revision
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/vnd.google.note.revision";
+
+        /**
+         * The default sort order for the revisions of a note, newest first
+         */
+        public static final String DEFAULT_SORT_ORDER = _ID + " DESC";
+
+        /**
+         * Column name for the _id of the note the revision belongs to
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_ID = "note_id";
+
+        /**
+         * Column name for the time the revision was saved
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_CREATE_DATE = "created";
+
+        /**
+         * Column name for the body of the revision. Only a single revision, read from
+         * {@link #getContentUri(long, long)}, has it, since most revisions have to be rebuilt
+         * from the ones before them.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_NOTE = "note";
+
+        /**
+         * Returns the URI of the revisions of a note.
+         */
+        public static Uri getContentUri(long noteId) {
+            return Notes.CONTENT_ID_URI_BASE.buildUpon()
+                    .appendPath(String.valueOf(noteId))
+                    .appendPath(PATH_REVISIONS)
+                    .build();
+        }
+
+        /**
+         * Returns the URI of a single revision of a note.
+         */
+        public static Uri getContentUri(long noteId, long revisionId) {
+            return ContentUris.withAppendedId(getContentUri(noteId), revisionId);
+        }
+    }
+
         //为了让笔记能够存储其他文件格式，新增表常量
         static final class Attachments implements BaseColumns{
             // 附件表名
@@ -169,7 +555,8 @@ public final class NotePad {
             // 文件类型（image/audio/video）
             public static final String COLUMN_NAME_FILE_TYPE = "file_type";
 
-            // 文件在应用私有目录的路径
+            // 文件在应用私有目录的路径。多条附件可以引用同一个文件，最后一条删除时才删除文件。
+            // 较小的附件内容存在数据库中，路径为空字符串；两种附件的内容都通过 getDataUri() 读取
             public static final String COLUMN_NAME_FILE_PATH = "file_path";
 
             // 原始文件名
@@ -178,6 +565,9 @@ public final class NotePad {
             // 文件大小（单位：字节）
             public static final String COLUMN_NAME_FILE_SIZE = "file_size";
 
+            // 文件内容的SHA-256（十六进制）。内容相同的附件共用一个文件，file_path相同
+            public static final String COLUMN_NAME_CONTENT_HASH = "content_hash";
+
             // 内容URI（用于ContentProvider操作）
             public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY+ "/attachments");
 
@@ -190,6 +580,20 @@ public final class NotePad {
             // 默认排序（按添加时间升序）
             public static final String DEFAULT_SORT_ORDER = "_id ASC";
 
+            // 附件内容URI的最后一段：content://.../attachments/1/data
+            public static final String PATH_DATA = "data";
+
+            /**
+             * Returns the URI of the content of an attachment. The provider opens it as a file
+             * descriptor on the stored file, so readers can seek in it without a copy, and answers
+             * queries for its {@link android.provider.OpenableColumns}.
+             */
+            public static Uri getDataUri(long attachmentId) {
+                return ContentUris.withAppendedId(CONTENT_URI, attachmentId).buildUpon()
+                        .appendPath(PATH_DATA)
+                        .build();
+            }
+
         }
 
 }
@@ -20,22 +20,36 @@ import com.example.android.notepad.NotePad;
 
 import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.ContentProvider.PipeDataWriter;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Binder;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.provider.BaseColumns;
 import android.provider.LiveFolders;
+import android.provider.OpenableColumns;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -46,7 +60,21 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 /**
  * Provides access to a database of notes. Each note has a title, the note
@@ -61,20 +89,218 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     private static final String DATABASE_NAME = "note_pad.db";
 
+    /**
+     * The preferences that keep the checkpoint policy set through
+     * {@link NotePad#METHOD_SET_AUTO_CHECKPOINT}
+     */
+    private static final String PREFS_NAME = "NotePadProvider";
+    private static final String KEY_AUTO_CHECKPOINT = "wal_autocheckpoint";
+
     /**
      * The database version
      */
     //修改版本3->4
-    private static final int DATABASE_VERSION = 4;
+    //版本4->5：新增全文检索索引
+    //版本5->6：全文检索索引改为CJK二元分词
+    //版本6->7：新增三元组索引，支持词内和容错搜索
+    //版本7->8：为列表排序、分类过滤和附件查询新增索引
+    //版本8->9：列表索引加入_id列，支持按(modified, _id)分页
+    //版本9->10：笔记正文移到note_bodies表，notes表只保留列表需要的元数据
+    //版本10->11：较长的正文压缩存储，note_bodies表新增format列
+    //版本11->12：notes表新增正文预览、长度和字数列
+    //版本12->13：notes表新增附件数量和总大小列，由附件表的触发器维护
+    //版本13->14：新增note_edits表，编辑器只追加修改的部分，由provider在后台合并到正文
+    //版本14->15：新增note_revisions表，保存正文的历史版本（定期快照加差异）
+    //版本15->16：附件按内容的SHA-256存储，相同的文件只存一份，附件表新增content_hash列
+    //版本16->17：新增attachment_data表，较小的附件内容直接存在数据库中，不再单独存文件
+    //版本17->18：新增pending_file_deletes表，附件删除时由触发器记录待删除的文件，后台清理
+    //版本18->19：note_edits表新增base_hash列，插入编辑时检查它是否基于笔记当前的正文
+    private static final int DATABASE_VERSION = 19;
+
+    /**
+     * The table that holds the note bodies, keyed by the note's _id. Keeping the bodies out of
+     * the notes table keeps its rows small, so the list reads few pages however long the notes
+     * are. Every note has a body row; a trigger removes the bodies of deleted notes. Long
+     * bodies are stored compressed, see {@link NoteBodyCodec}. Set to package visibility for
+     * testing purposes.
+     */
+    static final String BODY_TABLE_NAME = "note_bodies";
+    static final String BODY_COLUMN_NOTE_ID = "note_id";
+
+    /**
+     * The content of attachments small enough to be kept in the database rather than in a file,
+     * keyed by the attachment's _id. Reading a small attachment from the database saves the
+     * open, stat and close of its file, and keeping the content out of the attachments table
+     * keeps the rows the editor lists small. Such an attachment has an empty
+     * {@link NotePad.Attachments#COLUMN_NAME_FILE_PATH}; a trigger removes the content of deleted
+     * attachments. Set to package visibility for testing purposes.
+     */
+    static final String INLINE_DATA_TABLE_NAME = "attachment_data";
+    static final String INLINE_DATA_COLUMN_ATTACHMENT_ID = "attachment_id";
+    static final String INLINE_DATA_COLUMN_DATA = "data";
+
+    /**
+     * The largest attachment kept in {@link #INLINE_DATA_TABLE_NAME}. Larger ones are files, which
+     * readers can seek in and which do not fill the database. Set to package visibility for
+     * testing purposes.
+     */
+    static final int INLINE_DATA_MAX_SIZE = 16 * 1024;
+
+    /**
+     * The key of the content of a small attachment in the values inserted into
+     * {@link NotePad.Attachments#CONTENT_URI}, in place of a file path. At most
+     * {@link #INLINE_DATA_MAX_SIZE} bytes. Set to package visibility for the importer.
+     */
+    static final String ATTACHMENT_VALUE_INLINE_DATA = "inline_data";
+
+    /**
+     * The files of deleted attachments, queued by a trigger in the transaction that deletes the
+     * rows, whether the attachments were deleted themselves or with their note. The sweeper
+     * deletes each file no attachment references any more, then its queue row, so a crash
+     * between a delete and the sweep leaves the file queued rather than leaked. Set to package
+     * visibility for testing purposes.
+     */
+    static final String FILE_DELETES_TABLE_NAME = "pending_file_deletes";
+    static final String FILE_DELETES_COLUMN_FILE_PATH = "file_path";
+
+    /**
+     * The notes joined with their bodies, for the queries that need the note column. Set to
+     * package visibility for testing purposes.
+     */
+    static final String NOTES_WITH_BODIES = NotePad.Notes.TABLE_NAME + " LEFT JOIN "
+            + BODY_TABLE_NAME + " ON " + BODY_TABLE_NAME + "." + BODY_COLUMN_NOTE_ID + " = "
+            + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID;
+
+    // Finds the note column in a selection or sort order
+    private static final Pattern BODY_COLUMN_PATTERN =
+            Pattern.compile("\\b" + NotePad.Notes.COLUMN_NAME_NOTE + "\\b");
+
+    /**
+     * The FTS4 virtual table that indexes note titles and bodies. Its docid is the note's _id.
+     * The indexed text is rewritten by {@link NoteTokenizer}, so the provider maintains it on
+     * insert and update; a trigger removes the entries of deleted notes.
+     */
+    private static final String FTS_TABLE_NAME = "notes_fts";
+
+    /*
+     * Search ranking. Scores are BM25 computed from the FTS matchinfo() statistics, with a match
+     * in the title worth more than one in the body, then raised by up to RECENCY_BOOST for
+     * recently modified notes. The boost halves every RECENCY_HALF_LIFE_MILLIS.
+     */
+    private static final double BM25_K1 = 1.2;
+    private static final double BM25_B = 0.75;
+    private static final double TITLE_WEIGHT = 2.0;
+    private static final double NOTE_WEIGHT = 1.0;
+    private static final double RECENCY_BOOST = 0.5;
+    private static final double RECENCY_HALF_LIFE_MILLIS = 30 * 24 * 60 * 60 * 1000.0;
+
+    // The number of index tokens in a snippet. A CJK character counts about once.
+    private static final int SNIPPET_TOKENS = 16;
+
+    /**
+     * The table that maps every trigram of a note's title and body to the note, so the notes
+     * sharing trigrams with a fuzzy search can be found without reading every note. The provider
+     * maintains it with {@link #indexNote}; a trigger removes the rows of deleted notes.
+     */
+    private static final String TRIGRAM_TABLE_NAME = "note_trigrams";
+    private static final String TRIGRAM_COLUMN_TRIGRAM = "trigram";
+    private static final String TRIGRAM_COLUMN_NOTE_ID = "note_id";
+
+    /**
+     * The edit journal: the edits of {@link NotePad.NoteEdits} that have not been applied to the
+     * note bodies yet, in the order they were made. A trigger removes the edits of deleted notes.
+     */
+    private static final String EDITS_TABLE_NAME = "note_edits";
+
+    // The columns of an edit that are read to apply it. Edits inserted before the base hash
+    // was stored have none.
+    private static final String[] APPLY_EDIT_PROJECTION = new String[] {
+            NotePad.NoteEdits.COLUMN_NAME_BASE_LENGTH,
+            NotePad.NoteEdits.COLUMN_NAME_BASE_HASH,
+            NotePad.NoteEdits.COLUMN_NAME_POSITION,
+            NotePad.NoteEdits.COLUMN_NAME_REMOVED,
+            NotePad.NoteEdits.COLUMN_NAME_INSERTED,
+            NotePad.NoteEdits.COLUMN_NAME_MODIFICATION_DATE
+    };
+
+    // How long after the last edit the pending edits are applied in the background
+    private static final long EDIT_COMPACTION_DELAY_MILLIS = 2000;
+
+    // How long after the last delete the files of deleted attachments are swept
+    private static final long FILE_SWEEP_DELAY_MILLIS = 1000;
+
+    // How old an import's temporary file must be to be taken as left by a crash
+    private static final long STALE_IMPORT_MILLIS = 24 * 60 * 60 * 1000;
+
+    /**
+     * The revisions of {@link NotePad.NoteRevisions}. A revision is either a snapshot, whose
+     * {@link #REVISION_COLUMN_SNAPSHOT} holds the whole body, stored as by {@link NoteBodyCodec},
+     * or a delta, which holds the edit that turns the revision before it into this one in the
+     * columns of {@link NotePad.NoteEdits}. The first revision of a note is a snapshot, so any
+     * revision is rebuilt from the nearest snapshot before it. A trigger removes the revisions
+     * of deleted notes. Set to package visibility for testing purposes.
+     */
+    static final String REVISIONS_TABLE_NAME = "note_revisions";
+    static final String REVISION_COLUMN_SNAPSHOT = "snapshot";
+
+    // The columns of the revisions read to rebuild a revision. The delta columns follow in the
+    // order of NoteEditJournal.applyEdit.
+    private static final String[] REBUILD_REVISION_PROJECTION = new String[] {
+            NotePad.NoteRevisions._ID,
+            NotePad.NoteRevisions.COLUMN_NAME_CREATE_DATE,
+            REVISION_COLUMN_SNAPSHOT,
+            NotePad.NoteEdits.COLUMN_NAME_BASE_LENGTH,
+            NotePad.NoteEdits.COLUMN_NAME_POSITION,
+            NotePad.NoteEdits.COLUMN_NAME_REMOVED,
+            NotePad.NoteEdits.COLUMN_NAME_INSERTED
+    };
+    private static final int REBUILD_REVISION_ID_INDEX = 0;
+    private static final int REBUILD_REVISION_CREATE_DATE_INDEX = 1;
+    private static final int REBUILD_REVISION_SNAPSHOT_INDEX = 2;
+
+    // The most revisions in a chain from a snapshot. Rebuilding a revision applies at most one
+    // less deltas.
+    static final int REVISION_SNAPSHOT_INTERVAL = 10;
+
+    // The revisions kept of each note. Older revisions are removed a whole chain at a time, so
+    // up to REVISION_SNAPSHOT_INTERVAL - 1 more may be kept.
+    static final int MAX_REVISIONS = 50;
+
+    // The most candidate notes a fuzzy search reads and checks, which bounds its cost
+    private static final int MAX_FUZZY_CANDIDATES = 200;
+
+    // The column of a search that holds the matchinfo() blob the rank is computed from
+    private static final String SEARCH_MATCH_INFO = "match_info";
+
+    /**
+     * The notes joined with the FTS rows that match the search text, which is bound to the only
+     * placeholder. The matchinfo() format "pcnalx" returns the phrase and column counts, the
+     * number of rows, the average and actual column lengths and the per-phrase hit counts.
+     */
+    private static final String SEARCH_TABLES = NotePad.Notes.TABLE_NAME + " JOIN (SELECT docid, "
+            + "matchinfo(" + FTS_TABLE_NAME + ", 'pcnalx') AS " + SEARCH_MATCH_INFO + ", "
+            + "snippet(" + FTS_TABLE_NAME + ", '" + NoteTokenizer.MATCH_START + "', '"
+            + NoteTokenizer.MATCH_END + "', '\u2026', 1, " + SNIPPET_TOKENS + ") AS "
+            + NotePad.Notes.COLUMN_NAME_SNIPPET
+            + " FROM " + FTS_TABLE_NAME + " WHERE " + FTS_TABLE_NAME + " MATCH ?) AS search"
+            + " ON " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " = search.docid";
 
     /**
      * A projection map used to select columns from the database
      */
     private static HashMap<String, String> sNotesProjectionMap;
 
+    /**
+     * Projection map used to select columns for a search
+     */
+    private static HashMap<String, String> sSearchProjectionMap;
+
     //附件表的投影映射
     private static HashMap<String, String> sAttachmentProjectionMap;
 
+    // The columns of a list of revisions, which does not include their bodies
+    private static HashMap<String, String> sRevisionProjectionMap;
+
     /**
      * A projection map used to select columns from the database
      */
@@ -109,6 +335,25 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     private static final int ATTACHMENT_ID=5;
     private static final int NOTE_ATTACHMENTS=6;
 
+    // The incoming URI matches the full-text search URI pattern
+    private static final int SEARCH = 7;
+
+    // The incoming URI matches the fuzzy search URI pattern
+    private static final int FUZZY_SEARCH = 8;
+
+    // The incoming URI matches the edits of a note
+    private static final int NOTE_EDITS = 9;
+
+    // The incoming URI matches the revisions of a note, or a single revision
+    private static final int NOTE_REVISIONS = 10;
+    private static final int NOTE_REVISION_ID = 11;
+
+    // The incoming URI matches the content of an attachment
+    private static final int ATTACHMENT_DATA = 12;
+
+    // The type of attachment content whose file type is not known
+    static final String DEFAULT_ATTACHMENT_TYPE = "application/octet-stream";
+
 
     /**
      * A UriMatcher instance
@@ -118,6 +363,89 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // Handle to a new DatabaseHelper.
     private DatabaseHelper mOpenHelper;
 
+    // The most compiled statements kept for single-row writes. Set to package visibility for
+    // testing purposes.
+    static final int STATEMENT_CACHE_SIZE = 16;
+
+    /*
+     * Compiled statements for the single-row inserts, updates and deletes that the editor makes
+     * on every save, keyed by their SQL. The SQL only depends on the table and the set of
+     * columns written, so a few statements serve every note. Guarded by itself; each statement
+     * is guarded by itself while it is bound and executed. The cache holds one reference to each
+     * statement and every caller of getCachedStatement another until it is done, so an evicted
+     * statement is only closed once no thread still executes it.
+     */
+    private final LinkedHashMap<String, SQLiteStatement> mStatementCache =
+            new LinkedHashMap<String, SQLiteStatement>(STATEMENT_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+                    if (size() > STATEMENT_CACHE_SIZE) {
+                        // Drops the cache's reference; a thread still using it keeps it open
+                        eldest.getValue().releaseReference();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    // While a batch runs on a thread, the URIs to notify when it ends; otherwise null
+    private final ThreadLocal<Set<Uri>> mBatchChanges = new ThreadLocal<Set<Uri>>();
+
+    // How long change notifications wait for more changes, and the longest they are held
+    private static final long NOTIFY_QUIET_PERIOD_MILLIS = 100;
+    private static final long NOTIFY_MAX_DELAY_MILLIS = 500;
+
+    // Merges the change notifications of writes that arrive close together
+    private NotificationCoalescer mNotifier;
+
+    // The thread that applies the edit journal to the note bodies in the background
+    private HandlerThread mCompactionThread;
+    private Handler mCompactionHandler;
+
+    /*
+     * False once all pending edits have been applied, so reads need not look for edits until
+     * the next one is added. True at first, since edits may be left from a previous process.
+     */
+    private final AtomicBoolean mHasPendingEdits = new AtomicBoolean(true);
+
+    private final Runnable mCompactEdits = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                compactEdits(-1);
+            } catch (SQLException e) {
+                Log.e(TAG, "Failed to apply the pending edits", e);
+            }
+        }
+    };
+
+    // The files and bytes the sweeper has reclaimed since the provider was created
+    private final AtomicLong mReclaimedFiles = new AtomicLong();
+    private final AtomicLong mReclaimedBytes = new AtomicLong();
+
+    private final Runnable mSweepFiles = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                sweepFiles(false);
+            } catch (SQLException e) {
+                Log.e(TAG, "Failed to sweep the files of deleted attachments", e);
+            }
+        }
+    };
+
+    // Also looks for files that no attachment references, as a crash may have left
+    private final Runnable mReconcileFiles = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                sweepFiles(true);
+            } catch (SQLException e) {
+                Log.e(TAG, "Failed to sweep the attachment files", e);
+            }
+        }
+    };
+
 
     /**
      * A block that instantiates and sets static objects
@@ -137,6 +465,12 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // to a note ID operation
         sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#", NOTE_ID);
 
+        // Add a pattern that routes URIs terminated with "notes/search" to a full-text search
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/search", SEARCH);
+
+        // Add a pattern that routes URIs terminated with "notes/fuzzy" to a fuzzy search
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/fuzzy", FUZZY_SEARCH);
+
         // Add a pattern that routes URIs terminated with live_folders/notes to a
         // live folder operation
         sUriMatcher.addURI(NotePad.AUTHORITY, "live_folders/notes", LIVE_FOLDER_NOTES);
@@ -147,6 +481,21 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         sUriMatcher.addURI(NotePad.AUTHORITY, "attachments/#", ATTACHMENT_ID); // 匹配 content://.../attachments/1
         sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/attachments", NOTE_ATTACHMENTS); // 匹配 content://.../notes/1/attachments
 
+        // Adds a pattern that routes URIs of the edits of a note to the NOTE_EDITS operation
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.NoteEdits.PATH_EDITS,
+                NOTE_EDITS);
+
+        // Adds patterns that route URIs of the revisions of a note to the NOTE_REVISIONS and
+        // NOTE_REVISION_ID operations
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.NoteRevisions.PATH_REVISIONS,
+                NOTE_REVISIONS);
+        sUriMatcher.addURI(NotePad.AUTHORITY,
+                "notes/#/" + NotePad.NoteRevisions.PATH_REVISIONS + "/#", NOTE_REVISION_ID);
+
+        // 匹配 content://.../attachments/1/data，附件文件的内容
+        sUriMatcher.addURI(NotePad.AUTHORITY,
+                "attachments/#/" + NotePad.Attachments.PATH_DATA, ATTACHMENT_DATA);
+
 
 
         /*
@@ -178,6 +527,29 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Maps "category" to "category"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY, NotePad.Notes.COLUMN_NAME_CATEGORY);
 
+        // Maps the columns derived from the body to themselves
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_PREVIEW,
+                NotePad.Notes.COLUMN_NAME_PREVIEW);
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_BODY_LENGTH,
+                NotePad.Notes.COLUMN_NAME_BODY_LENGTH);
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_WORD_COUNT,
+                NotePad.Notes.COLUMN_NAME_WORD_COUNT);
+
+        // Maps the attachment totals, which triggers keep up to date, to themselves
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_ATTACHMENT_COUNT,
+                NotePad.Notes.COLUMN_NAME_ATTACHMENT_COUNT);
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_ATTACHMENT_BYTES,
+                NotePad.Notes.COLUMN_NAME_ATTACHMENT_BYTES);
+
+        /*
+         * Creates the projection map for searches. The rank is computed from the matchinfo
+         * column after the query, so it is not in the map.
+         */
+        sSearchProjectionMap = new HashMap<String, String>(sNotesProjectionMap);
+        sSearchProjectionMap.put(SEARCH_MATCH_INFO, SEARCH_MATCH_INFO);
+        sSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_SNIPPET,
+                NotePad.Notes.COLUMN_NAME_SNIPPET);
+
         /*
          * Creates an initializes a projection map for handling Live Folders
          */
@@ -203,6 +575,17 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         sAttachmentProjectionMap.put(NotePad.Attachments.COLUMN_NAME_FILE_PATH, NotePad.Attachments.COLUMN_NAME_FILE_PATH);
         sAttachmentProjectionMap.put(NotePad.Attachments.COLUMN_NAME_FILE_NAME, NotePad.Attachments.COLUMN_NAME_FILE_NAME);
         sAttachmentProjectionMap.put(NotePad.Attachments.COLUMN_NAME_FILE_SIZE, NotePad.Attachments.COLUMN_NAME_FILE_SIZE);
+        sAttachmentProjectionMap.put(NotePad.Attachments.COLUMN_NAME_CONTENT_HASH, NotePad.Attachments.COLUMN_NAME_CONTENT_HASH);
+
+        /*
+         * Creates and initializes the projection map of a list of revisions
+         */
+        sRevisionProjectionMap = new HashMap<String, String>();
+        sRevisionProjectionMap.put(NotePad.NoteRevisions._ID, NotePad.NoteRevisions._ID);
+        sRevisionProjectionMap.put(NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID,
+                NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID);
+        sRevisionProjectionMap.put(NotePad.NoteRevisions.COLUMN_NAME_CREATE_DATE,
+                NotePad.NoteRevisions.COLUMN_NAME_CREATE_DATE);
     }
 
     /**
@@ -212,10 +595,63 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     */
    static class DatabaseHelper extends SQLiteOpenHelper {
 
+       private final Context mContext;
+
        DatabaseHelper(Context context) {
 
            // calls the super constructor, requesting the default cursor factory.
            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+           mContext = context;
+
+           // Write-ahead logging lets readers use their own connections from the pool, so a
+           // query does not wait for an open write transaction, such as an autosave.
+           if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+               setWriteAheadLoggingEnabled(true);
+           }
+       }
+
+       /**
+        * Enables write-ahead logging where it cannot be set before opening, and applies the
+        * checkpoint policy.
+        */
+       @Override
+       public void onOpen(SQLiteDatabase db) {
+           super.onOpen(db);
+           if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+               db.enableWriteAheadLogging();
+           }
+           int pages = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                   .getInt(KEY_AUTO_CHECKPOINT, -1);
+           if (pages >= 0) {
+               setAutoCheckpoint(db, pages);
+           }
+
+           // Deleting a note deletes its attachments through ON DELETE CASCADE. Enabled here,
+           // after any upgrade, since the upgrades drop and copy the notes table, and a dropped
+           // table would cascade. Writes all run on this primary connection.
+           if (!db.isReadOnly()) {
+               db.execSQL("PRAGMA foreign_keys=ON;");
+           }
+       }
+
+       /**
+        * Sets the number of pages the write-ahead log may grow to before a commit copies it back
+        * into the database. Zero disables automatic checkpoints.
+        *
+        * @return The setting now in effect.
+        */
+       static long setAutoCheckpoint(SQLiteDatabase db, int pages) {
+           // The setting belongs to a connection. Commits checkpoint on the primary connection,
+           // and a transaction is the way to make sure the pragma runs there.
+           db.beginTransactionNonExclusive();
+           try {
+               long result = DatabaseUtils.longForQuery(db,
+                       "PRAGMA wal_autocheckpoint=" + pages, null);
+               db.setTransactionSuccessful();
+               return result;
+           } finally {
+               db.endTransaction();
+           }
        }
 
        /**
@@ -225,14 +661,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         */
        @Override
        public void onCreate(SQLiteDatabase db) {
-           db.execSQL("CREATE TABLE " + NotePad.Notes.TABLE_NAME + " (" 
-                   + NotePad.Notes._ID + " INTEGER PRIMARY KEY," 
-                   + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT," 
-                   + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT," 
-                   + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER," 
-                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER," 
-                   + NotePad.Notes.COLUMN_NAME_CATEGORY + " TEXT"
-                   + ");");
+           createNotesTable(db, NotePad.Notes.TABLE_NAME);
+           createBodyTable(db);
 
            //创建附件表
            db.execSQL("CREATE TABLE " + NotePad.Attachments.TABLE_NAME + " ("
@@ -242,11 +672,407 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                    + NotePad.Attachments.COLUMN_NAME_FILE_PATH + " TEXT NOT NULL," // 存储路径（应用私有目录）
                    + NotePad.Attachments.COLUMN_NAME_FILE_NAME + " TEXT NOT NULL," // 原始文件名
                    + NotePad.Attachments.COLUMN_NAME_FILE_SIZE + " LONG NOT NULL," // 文件大小（字节）
+                   + NotePad.Attachments.COLUMN_NAME_CONTENT_HASH + " TEXT," // 内容的SHA-256
 
                    + "FOREIGN KEY (" + NotePad.Attachments.COLUMN_NAME_NOTE_ID + ") "
                    + "REFERENCES " + NotePad.Notes.TABLE_NAME + "(" + NotePad.Notes._ID + ") "
                    + "ON DELETE CASCADE"
                    + ");");
+
+           createAttachmentTriggers(db);
+           createEditsTable(db);
+           createRevisionsTable(db);
+           createInlineDataTable(db);
+           createFileDeletesTable(db);
+
+           createFullTextIndex(db);
+           createTrigramIndex(db);
+           createIndexes(db);
+       }
+
+       /**
+        * Creates the triggers that keep the attachment count and total size of each note up to
+        * date as its attachments are inserted, deleted or moved, so the list gets them without
+        * querying the attachments.
+        */
+       private static void createAttachmentTriggers(SQLiteDatabase db) {
+           db.execSQL("CREATE TRIGGER IF NOT EXISTS attachments_insert AFTER INSERT ON "
+                   + NotePad.Attachments.TABLE_NAME + " BEGIN "
+                   + addAttachmentSql("+", "new") + " "
+                   + "END;");
+           db.execSQL("CREATE TRIGGER IF NOT EXISTS attachments_delete AFTER DELETE ON "
+                   + NotePad.Attachments.TABLE_NAME + " BEGIN "
+                   + addAttachmentSql("-", "old") + " "
+                   + "END;");
+           db.execSQL("CREATE TRIGGER IF NOT EXISTS attachments_update AFTER UPDATE OF "
+                   + NotePad.Attachments.COLUMN_NAME_NOTE_ID + ", "
+                   + NotePad.Attachments.COLUMN_NAME_FILE_SIZE + " ON "
+                   + NotePad.Attachments.TABLE_NAME + " BEGIN "
+                   + addAttachmentSql("-", "old") + " "
+                   + addAttachmentSql("+", "new") + " "
+                   + "END;");
+       }
+
+       // Returns the statement that adds (sign "+") or subtracts (sign "-") the attachment row
+       // of a trigger to or from the totals of its note.
+       private static String addAttachmentSql(String sign, String row) {
+           return "UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                   + NotePad.Notes.COLUMN_NAME_ATTACHMENT_COUNT + " = "
+                   + NotePad.Notes.COLUMN_NAME_ATTACHMENT_COUNT + " " + sign + " 1, "
+                   + NotePad.Notes.COLUMN_NAME_ATTACHMENT_BYTES + " = "
+                   + NotePad.Notes.COLUMN_NAME_ATTACHMENT_BYTES + " " + sign + " " + row + "."
+                   + NotePad.Attachments.COLUMN_NAME_FILE_SIZE
+                   + " WHERE " + NotePad.Notes._ID + " = " + row + "."
+                   + NotePad.Attachments.COLUMN_NAME_NOTE_ID + ";";
+       }
+
+       /**
+        * Creates the edit journal, its index by note in the order the edits were made, and the
+        * trigger that removes the edits of deleted notes.
+        */
+       private static void createEditsTable(SQLiteDatabase db) {
+           db.execSQL("CREATE TABLE " + EDITS_TABLE_NAME + " ("
+                   + NotePad.NoteEdits._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                   + NotePad.NoteEdits.COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                   + NotePad.NoteEdits.COLUMN_NAME_BASE_LENGTH + " INTEGER NOT NULL,"
+                   + NotePad.NoteEdits.COLUMN_NAME_BASE_HASH + " INTEGER,"
+                   + NotePad.NoteEdits.COLUMN_NAME_POSITION + " INTEGER NOT NULL,"
+                   + NotePad.NoteEdits.COLUMN_NAME_REMOVED + " INTEGER NOT NULL,"
+                   + NotePad.NoteEdits.COLUMN_NAME_INSERTED + " TEXT NOT NULL,"
+                   + NotePad.NoteEdits.COLUMN_NAME_MODIFICATION_DATE + " INTEGER NOT NULL"
+                   + ");");
+           db.execSQL("CREATE INDEX note_edits_note_id ON " + EDITS_TABLE_NAME + " ("
+                   + NotePad.NoteEdits.COLUMN_NAME_NOTE_ID + ", " + NotePad.NoteEdits._ID + ");");
+           db.execSQL("CREATE TRIGGER IF NOT EXISTS note_edits_delete AFTER DELETE ON "
+                   + NotePad.Notes.TABLE_NAME + " BEGIN "
+                   + "DELETE FROM " + EDITS_TABLE_NAME + " WHERE "
+                   + NotePad.NoteEdits.COLUMN_NAME_NOTE_ID + " = old." + NotePad.Notes._ID + "; "
+                   + "END;");
+       }
+
+       /**
+        * Creates the revisions table, its index by note in the order the revisions were saved,
+        * and the trigger that removes the revisions of deleted notes.
+        */
+       private static void createRevisionsTable(SQLiteDatabase db) {
+           db.execSQL("CREATE TABLE " + REVISIONS_TABLE_NAME + " ("
+                   + NotePad.NoteRevisions._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                   + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                   + NotePad.NoteRevisions.COLUMN_NAME_CREATE_DATE + " INTEGER NOT NULL,"
+                   + REVISION_COLUMN_SNAPSHOT + ","
+                   + NoteBodyCodec.COLUMN_NAME_FORMAT + " INTEGER NOT NULL DEFAULT "
+                   + NoteBodyCodec.FORMAT_TEXT + ","
+                   + NotePad.NoteEdits.COLUMN_NAME_BASE_LENGTH + " INTEGER,"
+                   + NotePad.NoteEdits.COLUMN_NAME_POSITION + " INTEGER,"
+                   + NotePad.NoteEdits.COLUMN_NAME_REMOVED + " INTEGER,"
+                   + NotePad.NoteEdits.COLUMN_NAME_INSERTED + " TEXT"
+                   + ");");
+           db.execSQL("CREATE INDEX note_revisions_note_id ON " + REVISIONS_TABLE_NAME + " ("
+                   + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + ", "
+                   + NotePad.NoteRevisions._ID + ");");
+           db.execSQL("CREATE TRIGGER IF NOT EXISTS note_revisions_delete AFTER DELETE ON "
+                   + NotePad.Notes.TABLE_NAME + " BEGIN "
+                   + "DELETE FROM " + REVISIONS_TABLE_NAME + " WHERE "
+                   + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = old."
+                   + NotePad.Notes._ID + "; "
+                   + "END;");
+       }
+
+       /**
+        * Creates the queue of the files of deleted attachments, plus the triggers that queue the
+        * file of an attachment when it is deleted or given another file. Attachments kept in
+        * the database have no file.
+        */
+       private static void createFileDeletesTable(SQLiteDatabase db) {
+           db.execSQL("CREATE TABLE " + FILE_DELETES_TABLE_NAME + " ("
+                   + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                   + FILE_DELETES_COLUMN_FILE_PATH + " TEXT NOT NULL"
+                   + ");");
+           db.execSQL("CREATE TRIGGER IF NOT EXISTS attachments_queue_file_delete AFTER DELETE ON "
+                   + NotePad.Attachments.TABLE_NAME + " WHEN old."
+                   + NotePad.Attachments.COLUMN_NAME_FILE_PATH + " != '' BEGIN "
+                   + queueFileDeleteSql() + " "
+                   + "END;");
+           db.execSQL("CREATE TRIGGER IF NOT EXISTS attachments_queue_file_update AFTER UPDATE OF "
+                   + NotePad.Attachments.COLUMN_NAME_FILE_PATH + " ON "
+                   + NotePad.Attachments.TABLE_NAME + " WHEN old."
+                   + NotePad.Attachments.COLUMN_NAME_FILE_PATH + " != '' AND old."
+                   + NotePad.Attachments.COLUMN_NAME_FILE_PATH + " != new."
+                   + NotePad.Attachments.COLUMN_NAME_FILE_PATH + " BEGIN "
+                   + queueFileDeleteSql() + " "
+                   + "END;");
+       }
+
+       // Returns the statement that queues the file of the old attachment row of a trigger.
+       private static String queueFileDeleteSql() {
+           return "INSERT INTO " + FILE_DELETES_TABLE_NAME + " ("
+                   + FILE_DELETES_COLUMN_FILE_PATH + ") VALUES (old."
+                   + NotePad.Attachments.COLUMN_NAME_FILE_PATH + ");";
+       }
+
+       /**
+        * Creates the table of the content of small attachments, plus the trigger that removes
+        * the content of deleted attachments.
+        */
+       private static void createInlineDataTable(SQLiteDatabase db) {
+           db.execSQL("CREATE TABLE " + INLINE_DATA_TABLE_NAME + " ("
+                   + INLINE_DATA_COLUMN_ATTACHMENT_ID + " INTEGER PRIMARY KEY,"
+                   + INLINE_DATA_COLUMN_DATA + " BLOB NOT NULL"
+                   + ");");
+           db.execSQL("CREATE TRIGGER IF NOT EXISTS attachment_data_delete AFTER DELETE ON "
+                   + NotePad.Attachments.TABLE_NAME + " BEGIN "
+                   + "DELETE FROM " + INLINE_DATA_TABLE_NAME + " WHERE "
+                   + INLINE_DATA_COLUMN_ATTACHMENT_ID + " = old." + NotePad.Attachments._ID
+                   + "; "
+                   + "END;");
+       }
+
+       /**
+        * Adds the attachment totals to a notes table created before version 13, then computes
+        * them for every note.
+        */
+       private static void addAttachmentTotals(SQLiteDatabase db, boolean addColumns) {
+           if (addColumns) {
+               db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                       + NotePad.Notes.COLUMN_NAME_ATTACHMENT_COUNT
+                       + " INTEGER NOT NULL DEFAULT 0;");
+               db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                       + NotePad.Notes.COLUMN_NAME_ATTACHMENT_BYTES
+                       + " INTEGER NOT NULL DEFAULT 0;");
+           }
+           String attachmentsOfNote = " FROM " + NotePad.Attachments.TABLE_NAME + " WHERE "
+                   + NotePad.Attachments.COLUMN_NAME_NOTE_ID + " = " + NotePad.Notes.TABLE_NAME
+                   + "." + NotePad.Notes._ID + ")";
+           db.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                   + NotePad.Notes.COLUMN_NAME_ATTACHMENT_COUNT + " = (SELECT COUNT(*)"
+                   + attachmentsOfNote + ", "
+                   + NotePad.Notes.COLUMN_NAME_ATTACHMENT_BYTES + " = (SELECT IFNULL(SUM("
+                   + NotePad.Attachments.COLUMN_NAME_FILE_SIZE + "), 0)" + attachmentsOfNote
+                   + ";");
+           createAttachmentTriggers(db);
+       }
+
+       /**
+        * Creates a table with the columns of the notes table. The bodies are in
+        * {@link #BODY_TABLE_NAME}.
+        */
+       private static void createNotesTable(SQLiteDatabase db, String name) {
+           db.execSQL("CREATE TABLE " + name + " ("
+                   + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
+                   + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
+                   + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY + " TEXT,"
+                   + NotePad.Notes.COLUMN_NAME_PREVIEW + " TEXT NOT NULL DEFAULT '',"
+                   + NotePad.Notes.COLUMN_NAME_BODY_LENGTH + " INTEGER NOT NULL DEFAULT 0,"
+                   + NotePad.Notes.COLUMN_NAME_WORD_COUNT + " INTEGER NOT NULL DEFAULT 0,"
+                   + NotePad.Notes.COLUMN_NAME_ATTACHMENT_COUNT + " INTEGER NOT NULL DEFAULT 0,"
+                   + NotePad.Notes.COLUMN_NAME_ATTACHMENT_BYTES + " INTEGER NOT NULL DEFAULT 0"
+                   + ");");
+       }
+
+       /**
+        * Adds the columns derived from the body to a notes table created before version 12.
+        */
+       private static void addSummaryColumns(SQLiteDatabase db) {
+           db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                   + NotePad.Notes.COLUMN_NAME_PREVIEW + " TEXT NOT NULL DEFAULT '';");
+           db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                   + NotePad.Notes.COLUMN_NAME_BODY_LENGTH + " INTEGER NOT NULL DEFAULT 0;");
+           db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                   + NotePad.Notes.COLUMN_NAME_WORD_COUNT + " INTEGER NOT NULL DEFAULT 0;");
+       }
+
+       /**
+        * Computes the columns derived from the body of every note.
+        */
+       private static void summarizeNotes(SQLiteDatabase db) {
+           Cursor c = NoteBodyCodec.wrap(db.query(NOTES_WITH_BODIES, READ_NOTE_PROJECTION,
+                   null, null, null, null, null), NotePad.Notes.COLUMN_NAME_NOTE);
+           try {
+               ContentValues values = new ContentValues();
+               while (c.moveToNext()) {
+                   NoteSummary.putSummary(values, c.getString(READ_NOTE_NOTE_INDEX));
+                   db.update(NotePad.Notes.TABLE_NAME, values, NotePad.Notes._ID + " = ?",
+                           new String[] { c.getString(0) });
+               }
+           } finally {
+               c.close();
+           }
+       }
+
+       /**
+        * Creates the table of note bodies, plus the trigger that removes the bodies of deleted
+        * notes.
+        */
+       private static void createBodyTable(SQLiteDatabase db) {
+           db.execSQL("CREATE TABLE " + BODY_TABLE_NAME + " ("
+                   + BODY_COLUMN_NOTE_ID + " INTEGER PRIMARY KEY,"
+                   + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
+                   + NoteBodyCodec.COLUMN_NAME_FORMAT + " INTEGER NOT NULL DEFAULT "
+                   + NoteBodyCodec.FORMAT_TEXT
+                   + ");");
+           createBodyTrigger(db);
+       }
+
+       /**
+        * Compresses the stored bodies that are long enough. Each body is read with a statement
+        * rather than a cursor, since a body of several megabytes does not fit in a cursor
+        * window.
+        */
+       private static void compressBodies(SQLiteDatabase db) {
+           ArrayList<Long> ids = new ArrayList<Long>();
+           Cursor c = db.query(BODY_TABLE_NAME, new String[] { BODY_COLUMN_NOTE_ID },
+                   NoteBodyCodec.COLUMN_NAME_FORMAT + " = " + NoteBodyCodec.FORMAT_TEXT
+                   + " AND length(" + NotePad.Notes.COLUMN_NAME_NOTE + ") >= "
+                   + NoteBodyCodec.COMPRESSION_THRESHOLD, null, null, null, null);
+           try {
+               while (c.moveToNext()) {
+                   ids.add(c.getLong(0));
+               }
+           } finally {
+               c.close();
+           }
+
+           SQLiteStatement read = db.compileStatement("SELECT "
+                   + NotePad.Notes.COLUMN_NAME_NOTE + " FROM " + BODY_TABLE_NAME
+                   + " WHERE " + BODY_COLUMN_NOTE_ID + " = ?");
+           try {
+               for (long id : ids) {
+                   read.bindLong(1, id);
+                   ContentValues values = new ContentValues();
+                   NoteBodyCodec.putBody(values, NotePad.Notes.COLUMN_NAME_NOTE,
+                           read.simpleQueryForString());
+                   db.update(BODY_TABLE_NAME, values, BODY_COLUMN_NOTE_ID + " = ?",
+                           new String[] { String.valueOf(id) });
+               }
+           } finally {
+               read.close();
+           }
+       }
+
+       private static void createBodyTrigger(SQLiteDatabase db) {
+           db.execSQL("CREATE TRIGGER IF NOT EXISTS note_bodies_delete AFTER DELETE ON "
+                   + NotePad.Notes.TABLE_NAME + " BEGIN "
+                   + "DELETE FROM " + BODY_TABLE_NAME + " WHERE " + BODY_COLUMN_NOTE_ID
+                   + " = old." + NotePad.Notes._ID + "; "
+                   + "END;");
+       }
+
+       /**
+        * Moves the note bodies out of the notes table into their own table. SQLite cannot drop
+        * a column, so the notes table is copied without it; dropping the old table drops its
+        * indexes and triggers, which are created again.
+        */
+       private static void splitNoteBodies(SQLiteDatabase db) {
+           createBodyTable(db);
+           db.execSQL("INSERT INTO " + BODY_TABLE_NAME + " (" + BODY_COLUMN_NOTE_ID + ", "
+                   + NotePad.Notes.COLUMN_NAME_NOTE + ") SELECT " + NotePad.Notes._ID + ", "
+                   + NotePad.Notes.COLUMN_NAME_NOTE + " FROM " + NotePad.Notes.TABLE_NAME);
+
+           String columns = NotePad.Notes._ID + ", "
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                   + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY;
+           createNotesTable(db, "notes_new");
+           db.execSQL("INSERT INTO notes_new (" + columns + ") SELECT " + columns + " FROM "
+                   + NotePad.Notes.TABLE_NAME);
+           db.execSQL("DROP TABLE " + NotePad.Notes.TABLE_NAME);
+           db.execSQL("ALTER TABLE notes_new RENAME TO " + NotePad.Notes.TABLE_NAME);
+
+           createDeleteTriggers(db);
+           createBodyTrigger(db);
+           createIndexes(db);
+       }
+
+       /**
+        * Creates the indexes for the queries that run most often. The notes list reads _id,
+        * title, modified and category sorted by modified and _id, with or without a category
+        * filter, so both notes indexes cover it, need no sorting and let a page start with a
+        * seek to its (modified, _id) key. The editor reads the attachments of one note in _id
+        * order, which is the order of the rows within one note_id in its index.
+        */
+       private static void createIndexes(SQLiteDatabase db) {
+           db.execSQL("CREATE INDEX IF NOT EXISTS notes_modified ON " + NotePad.Notes.TABLE_NAME
+                   + " (" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                   + NotePad.Notes._ID + ", "
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY + ");");
+           db.execSQL("CREATE INDEX IF NOT EXISTS notes_category_modified ON "
+                   + NotePad.Notes.TABLE_NAME
+                   + " (" + NotePad.Notes.COLUMN_NAME_CATEGORY + ", "
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                   + NotePad.Notes._ID + ", "
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ");");
+           db.execSQL("CREATE INDEX IF NOT EXISTS attachments_note_id ON "
+                   + NotePad.Attachments.TABLE_NAME
+                   + " (" + NotePad.Attachments.COLUMN_NAME_NOTE_ID + ");");
+           // Counts the references to a file when an attachment is deleted
+           db.execSQL("CREATE INDEX IF NOT EXISTS attachments_file_path ON "
+                   + NotePad.Attachments.TABLE_NAME
+                   + " (" + NotePad.Attachments.COLUMN_NAME_FILE_PATH + ");");
+       }
+
+       /**
+        * Creates the full-text index over note titles and bodies, plus the trigger that removes
+        * the index entries of deleted notes. Entries are written by {@link #indexNote}.
+        */
+       private static void createFullTextIndex(SQLiteDatabase db) {
+           db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4("
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ","
+                   + NotePad.Notes.COLUMN_NAME_NOTE
+                   + ");");
+           createFullTextTrigger(db);
+       }
+
+       private static void createFullTextTrigger(SQLiteDatabase db) {
+           db.execSQL("CREATE TRIGGER IF NOT EXISTS notes_fts_delete AFTER DELETE ON "
+                   + NotePad.Notes.TABLE_NAME + " BEGIN "
+                   + "DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old." + NotePad.Notes._ID + "; "
+                   + "END;");
+       }
+
+       /**
+        * Creates the triggers of the notes table that remove the full-text and trigram index
+        * entries of deleted notes.
+        */
+       private static void createDeleteTriggers(SQLiteDatabase db) {
+           createFullTextTrigger(db);
+           createTrigramTrigger(db);
+       }
+
+       /**
+        * Creates the trigram index of note titles and bodies, plus the trigger that removes the
+        * trigrams of deleted notes. The primary key serves the lookups by trigram, and the note
+        * index serves updates and deletes. Rows are written by {@link #indexNote}.
+        */
+       private static void createTrigramIndex(SQLiteDatabase db) {
+           db.execSQL("CREATE TABLE " + TRIGRAM_TABLE_NAME + " ("
+                   + TRIGRAM_COLUMN_TRIGRAM + " TEXT NOT NULL,"
+                   + TRIGRAM_COLUMN_NOTE_ID + " INTEGER NOT NULL,"
+                   + "PRIMARY KEY (" + TRIGRAM_COLUMN_TRIGRAM + ", " + TRIGRAM_COLUMN_NOTE_ID + ")"
+                   + ");");
+           db.execSQL("CREATE INDEX note_trigrams_note_id ON " + TRIGRAM_TABLE_NAME
+                   + " (" + TRIGRAM_COLUMN_NOTE_ID + ");");
+           createTrigramTrigger(db);
+       }
+
+       private static void createTrigramTrigger(SQLiteDatabase db) {
+           db.execSQL("CREATE TRIGGER IF NOT EXISTS note_trigrams_delete AFTER DELETE ON "
+                   + NotePad.Notes.TABLE_NAME + " BEGIN "
+                   + "DELETE FROM " + TRIGRAM_TABLE_NAME + " WHERE " + TRIGRAM_COLUMN_NOTE_ID
+                   + " = old." + NotePad.Notes._ID + "; "
+                   + "END;");
+       }
+
+       /**
+        * Re-creates the full-text and trigram index entries of every note.
+        */
+       private static void rebuildIndexes(SQLiteDatabase db) {
+           db.execSQL("DELETE FROM " + FTS_TABLE_NAME);
+           db.execSQL("DELETE FROM " + TRIGRAM_TABLE_NAME);
+           reindexNotes(db, null, null);
        }
 
        /**
@@ -263,6 +1089,14 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
            Log.w(TAG, "Upgrading database from version " + oldVersion + " to " 
                    + newVersion + ", which will destroy all old data");
 
+           // 旧版本处理（保留原有逻辑，避免删除笔记表）
+           // onCreate() already builds the current schema, so no further steps may run after it.
+           if (oldVersion < 2) {
+               db.execSQL("DROP TABLE IF EXISTS notes");
+               onCreate(db);
+               return;
+           }
+
            //新建附件表
            if (oldVersion < 3) {
                db.execSQL("CREATE TABLE IF NOT EXISTS " + NotePad.Attachments.TABLE_NAME + " (" 
@@ -284,13 +1118,100 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                        + NotePad.Notes.COLUMN_NAME_CATEGORY + " TEXT;");
            }
 
-           // 旧版本处理（保留原有逻辑，避免删除笔记表）
-           if (oldVersion < 2) {
-               db.execSQL("DROP TABLE IF EXISTS notes");
-               onCreate(db);
+           // 全文检索索引：建表和删除触发器
+           if (oldVersion < 5) {
+               createFullTextIndex(db);
+           }
+
+           // CJK分词：索引不再由触发器写入，按新的分词方式为已有笔记重建索引（见下）
+           if (oldVersion < 6) {
+               db.execSQL("DROP TRIGGER IF EXISTS notes_fts_insert");
+               db.execSQL("DROP TRIGGER IF EXISTS notes_fts_update");
+           }
+
+           // 三元组索引：建表、索引和删除触发器。重建时会同时写入全文检索和三元组索引，
+           // 所以两个索引都在这里统一重建
+           if (oldVersion < 7) {
+               createTrigramIndex(db);
+           }
+
+           // 查询索引：在原表上直接建立，不需要重建表或迁移数据。
+           // 版本9的列表索引多了_id列，所以先删除版本8建立的旧索引
+           if (oldVersion < 9) {
+               db.execSQL("DROP INDEX IF EXISTS notes_modified");
+               db.execSQL("DROP INDEX IF EXISTS notes_category_modified");
+               createIndexes(db);
+           }
+
+           // 笔记正文移到单独的表：复制出不含正文列的notes表，重建它的触发器和索引
+           if (oldVersion < 10) {
+               splitNoteBodies(db);
+           }
+
+           // 正文压缩：版本10建立的正文表需要加上format列（更早的版本在上面建表时已包含），
+           // 然后压缩已有的长正文
+           if (oldVersion < 11) {
+               if (oldVersion == 10) {
+                   db.execSQL("ALTER TABLE " + BODY_TABLE_NAME + " ADD COLUMN "
+                           + NoteBodyCodec.COLUMN_NAME_FORMAT + " INTEGER NOT NULL DEFAULT "
+                           + NoteBodyCodec.FORMAT_TEXT + ";");
+               }
+               compressBodies(db);
+           }
+
+           // 正文派生列：版本10、11的notes表需要加列（更早的版本在拆分正文时已建好），然后计算
+           if (oldVersion < 12) {
+               if (oldVersion >= 10) {
+                   addSummaryColumns(db);
+               }
+               summarizeNotes(db);
+           }
+
+           // 附件数量和总大小：版本10到12的notes表需要加列（更早的版本在拆分正文时已建好）
+           if (oldVersion < 13) {
+               addAttachmentTotals(db, oldVersion >= 10);
+           }
+
+           // 编辑日志表
+           if (oldVersion < 14) {
+               createEditsTable(db);
+           }
+
+           // 历史版本表：已有笔记在正文下次修改时才保存第一个版本
+           if (oldVersion < 15) {
+               createRevisionsTable(db);
+           }
+
+           // 附件去重：已有附件的文件各自只有一个引用，不需要迁移，只加列和按路径的索引
+           if (oldVersion < 16) {
+               db.execSQL("ALTER TABLE " + NotePad.Attachments.TABLE_NAME + " ADD COLUMN "
+                       + NotePad.Attachments.COLUMN_NAME_CONTENT_HASH + " TEXT;");
+               createIndexes(db);
+           }
+
+           // 小附件存在数据库中：已有附件仍是文件，两种存储方式都可以读取，不需要迁移
+           if (oldVersion < 17) {
+               createInlineDataTable(db);
+           }
+
+           // 文件删除队列。外键此前没有生效，已删除笔记的附件还在，删除它们并让文件进入队列
+           if (oldVersion < 18) {
+               createFileDeletesTable(db);
+               db.execSQL("DELETE FROM " + NotePad.Attachments.TABLE_NAME + " WHERE "
+                       + NotePad.Attachments.COLUMN_NAME_NOTE_ID + " NOT IN (SELECT "
+                       + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME + ");");
            }
 
+           // 编辑的base_hash列（版本14以前的编辑日志表在上面创建时已有）
+           if (oldVersion < 19 && oldVersion >= 14) {
+               db.execSQL("ALTER TABLE " + EDITS_TABLE_NAME + " ADD COLUMN "
+                       + NotePad.NoteEdits.COLUMN_NAME_BASE_HASH + " INTEGER;");
+           }
 
+           // 重建索引需要读取正文，所以在所有表结构变更完成后进行
+           if (oldVersion < 7) {
+               rebuildIndexes(db);
+           }
 
 //           // Kills the table and existing data
 //           db.execSQL("DROP TABLE IF EXISTS notes");
@@ -313,6 +1234,21 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
        // something tries to access it, and it's only created if it doesn't already exist.
        mOpenHelper = new DatabaseHelper(getContext());
 
+       // Change notifications are delivered on the main thread, where the observers of the
+       // note list run
+       mNotifier = new NotificationCoalescer(getContext().getContentResolver(),
+               Looper.getMainLooper(), NOTIFY_QUIET_PERIOD_MILLIS, NOTIFY_MAX_DELAY_MILLIS);
+
+       // Applies the edits left by a previous process soon after start, off the main thread
+       mCompactionThread = new HandlerThread("NotePadCompaction",
+               Process.THREAD_PRIORITY_BACKGROUND);
+       mCompactionThread.start();
+       mCompactionHandler = new Handler(mCompactionThread.getLooper());
+       scheduleCompaction();
+
+       // Deletes the files queued or left by a previous process, once the edits are applied
+       mCompactionHandler.postDelayed(mReconcileFiles, EDIT_COMPACTION_DELAY_MILLIS);
+
        // Assumes that any failures will be reported by a thrown exception.
        return true;
    }
@@ -334,6 +1270,9 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
        qb.setTables(NotePad.Notes.TABLE_NAME);
 
+       // The number of rows of a page, or null for all rows
+       String limit = null;
+
        /**
         * Choose the projection and adjust the "where" clause based on URI pattern-matching.
         */
@@ -341,24 +1280,54 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
            // If the incoming URI is for notes, chooses the Notes projection
            case NOTES:
                qb.setProjectionMap(sNotesProjectionMap);
+               if (uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT) != null
+                       || uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER) != null) {
+                   if (!TextUtils.isEmpty(sortOrder)
+                           && !NotePad.Notes.DEFAULT_SORT_ORDER.equals(sortOrder)
+                           && !NotePad.Notes.PAGE_SORT_ORDER.equals(sortOrder)) {
+                       throw new IllegalArgumentException("Pages are sorted by "
+                               + NotePad.Notes.PAGE_SORT_ORDER + ", not " + sortOrder);
+                   }
+                   sortOrder = NotePad.Notes.PAGE_SORT_ORDER;
+                   limit = parsePageLimit(uri);
+                   selectionArgs = appendPageStart(qb, uri, selectionArgs);
+               }
                break;
 
            /* If the incoming URI is for a single note identified by its ID, chooses the
-            * note ID projection, and appends "_ID = <noteID>" to the where clause, so that
-            * it selects that single note
+            * note ID projection, and appends "_ID = ?" to the where clause, so that
+            * it selects that single note. The ID is bound rather than written into the SQL, so
+            * every note shares one compiled statement.
             */
            case NOTE_ID:
                qb.setProjectionMap(sNotesProjectionMap);
-               qb.appendWhere(
-                   NotePad.Notes._ID +    // the name of the ID column
-                   "=" +
-                   // the position of the note ID itself in the incoming URI
-                   uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+               qb.appendWhere(NotePad.Notes._ID + " = ?");
+               selectionArgs = DatabaseUtils.appendSelectionArgs(new String[] {
+                       // the position of the note ID itself in the incoming URI
+                       uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION)
+               }, selectionArgs);
                break;
 
-           case LIVE_FOLDER_NOTES:
-               // If the incoming URI is from a live folder, chooses the live folder projection.
-               qb.setProjectionMap(sLiveFolderProjectionMap);
+           // If the incoming URI is a search, ranks the notes that match in the FTS index
+           case SEARCH:
+               // The full-text index must include the pending edits
+               compactEdits(-1);
+               return querySearch(uri, projection, selection, selectionArgs, sortOrder);
+
+           /* If the incoming URI is a fuzzy search, restricts the notes to those that contain
+            * the search text with at most the allowed number of errors.
+            */
+           case FUZZY_SEARCH:
+               // The trigram index must include the pending edits
+               compactEdits(-1);
+               qb.setProjectionMap(sNotesProjectionMap);
+               qb.appendWhere(NotePad.Notes._ID + " IN (" + TextUtils.join(",",
+                       findFuzzyMatches(uri)) + ")");
+               break;
+
+           case LIVE_FOLDER_NOTES:
+               // If the incoming URI is from a live folder, chooses the live folder projection.
+               qb.setProjectionMap(sLiveFolderProjectionMap);
                break;
                //新增对附件表的查询
            case ATTACHMENTS: // 查询所有附件
@@ -368,15 +1337,49 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
            case ATTACHMENT_ID: // 查询单个附件（通过ID）
                qb.setTables(NotePad.Attachments.TABLE_NAME);
                qb.setProjectionMap(sAttachmentProjectionMap);
-               qb.appendWhere(NotePad.Attachments._ID + "=" + uri.getPathSegments().get(1));
+               qb.appendWhere(NotePad.Attachments._ID + " = ?");
+               selectionArgs = DatabaseUtils.appendSelectionArgs(
+                       new String[] { uri.getPathSegments().get(1) }, selectionArgs);
                break;
            case NOTE_ATTACHMENTS: // 查询某条笔记的所有附件
                qb.setTables(NotePad.Attachments.TABLE_NAME);
                qb.setProjectionMap(sAttachmentProjectionMap);
                String noteId = uri.getPathSegments().get(1); // 从URI中获取笔记ID
-               qb.appendWhere(NotePad.Attachments.COLUMN_NAME_NOTE_ID + "=" + noteId);
+               qb.appendWhere(NotePad.Attachments.COLUMN_NAME_NOTE_ID + " = ?");
+               selectionArgs = DatabaseUtils.appendSelectionArgs(
+                       new String[] { noteId }, selectionArgs);
                break;
 
+           // If the incoming URI is for the edits of a note, returns its pending edits
+           case NOTE_EDITS:
+               qb.setTables(EDITS_TABLE_NAME);
+               qb.appendWhere(NotePad.NoteEdits.COLUMN_NAME_NOTE_ID + " = ?");
+               selectionArgs = DatabaseUtils.appendSelectionArgs(new String[] {
+                       uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION)
+               }, selectionArgs);
+               break;
+
+           // If the incoming URI is for the revisions of a note, lists them without their bodies
+           case NOTE_REVISIONS:
+               // The newest revision is saved when the pending edits are applied
+               compactEdits(Long.parseLong(
+                       uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION)));
+               qb.setTables(REVISIONS_TABLE_NAME);
+               qb.setProjectionMap(sRevisionProjectionMap);
+               qb.appendWhere(NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = ?");
+               selectionArgs = DatabaseUtils.appendSelectionArgs(new String[] {
+                       uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION)
+               }, selectionArgs);
+               break;
+
+           // If the incoming URI is for a single revision, rebuilds its body
+           case NOTE_REVISION_ID:
+               return queryRevision(uri, projection);
+
+           // If the incoming URI is for the content of an attachment, describes it as a file
+           case ATTACHMENT_DATA:
+               return queryAttachmentData(uri, projection);
+
            default:
                throw new IllegalArgumentException("Unknown URI " + uri);
        }
@@ -388,6 +1391,11 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
            //附件按ID升序
            if (sUriMatcher.match(uri) == ATTACHMENTS || sUriMatcher.match(uri) == NOTE_ATTACHMENTS) {
                orderBy = NotePad.Attachments.DEFAULT_SORT_ORDER;
+           } else if (sUriMatcher.match(uri) == NOTE_EDITS) {
+               // 编辑按发生的顺序
+               orderBy = NotePad.NoteEdits._ID;
+           } else if (sUriMatcher.match(uri) == NOTE_REVISIONS) {
+               orderBy = NotePad.NoteRevisions.DEFAULT_SORT_ORDER;
            } else {
                orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
            }
@@ -395,6 +1403,18 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
            orderBy = sortOrder;
        }
 
+       // Notes are only joined with their bodies if the body is read or filtered on. Live
+       // folders never return it.
+       if (NotePad.Notes.TABLE_NAME.equals(qb.getTables())
+               && (projection == null ? sUriMatcher.match(uri) != LIVE_FOLDER_NOTES
+                       : mentionsBody(TextUtils.join(",", projection))
+                       || mentionsBody(selection) || mentionsBody(orderBy))) {
+           qb.setTables(NOTES_WITH_BODIES);
+           // The bodies read must include the pending edits
+           compactEdits(sUriMatcher.match(uri) == NOTE_ID ? Long.parseLong(
+                   uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION)) : -1);
+       }
+
        // Opens the database object in "read" mode, since no writes need to be done.
        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
 
@@ -410,14 +1430,524 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
            selectionArgs, // The values for the where clause
            null,          // don't group the rows
            null,          // don't filter by row groups
-           orderBy        // The sort order
+           orderBy,       // The sort order
+           limit          // The page size
        );
 
-       // Tells the Cursor what URI to watch, so it knows when its source data changes
-       c.setNotificationUri(getContext().getContentResolver(), uri);
+       // Returns compressed bodies as text
+       c = NoteBodyCodec.wrap(c, NotePad.Notes.COLUMN_NAME_NOTE);
+
+       // Tells the Cursor what URI to watch, so it knows when its source data changes. Fuzzy
+       // search results depend on every note, so they watch the notes URI.
+       if (sUriMatcher.match(uri) == FUZZY_SEARCH) {
+           c.setNotificationUri(getContext().getContentResolver(), NotePad.Notes.CONTENT_URI);
+       } else {
+           c.setNotificationUri(getContext().getContentResolver(), uri);
+       }
        return c;
    }
 
+   /**
+    * Returns the page size of a paged notes URI.
+    *
+    * @return The page size, or null if the URI only has a page start.
+    * @throws IllegalArgumentException if the page size is not a positive number.
+    */
+   private static String parsePageLimit(Uri uri) {
+       String limit = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT);
+       if (limit == null) {
+           return null;
+       }
+       try {
+           if (Integer.parseInt(limit) > 0) {
+               return limit;
+           }
+       } catch (NumberFormatException e) {
+           // Falls through to the exception below
+       }
+       throw new IllegalArgumentException("Invalid page size in " + uri);
+   }
+
+   /**
+    * Restricts a paged notes query to the rows after the (modified, _id) key of its page start
+    * token, if the URI has one. The first condition alone is a range on the leading column of
+    * the list indexes, so the query seeks to the page start instead of reading the rows before.
+    *
+    * @return The selection arguments, preceded by the arguments of the page start.
+    * @throws IllegalArgumentException if the page start token is not valid.
+    */
+   private static String[] appendPageStart(SQLiteQueryBuilder qb, Uri uri,
+           String[] selectionArgs) {
+       String after = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER);
+       if (after == null) {
+           return selectionArgs;
+       }
+       String[] key = after.split(",");
+       try {
+           if (key.length != 2) {
+               throw new NumberFormatException();
+           }
+           long modified = Long.parseLong(key[0].trim());
+           long id = Long.parseLong(key[1].trim());
+           qb.appendWhere(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " <= ? AND ("
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " < ? OR "
+                   + NotePad.Notes._ID + " < ?)");
+           return DatabaseUtils.appendSelectionArgs(new String[] {
+                   String.valueOf(modified), String.valueOf(modified), String.valueOf(id)
+           }, selectionArgs);
+       } catch (NumberFormatException e) {
+           throw new IllegalArgumentException("Invalid page start in " + uri);
+       }
+   }
+
+   /**
+    * Finds the notes that contain the search text of a fuzzy search URI. The trigram index
+    * yields the notes that share enough trigrams with the search text, best first, and at most
+    * MAX_FUZZY_CANDIDATES of them are read and checked.
+    *
+    * @return The ids of the matching notes. Empty if the search text is shorter than three
+    * characters.
+    * @throws IllegalArgumentException if the distance parameter is not a number.
+    */
+   private ArrayList<Long> findFuzzyMatches(Uri uri) {
+       ArrayList<Long> matches = new ArrayList<Long>();
+       String query = NoteTrigrams.normalizeQuery(
+               uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH));
+       Set<String> trigrams = NoteTrigrams.trigrams(query);
+       if (trigrams.isEmpty()) {
+           return matches;
+       }
+
+       int distance = NoteTrigrams.defaultDistance(query);
+       String distanceParameter = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_DISTANCE);
+       if (distanceParameter != null) {
+           try {
+               distance = Math.max(0, Integer.parseInt(distanceParameter));
+           } catch (NumberFormatException e) {
+               throw new IllegalArgumentException("Invalid distance in " + uri);
+           }
+       }
+       // Each error removes at most three trigrams, and at least one must remain to find the
+       // candidates
+       distance = Math.min(distance, (trigrams.size() - 1) / 3);
+
+       StringBuilder candidatesSql = new StringBuilder("SELECT " + TRIGRAM_COLUMN_NOTE_ID
+               + " FROM " + TRIGRAM_TABLE_NAME + " WHERE " + TRIGRAM_COLUMN_TRIGRAM + " IN (");
+       String[] args = trigrams.toArray(new String[trigrams.size()]);
+       for (int i = 0; i < args.length; i++) {
+           candidatesSql.append(i == 0 ? "?" : ",?");
+       }
+       // The counts are written as numbers, since a bound string never equals a count
+       candidatesSql.append(") GROUP BY " + TRIGRAM_COLUMN_NOTE_ID
+               + " HAVING COUNT(*) >= " + (trigrams.size() - 3 * distance)
+               + " ORDER BY COUNT(*) DESC LIMIT " + MAX_FUZZY_CANDIDATES);
+
+       SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+       ArrayList<Long> candidates = new ArrayList<Long>();
+       Cursor c = db.rawQuery(candidatesSql.toString(), args);
+       try {
+           while (c.moveToNext()) {
+               candidates.add(c.getLong(0));
+           }
+       } finally {
+           c.close();
+       }
+       if (candidates.isEmpty()) {
+           return matches;
+       }
+
+       c = NoteBodyCodec.wrap(db.query(NOTES_WITH_BODIES, READ_NOTE_PROJECTION,
+               NotePad.Notes._ID + " IN (" + TextUtils.join(",", candidates) + ")",
+               null, null, null, null), NotePad.Notes.COLUMN_NAME_NOTE);
+       try {
+           while (c.moveToNext()) {
+               String text = NoteTrigrams.normalizeNote(c.getString(READ_NOTE_TITLE_INDEX),
+                       c.getString(READ_NOTE_NOTE_INDEX));
+               if (NoteTrigrams.substringDistance(query, text, distance) <= distance) {
+                   matches.add(c.getLong(0));
+               }
+           }
+       } finally {
+           c.close();
+       }
+       return matches;
+   }
+
+   /**
+    * Searches the notes whose title or body match the search text in the FTS index, instead of
+    * scanning every note. The rank and snippet are computed here from the FTS statistics and the
+    * indexed text, so clients never need to read note bodies to show a result. Search text
+    * without searchable words matches no notes. With a limit, only that many results are kept:
+    * the best ranked ones, or with a sort order the first ones, read by the query itself.
+    *
+    * @return A cursor with the requested columns. Without a sort order, the rows are ordered by
+    * descending rank, and equally ranked notes by modification date.
+    * @throws IllegalArgumentException if the limit is not a positive number.
+    */
+   private Cursor querySearch(Uri uri, String[] projection, String selection,
+           String[] selectionArgs, String sortOrder) {
+       if (projection == null) {
+           projection = new String[] {
+                   NotePad.Notes._ID,
+                   NotePad.Notes.COLUMN_NAME_TITLE,
+                   NotePad.Notes.COLUMN_NAME_NOTE,
+                   NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+                   NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                   NotePad.Notes.COLUMN_NAME_CATEGORY,
+                   NotePad.Notes.COLUMN_NAME_SEARCH_RANK,
+                   NotePad.Notes.COLUMN_NAME_SNIPPET
+           };
+       }
+
+       // Search results depend on every note, so they watch the notes URI rather than the
+       // search URI.
+       String matchQuery = NoteTokenizer.toMatchQuery(
+               uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH));
+       if (matchQuery == null) {
+           // Text without searchable words, such as punctuation, matches nothing rather than
+           // reading every note
+           MatrixCursor empty = new MatrixCursor(projection, 0);
+           empty.setNotificationUri(getContext().getContentResolver(),
+                   NotePad.Notes.CONTENT_URI);
+           return empty;
+       }
+       String limit = parsePageLimit(uri);
+
+       SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+       qb.setTables(SEARCH_TABLES);
+       qb.setProjectionMap(sSearchProjectionMap);
+       // The MATCH placeholder precedes any placeholders in the caller's selection
+       selectionArgs = DatabaseUtils.appendSelectionArgs(
+               new String[] { matchQuery }, selectionArgs);
+
+       // Reads the requested columns except the rank, which is computed from the match
+       // information, followed by the columns the rank and snippet are made from
+       ArrayList<String> columns = new ArrayList<String>(projection.length + 3);
+       for (String column : projection) {
+           if (!NotePad.Notes.COLUMN_NAME_SEARCH_RANK.equals(column)) {
+               columns.add(column);
+           }
+       }
+       int modifiedIndex = columns.size();
+       columns.add(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+       columns.add(SEARCH_MATCH_INFO);
+       columns.add(NotePad.Notes.COLUMN_NAME_SNIPPET);
+
+       // Results only need the bodies if the body is read or filtered on
+       if (columns.contains(NotePad.Notes.COLUMN_NAME_NOTE) || mentionsBody(selection)
+               || mentionsBody(sortOrder)) {
+           qb.setTables(SEARCH_TABLES + " LEFT JOIN " + BODY_TABLE_NAME + " ON "
+                   + BODY_TABLE_NAME + "." + BODY_COLUMN_NOTE_ID + " = "
+                   + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID);
+       }
+
+       // In the caller's order the query stops at the limit. By rank every match is read, since
+       // the rank is computed here, but only the best ranked rows are kept.
+       boolean byRank = TextUtils.isEmpty(sortOrder);
+       SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+       Cursor c = NoteBodyCodec.wrap(qb.query(db, columns.toArray(new String[columns.size()]),
+               selection, selectionArgs, null, null,
+               byRank ? NotePad.Notes.DEFAULT_SORT_ORDER : sortOrder, byRank ? null : limit),
+               NotePad.Notes.COLUMN_NAME_NOTE);
+
+       final ArrayList<Object[]> rows = new ArrayList<Object[]>();
+       final ArrayList<Double> ranks = new ArrayList<Double>();
+       // The rows kept, worst first: lowest rank, then latest in the default order
+       PriorityQueue<Integer> kept = null;
+       int maxRows = 0;
+       if (byRank && limit != null) {
+           maxRows = Integer.parseInt(limit);
+           kept = new PriorityQueue<Integer>(11, new Comparator<Integer>() {
+               @Override
+               public int compare(Integer lhs, Integer rhs) {
+                   int result = Double.compare(ranks.get(lhs), ranks.get(rhs));
+                   return result != 0 ? result : rhs.compareTo(lhs);
+               }
+           });
+       }
+       long now = System.currentTimeMillis();
+       try {
+           while (c.moveToNext()) {
+               double rank = computeSearchRank(c.getBlob(modifiedIndex + 1),
+                       c.getLong(modifiedIndex), now);
+               String snippet = snippetToHtml(NoteTokenizer.fromIndexText(
+                       c.getString(modifiedIndex + 2)));
+
+               Object[] row = new Object[projection.length];
+               int column = 0;
+               for (int i = 0; i < projection.length; i++) {
+                   if (NotePad.Notes.COLUMN_NAME_SEARCH_RANK.equals(projection[i])) {
+                       row[i] = rank;
+                   } else if (NotePad.Notes.COLUMN_NAME_SNIPPET.equals(projection[i])) {
+                       row[i] = snippet;
+                       column++;
+                   } else {
+                       row[i] = getValue(c, column++);
+                   }
+               }
+               rows.add(row);
+               ranks.add(rank);
+               if (kept != null) {
+                   kept.add(rows.size() - 1);
+                   if (kept.size() > maxRows) {
+                       rows.set(kept.poll(), null);
+                   }
+               }
+           }
+       } finally {
+           c.close();
+       }
+
+       ArrayList<Integer> indexes = new ArrayList<Integer>(kept != null ? kept.size() : rows.size());
+       for (int i = 0; i < rows.size(); i++) {
+           if (rows.get(i) != null) {
+               indexes.add(i);
+           }
+       }
+       Integer[] order = indexes.toArray(new Integer[indexes.size()]);
+       if (byRank) {
+           // The sort is stable, so equally ranked notes keep the default order
+           Arrays.sort(order, new Comparator<Integer>() {
+               @Override
+               public int compare(Integer lhs, Integer rhs) {
+                   return Double.compare(ranks.get(rhs), ranks.get(lhs));
+               }
+           });
+       }
+
+       MatrixCursor result = new MatrixCursor(projection, order.length);
+       for (Integer i : order) {
+           result.addRow(rows.get(i));
+       }
+       result.setNotificationUri(getContext().getContentResolver(), NotePad.Notes.CONTENT_URI);
+       return result;
+   }
+
+   /**
+    * Returns the value of a column of the current row as the matching Java type.
+    */
+   private static Object getValue(Cursor c, int column) {
+       switch (c.getType(column)) {
+           case Cursor.FIELD_TYPE_NULL:
+               return null;
+           case Cursor.FIELD_TYPE_INTEGER:
+               return c.getLong(column);
+           case Cursor.FIELD_TYPE_FLOAT:
+               return c.getDouble(column);
+           case Cursor.FIELD_TYPE_BLOB:
+               return c.getBlob(column);
+           default:
+               return c.getString(column);
+       }
+   }
+
+   /**
+    * Computes the rank of a search result.
+    *
+    * @param matchInfo The matchinfo(notes_fts, 'pcnalx') blob of the note, or null if no search
+    * text was given.
+    * @param modified The modification date of the note.
+    * @param now The current time.
+    * @return The BM25 score of the note, raised by its recency boost. Zero without match
+    * information.
+    */
+   static double computeSearchRank(byte[] matchInfo, long modified, long now) {
+       if (matchInfo == null || matchInfo.length < 12) {
+           return 0;
+       }
+
+       // matchinfo() returns unsigned 32-bit integers in the byte order of the device
+       IntBuffer info = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+       int phraseCount = info.get(0);
+       int columnCount = info.get(1);
+       double rowCount = info.get(2) & 0xffffffffL;
+       int averageLengths = 3;
+       int lengths = averageLengths + columnCount;
+       int hits = lengths + columnCount;
+
+       double score = 0;
+       for (int phrase = 0; phrase < phraseCount; phrase++) {
+           for (int column = 0; column < columnCount; column++) {
+               int base = hits + 3 * (phrase * columnCount + column);
+               double hitsInRow = info.get(base) & 0xffffffffL;
+               if (hitsInRow == 0) {
+                   continue;
+               }
+               double rowsWithHits = info.get(base + 2) & 0xffffffffL;
+               double averageLength = Math.max(1, info.get(averageLengths + column) & 0xffffffffL);
+               double length = info.get(lengths + column) & 0xffffffffL;
+
+               // The 1 + keeps the weight of a phrase found in most notes above zero
+               double idf = Math.log(1 + (rowCount - rowsWithHits + 0.5) / (rowsWithHits + 0.5));
+               double tf = hitsInRow * (BM25_K1 + 1) / (hitsInRow
+                       + BM25_K1 * (1 - BM25_B + BM25_B * length / averageLength));
+               double weight = column == 0 ? TITLE_WEIGHT : NOTE_WEIGHT;
+               score += weight * idf * tf;
+           }
+       }
+
+       double age = Math.max(0, now - modified);
+       double recency = Math.pow(0.5, age / RECENCY_HALF_LIFE_MILLIS);
+       return score * (1 + RECENCY_BOOST * recency);
+   }
+
+   /**
+    * Escapes a snippet for HTML and turns its match markers into bold tags.
+    */
+   static String snippetToHtml(String snippet) {
+       if (snippet == null) {
+           return null;
+       }
+       StringBuilder html = new StringBuilder(snippet.length() + 16);
+       int start = 0;
+       for (int i = 0; i <= snippet.length(); i++) {
+           char c = i < snippet.length() ? snippet.charAt(i) : 0;
+           if (i == snippet.length() || c == NoteTokenizer.MATCH_START
+                   || c == NoteTokenizer.MATCH_END) {
+               html.append(TextUtils.htmlEncode(snippet.substring(start, i)));
+               if (c == NoteTokenizer.MATCH_START) {
+                   html.append("<b>");
+               } else if (c == NoteTokenizer.MATCH_END) {
+                   html.append("</b>");
+               }
+               start = i + 1;
+           }
+       }
+       return html.toString();
+   }
+
+   /**
+    * Writes the full-text index entry and the trigrams of one note, replacing any previous
+    * entries.
+    */
+   private static void indexNote(SQLiteDatabase db, long noteId, String title, String note) {
+       String[] whereArgs = { String.valueOf(noteId) };
+       db.delete(FTS_TABLE_NAME, "docid = ?", whereArgs);
+
+       ContentValues values = new ContentValues();
+       values.put("docid", noteId);
+       values.put(NotePad.Notes.COLUMN_NAME_TITLE, NoteTokenizer.toIndexText(title));
+       values.put(NotePad.Notes.COLUMN_NAME_NOTE, NoteTokenizer.toIndexText(note));
+       db.insert(FTS_TABLE_NAME, null, values);
+
+       indexTrigrams(db, noteId, NoteTrigrams.trigrams(NoteTrigrams.normalizeNote(title, note)));
+   }
+
+   /**
+    * Replaces the trigrams of one note. An edit usually changes few trigrams, so only the
+    * difference between the stored and the new trigrams is written.
+    */
+   private static void indexTrigrams(SQLiteDatabase db, long noteId, Set<String> trigrams) {
+       String[] whereArgs = { String.valueOf(noteId) };
+       Set<String> removed = new HashSet<String>();
+       Cursor c = db.query(TRIGRAM_TABLE_NAME, new String[] { TRIGRAM_COLUMN_TRIGRAM },
+               TRIGRAM_COLUMN_NOTE_ID + " = ?", whereArgs, null, null, null);
+       try {
+           while (c.moveToNext()) {
+               String trigram = c.getString(0);
+               if (!trigrams.remove(trigram)) {
+                   removed.add(trigram);
+               }
+           }
+       } finally {
+           c.close();
+       }
+
+       if (!removed.isEmpty()) {
+           SQLiteStatement delete = db.compileStatement("DELETE FROM " + TRIGRAM_TABLE_NAME
+                   + " WHERE " + TRIGRAM_COLUMN_TRIGRAM + " = ? AND "
+                   + TRIGRAM_COLUMN_NOTE_ID + " = ?");
+           try {
+               for (String trigram : removed) {
+                   delete.bindString(1, trigram);
+                   delete.bindLong(2, noteId);
+                   delete.execute();
+               }
+           } finally {
+               delete.close();
+           }
+       }
+
+       // The trigrams left in the set are the ones the note did not have yet
+       if (!trigrams.isEmpty()) {
+           SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO "
+                   + TRIGRAM_TABLE_NAME + " (" + TRIGRAM_COLUMN_TRIGRAM + ", "
+                   + TRIGRAM_COLUMN_NOTE_ID + ") VALUES (?, ?)");
+           try {
+               for (String trigram : trigrams) {
+                   insert.bindString(1, trigram);
+                   insert.bindLong(2, noteId);
+                   insert.executeInsert();
+               }
+           } finally {
+               insert.close();
+           }
+       }
+   }
+
+   /**
+    * Re-writes the full-text index entries and trigrams of the notes selected by where and
+    * whereArgs.
+    */
+   private static void reindexNotes(SQLiteDatabase db, String where, String[] whereArgs) {
+       Cursor c = NoteBodyCodec.wrap(db.query(NOTES_WITH_BODIES, READ_NOTE_PROJECTION, where,
+               whereArgs, null, null, null), NotePad.Notes.COLUMN_NAME_NOTE);
+       try {
+           while (c.moveToNext()) {
+               indexNote(db, c.getLong(0), c.getString(READ_NOTE_TITLE_INDEX),
+                       c.getString(READ_NOTE_NOTE_INDEX));
+           }
+       } finally {
+           c.close();
+       }
+   }
+
+   /**
+    * Returns the ids of the notes selected by where and whereArgs, so that they can be updated
+    * and re-indexed one by one after an update that might change whether they still match where.
+    */
+   private static long[] queryNoteIds(SQLiteDatabase db, String where, String[] whereArgs) {
+       Cursor c = db.query(mentionsBody(where) ? NOTES_WITH_BODIES : NotePad.Notes.TABLE_NAME,
+               new String[] { NotePad.Notes._ID }, where, whereArgs, null, null, null);
+       try {
+           long[] ids = new long[c.getCount()];
+           for (int i = 0; c.moveToNext(); i++) {
+               ids[i] = c.getLong(0);
+           }
+           return ids;
+       } finally {
+           c.close();
+       }
+   }
+
+   /**
+    * Returns true if a selection or sort order refers to the note column, which is in
+    * {@link #BODY_TABLE_NAME}.
+    */
+   private static boolean mentionsBody(String sql) {
+       return sql != null && BODY_COLUMN_PATTERN.matcher(sql).find();
+   }
+
+   /**
+    * Returns where as a selection of the notes table alone: a selection that refers to the
+    * body becomes a subquery over the notes joined with their bodies.
+    */
+   private static String toNotesWhere(String where) {
+       if (!mentionsBody(where)) {
+           return where;
+       }
+       return NotePad.Notes._ID + " IN (SELECT " + NotePad.Notes._ID + " FROM "
+               + NOTES_WITH_BODIES + " WHERE " + where + ")";
+   }
+
+   /**
+    * Returns true if values change a column that is part of the full-text index.
+    */
+   private static boolean changesIndexedText(ContentValues values) {
+       return values != null && (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)
+               || values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE));
+   }
+
    /**
     * This is called when a client calls {@link android.content.ContentResolver#getType(Uri)}.
     * Returns the MIME data type of the URI given as a parameter.
@@ -434,8 +1964,10 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         */
        switch (sUriMatcher.match(uri)) {
 
-           // If the pattern is for notes or live folders, returns the general content type.
+           // If the pattern is for notes, searches or live folders, returns the general content type.
            case NOTES:
+           case SEARCH:
+           case FUZZY_SEARCH:
            case LIVE_FOLDER_NOTES:
                return NotePad.Notes.CONTENT_TYPE;
 
@@ -450,6 +1982,19 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                return NotePad.Attachments.CONTENT_TYPE; // 多条附件
            case ATTACHMENT_ID:
                return NotePad.Attachments.CONTENT_ITEM_TYPE; // 单条附件
+
+           case NOTE_EDITS:
+               return NotePad.NoteEdits.CONTENT_TYPE;
+
+           case NOTE_REVISIONS:
+               return NotePad.NoteRevisions.CONTENT_TYPE;
+           case NOTE_REVISION_ID:
+               return NotePad.NoteRevisions.CONTENT_ITEM_TYPE;
+
+           // The content of an attachment has the type of its file
+           case ATTACHMENT_DATA:
+               return getAttachmentDataType(uri);
+
            // If the URI pattern doesn't match any permitted patterns, throws an exception.
            default:
                throw new IllegalArgumentException("Unknown URI " + uri);
@@ -484,6 +2029,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             // If the pattern is for notes or live folders, return null. Data streams are not
             // supported for this type of URI.
             case NOTES:
+            case SEARCH:
+            case FUZZY_SEARCH:
             case LIVE_FOLDER_NOTES:
                 return null;
 
@@ -492,6 +2039,12 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             case NOTE_ID:
                 return NOTE_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
 
+            // The content of an attachment is only available as the type of its file
+            case ATTACHMENT_DATA:
+                String type = getAttachmentDataType(uri);
+                return ClipDescription.compareMimeTypes(type, mimeTypeFilter)
+                        ? new String[] { type } : null;
+
                 // If the URI pattern doesn't match any permitted patterns, throws an exception.
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
@@ -517,6 +2070,11 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
             throws FileNotFoundException {
 
+        // The content of an attachment is a file, opened by openFile() if its type matches
+        if (sUriMatcher.match(uri) == ATTACHMENT_DATA) {
+            return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+        }
+
         // Checks to see if the MIME type filter matches a supported MIME type.
         String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
 
@@ -558,6 +2116,71 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
     }
 
+    /**
+     * Opens the content of an attachment for reading. The descriptor of a file attachment is on
+     * the stored file itself, so the reader can seek and read any range of it without the file
+     * being copied, and it stays readable if the attachment is deleted while it is open. Stored
+     * files may be shared by several attachments, so they cannot be opened for writing. The
+     * content of a small attachment kept in the database is written to a pipe.
+     *
+     * @param uri The URI of the content of an attachment.
+     * @param mode Must be "r".
+     * @return A read-only descriptor on the file.
+     * @throws FileNotFoundException if the URI is not the content of an attachment, the
+     * attachment or its file does not exist, or the mode is not "r".
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != ATTACHMENT_DATA) {
+            return super.openFile(uri, mode);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Attachments are read-only: " + uri);
+        }
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        long attachmentId = Long.parseLong(uri.getPathSegments().get(1));
+
+        // The file cannot be deleted between being found and being opened
+        synchronized (AttachmentStore.LOCK) {
+            String path = getAttachmentString(db, attachmentId,
+                    NotePad.Attachments.COLUMN_NAME_FILE_PATH);
+            if (path == null) {
+                throw new FileNotFoundException("No attachment " + uri);
+            }
+            if (path.length() > 0) {
+                return ParcelFileDescriptor.open(getContext().getFileStreamPath(path),
+                        ParcelFileDescriptor.MODE_READ_ONLY);
+            }
+        }
+
+        byte[] data = getInlineData(db, attachmentId);
+        if (data == null) {
+            throw new FileNotFoundException("No content for " + uri);
+        }
+        return openPipeHelper(uri, getAttachmentDataType(uri), null, data, INLINE_DATA_WRITER);
+    }
+
+    // Writes the content of a small attachment to the pipe openFile() returns
+    private static final PipeDataWriter<byte[]> INLINE_DATA_WRITER = new PipeDataWriter<byte[]>() {
+        @Override
+        public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                Bundle opts, byte[] data) {
+            FileOutputStream out = new FileOutputStream(output.getFileDescriptor());
+            try {
+                out.write(data);
+            } catch (IOException e) {
+                // The reader closed the pipe before reading everything
+                Log.w(TAG, "Stopped writing " + uri, e);
+            } finally {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    };
+
     /**
      * Implementation of {@link android.content.ContentProvider.PipeDataWriter}
      * to perform the actual work of converting the data in one of cursors to a
@@ -602,7 +2225,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     @Override
     public Uri insert(Uri uri, ContentValues initialValues) {
         // 根据URI匹配码处理不同插入
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
         switch (sUriMatcher.match(uri)) {
             // 原有笔记插入（保留）
@@ -622,10 +2245,31 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 if (!noteValues.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
                     noteValues.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
                 }
-                long noteRowId = db.insert(NotePad.Notes.TABLE_NAME, NotePad.Notes.COLUMN_NAME_NOTE, noteValues);
+                // 正文写入单独的表，notes表只保存由正文计算出的预览、长度和字数
+                String body = noteValues.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+                noteValues.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+                removeDerivedColumns(noteValues);
+                NoteSummary.putSummary(noteValues, body);
+                long noteRowId;
+                // 笔记、正文和它的全文检索索引在同一个事务中写入
+                db.beginTransactionNonExclusive();
+                try {
+                    noteRowId = executeInsert(db, NotePad.Notes.TABLE_NAME, noteValues);
+                    if (noteRowId > 0) {
+                        ContentValues bodyValues = new ContentValues();
+                        bodyValues.put(BODY_COLUMN_NOTE_ID, noteRowId);
+                        NoteBodyCodec.putBody(bodyValues, NotePad.Notes.COLUMN_NAME_NOTE, body);
+                        executeInsert(db, BODY_TABLE_NAME, bodyValues);
+                        indexNote(db, noteRowId,
+                                noteValues.getAsString(NotePad.Notes.COLUMN_NAME_TITLE), body);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 if (noteRowId > 0) {
                     Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteRowId);
-                    getContext().getContentResolver().notifyChange(noteUri, null);
+                    notifyChange(noteUri, NotePad.OPERATION_INSERT);
                     return noteUri;
                 }
                 throw new SQLException("Failed to insert row into " + uri);
@@ -639,22 +2283,88 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 if (!initialValues.containsKey(NotePad.Attachments.COLUMN_NAME_NOTE_ID)) {
                     throw new IllegalArgumentException("note_id is required");
                 }
-                if (!initialValues.containsKey(NotePad.Attachments.COLUMN_NAME_FILE_PATH)) {
+                // 较小的附件可以直接给出内容，代替文件路径
+                byte[] inlineData = initialValues.getAsByteArray(ATTACHMENT_VALUE_INLINE_DATA);
+                if (inlineData == null
+                        && !initialValues.containsKey(NotePad.Attachments.COLUMN_NAME_FILE_PATH)) {
                     throw new IllegalArgumentException("file_path is required");
                 }
+                if (inlineData != null && inlineData.length > INLINE_DATA_MAX_SIZE) {
+                    throw new IllegalArgumentException("Inline data is larger than "
+                            + INLINE_DATA_MAX_SIZE + " bytes");
+                }
                 if (!initialValues.containsKey(NotePad.Attachments.COLUMN_NAME_FILE_TYPE)) {
                     throw new IllegalArgumentException("file_type is required");
                 }
 
                 // 执行插入
-                long attachmentRowId = db.insert(NotePad.Attachments.TABLE_NAME, null, initialValues);
+                long attachmentRowId;
+                if (inlineData == null) {
+                    attachmentRowId = executeInsert(db, NotePad.Attachments.TABLE_NAME,
+                            initialValues);
+                } else {
+                    attachmentRowId = insertInlineAttachment(db, initialValues, inlineData);
+                }
                 if (attachmentRowId > 0) {
                     Uri attachmentUri = ContentUris.withAppendedId(NotePad.Attachments.CONTENT_URI, attachmentRowId);
-                    getContext().getContentResolver().notifyChange(attachmentUri, null);
+                    notifyChange(attachmentUri, NotePad.OPERATION_INSERT);
+                    // 触发器更新了笔记的附件数量和总大小
+                    notifyChange(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                            initialValues.getAsLong(NotePad.Attachments.COLUMN_NAME_NOTE_ID)),
+                            NotePad.OPERATION_UPDATE);
                     return attachmentUri;
                 }
                 throw new SQLException("Failed to insert attachment into " + uri);
 
+            // 追加一条编辑：只写入修改的部分，正文由后台合并
+            case NOTE_EDITS:
+                if (initialValues == null
+                        || !initialValues.containsKey(NotePad.NoteEdits.COLUMN_NAME_BASE_LENGTH)
+                        || !initialValues.containsKey(NotePad.NoteEdits.COLUMN_NAME_BASE_HASH)
+                        || !initialValues.containsKey(NotePad.NoteEdits.COLUMN_NAME_POSITION)
+                        || !initialValues.containsKey(NotePad.NoteEdits.COLUMN_NAME_REMOVED)) {
+                    throw new IllegalArgumentException(
+                            "base_length, base_hash, position and removed are required");
+                }
+                long editNoteId = Long.parseLong(
+                        uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+                ContentValues editValues = new ContentValues(initialValues);
+                editValues.put(NotePad.NoteEdits.COLUMN_NAME_NOTE_ID, editNoteId);
+                if (!editValues.containsKey(NotePad.NoteEdits.COLUMN_NAME_INSERTED)) {
+                    editValues.put(NotePad.NoteEdits.COLUMN_NAME_INSERTED, "");
+                }
+                if (!editValues.containsKey(NotePad.NoteEdits.COLUMN_NAME_MODIFICATION_DATE)) {
+                    editValues.put(NotePad.NoteEdits.COLUMN_NAME_MODIFICATION_DATE,
+                            System.currentTimeMillis());
+                }
+                long editRowId;
+                // 检查编辑是否基于当前正文（正文加上待合并的编辑），检查和插入在同一个事务中，
+                // 之间正文不会被改写。不是时不插入，返回null，由编辑器写入整篇正文
+                db.beginTransactionNonExclusive();
+                try {
+                    String text = readNoteBody(db, editNoteId);
+                    if (text == null || NoteEditJournal.applyEdit(
+                            applyPendingEdits(db, editNoteId, text, null),
+                            editValues.getAsInteger(NotePad.NoteEdits.COLUMN_NAME_BASE_LENGTH),
+                            editValues.getAsLong(NotePad.NoteEdits.COLUMN_NAME_BASE_HASH),
+                            editValues.getAsInteger(NotePad.NoteEdits.COLUMN_NAME_POSITION),
+                            editValues.getAsInteger(NotePad.NoteEdits.COLUMN_NAME_REMOVED),
+                            editValues.getAsString(NotePad.NoteEdits.COLUMN_NAME_INSERTED))
+                            == null) {
+                        return null;
+                    }
+                    editRowId = executeInsert(db, EDITS_TABLE_NAME, editValues);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (editRowId > 0) {
+                    mHasPendingEdits.set(true);
+                    scheduleCompaction();
+                    return ContentUris.withAppendedId(uri, editRowId);
+                }
+                throw new SQLException("Failed to insert edit into " + uri);
+
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -690,58 +2400,68 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             case NOTES:
                 count = db.delete(
                     NotePad.Notes.TABLE_NAME,  // The database table name
-                    where,                     // The incoming where clause column names
+                    toNotesWhere(where),       // The incoming where clause column names
                     whereArgs                  // The incoming where clause values
                 );
+                // The attachments of the notes were deleted with them, and their files queued
+                scheduleFileSweep(count);
                 break;
 
                 // If the incoming URI matches a single note ID, does the delete based on the
                 // incoming data, but modifies the where clause to restrict it to the
                 // particular note ID.
             case NOTE_ID:
+                long deleteNoteId = Long.parseLong(
+                        uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+
+                // Without additional criteria, uses the compiled statement for single rows
+                if (where == null) {
+                    count = executeDeleteById(db, NotePad.Notes.TABLE_NAME, deleteNoteId);
+                    scheduleFileSweep(count);
+                    break;
+                }
+
                 /*
                  * Starts a final WHERE clause by restricting it to the
-                 * desired note ID.
+                 * desired note ID, and appends the additional selection criteria.
                  */
-                finalWhere =
-                        NotePad.Notes._ID +                              // The ID column name
-                        " = " +                                          // test for equality
-                        uri.getPathSegments().                           // the incoming note ID
-                            get(NotePad.Notes.NOTE_ID_PATH_POSITION)
-                ;
-
-                // If there were additional selection criteria, append them to the final
-                // WHERE clause
-                if (where != null) {
-                    finalWhere = finalWhere + " AND " + where;
-                }
+                finalWhere = DatabaseUtils.concatenateWhere(NotePad.Notes._ID + " = ?",
+                        toNotesWhere(where));
 
                 // Performs the delete.
                 count = db.delete(
                     NotePad.Notes.TABLE_NAME,  // The database table name.
                     finalWhere,                // The final WHERE clause
-                    whereArgs                  // The incoming where clause values.
+                    DatabaseUtils.appendSelectionArgs( // The note ID and the incoming values
+                            new String[] { String.valueOf(deleteNoteId) }, whereArgs)
                 );
+                scheduleFileSweep(count);
                 break;
 
             // 新增：附件删除（关键）
             case ATTACHMENTS: // 删除所有符合条件的附件
+                // 触发器在同一事务中把文件加入删除队列，后台删除不再被引用的文件
                 count = db.delete(NotePad.Attachments.TABLE_NAME, where, whereArgs);
-                // 批量删除时，需要手动删除对应的物理文件（可选，根据需求）
-                if (count > 0 && where != null) {
-                    deleteAttachmentFiles(where, whereArgs);
+                scheduleFileSweep(count);
+                // 不知道哪些笔记的附件数量变了，通知整个笔记表
+                if (count > 0) {
+                    notifyChange(NotePad.Notes.CONTENT_URI, NotePad.OPERATION_UPDATE);
                 }
                 break;
             case ATTACHMENT_ID: // 删除单个附件（通过ID）
                 String attachmentId = uri.getPathSegments().get(1);
-                finalWhere = NotePad.Attachments._ID + "=" + attachmentId;
-                if (where != null) finalWhere += " AND " + where;
-                // 删除前先获取文件路径
-                String filePath = getAttachmentFilePath(Long.parseLong(attachmentId));
-                count = db.delete(NotePad.Attachments.TABLE_NAME, finalWhere, whereArgs);
-                // 删除物理文件
-                if (count > 0 && filePath != null) {
-                    deleteFile(getContext(), filePath);
+                finalWhere = DatabaseUtils.concatenateWhere(NotePad.Attachments._ID + " = ?", where);
+                String[] attachmentArgs =
+                        DatabaseUtils.appendSelectionArgs(new String[] { attachmentId }, whereArgs);
+                // 删除前先获取所属笔记
+                long attachmentNoteId = getAttachmentNoteId(db, Long.parseLong(attachmentId));
+                count = db.delete(NotePad.Attachments.TABLE_NAME, finalWhere, attachmentArgs);
+                // 文件已进入删除队列
+                scheduleFileSweep(count);
+                // 触发器更新了笔记的附件数量和总大小
+                if (count > 0 && attachmentNoteId >= 0) {
+                    notifyChange(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                            attachmentNoteId), NotePad.OPERATION_UPDATE);
                 }
                 break;
 
@@ -752,10 +2472,13 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         }
 
         /*Gets a handle to the content resolver object for the current context, and notifies it
-         * that the incoming URI changed. The object passes this along to the resolver framework,
-         * and observers that have registered themselves for the provider are notified.
+         * that the incoming URI changed, unless nothing was deleted. The object passes this along
+         * to the resolver framework, and observers that have registered themselves for the
+         * provider are notified.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (count > 0) {
+            notifyChange(uri, NotePad.OPERATION_DELETE);
+        }
 
         // Returns the number of rows deleted.
         return count;
@@ -796,55 +2519,58 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             // the incoming data.
             case NOTES:
 
-                // Does the update and returns the number of rows updated.
-                count = db.update(
-                    NotePad.Notes.TABLE_NAME, // The database table name.
-                    values,                   // A map of column names and new values to use.
-                    where,                    // The where clause column names.
-                    whereArgs                 // The where clause column values to select on.
-                );
+                // The rows, their bodies and their index entries are updated in one transaction.
+                // The ids are collected first, since the update may change whether the rows
+                // match "where".
+                db.beginTransactionNonExclusive();
+                try {
+                    count = updateNotes(db, queryNoteIds(db, where, whereArgs), values);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
 
             // If the incoming URI matches a single note ID, does the update based on the incoming
             // data, but modifies the where clause to restrict it to the particular note ID.
             case NOTE_ID:
                 // From the incoming URI, get the note ID
-                String noteId = uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
-
-                /*
-                 * Starts creating the final WHERE clause by restricting it to the incoming
-                 * note ID.
-                 */
-                finalWhere =
-                        NotePad.Notes._ID +                              // The ID column name
-                        " = " +                                          // test for equality
-                        uri.getPathSegments().                           // the incoming note ID
-                            get(NotePad.Notes.NOTE_ID_PATH_POSITION)
-                ;
-
-                // If there were additional selection criteria, append them to the final WHERE
-                // clause
-                if (where !=null) {
-                    finalWhere = finalWhere + " AND " + where;
-                }
-
-
-                // Does the update and returns the number of rows updated.
-                count = db.update(
-                    NotePad.Notes.TABLE_NAME, // The database table name.
-                    values,                   // A map of column names and new values to use.
-                    finalWhere,               // The final WHERE clause to use
-                                              // placeholders for whereArgs
-                    whereArgs                 // The where clause column values to select on, or
-                                              // null if the values are in the where argument.
-                );
+                long noteId = Long.parseLong(
+                        uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+
+                db.beginTransactionNonExclusive();
+                try {
+                    // Without additional criteria, updates the note directly. Otherwise, starts
+                    // the final WHERE clause by restricting it to the incoming note ID, and
+                    // appends the additional selection criteria.
+                    long[] noteIds = new long[] { noteId };
+                    if (where != null) {
+                        finalWhere = DatabaseUtils.concatenateWhere(
+                                NotePad.Notes._ID + " = ?", where);
+                        noteIds = queryNoteIds(db, finalWhere, DatabaseUtils.appendSelectionArgs(
+                                new String[] { String.valueOf(noteId) }, whereArgs));
+                    }
+                    count = updateNotes(db, noteIds, values);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
             // 新增：附件更新（可选）
             case ATTACHMENT_ID:
                 String attachmentId = uri.getPathSegments().get(1);
-                finalWhere = NotePad.Attachments._ID + "=" + attachmentId;
-                if (where != null) finalWhere += " AND " + where;
-                count = db.update(NotePad.Attachments.TABLE_NAME, values, finalWhere, whereArgs);
+                finalWhere = DatabaseUtils.concatenateWhere(NotePad.Attachments._ID + " = ?", where);
+                count = db.update(NotePad.Attachments.TABLE_NAME, values, finalWhere,
+                        DatabaseUtils.appendSelectionArgs(new String[] { attachmentId }, whereArgs));
+                // 附件移到别的笔记或大小变化时，触发器更新了笔记的附件数量和总大小
+                if (count > 0 && (values.containsKey(NotePad.Attachments.COLUMN_NAME_NOTE_ID)
+                        || values.containsKey(NotePad.Attachments.COLUMN_NAME_FILE_SIZE))) {
+                    notifyChange(NotePad.Notes.CONTENT_URI, NotePad.OPERATION_UPDATE);
+                }
+                // 换了文件时旧文件进入删除队列
+                if (values.containsKey(NotePad.Attachments.COLUMN_NAME_FILE_PATH)) {
+                    scheduleFileSweep(count);
+                }
                 break;
 
 
@@ -854,56 +2580,975 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         }
 
         /*Gets a handle to the content resolver object for the current context, and notifies it
-         * that the incoming URI changed. The object passes this along to the resolver framework,
-         * and observers that have registered themselves for the provider are notified.
+         * that the incoming URI changed, unless nothing was updated. The object passes this along
+         * to the resolver framework, and observers that have registered themselves for the
+         * provider are notified.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (count > 0) {
+            notifyChange(uri, NotePad.OPERATION_UPDATE);
+        }
 
         // Returns the number of rows updated.
         return count;
     }
 
     /**
-     * 辅助方法：批量删除附件对应的物理文件
+     * Sweeps the files of deleted attachments after a quiet period, if count rows were deleted.
+     */
+    private void scheduleFileSweep(int count) {
+        if (count > 0) {
+            mCompactionHandler.removeCallbacks(mSweepFiles);
+            mCompactionHandler.postDelayed(mSweepFiles, FILE_SWEEP_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Deletes the queued files of deleted attachments that no attachment references any more,
+     * then empties the queue. If reconcile, also deletes the attachment files that no
+     * attachment references though they were never queued, and the temporary files of imports
+     * that a crash stopped. Holds {@link AttachmentStore#LOCK}, so no import can reference a
+     * file while it is deleted.
+     *
+     * @return The number of files deleted in [0] and their bytes in [1].
      */
-    private void deleteAttachmentFiles(String where, String[] whereArgs) {
-        Cursor cursor = getContext().getContentResolver().query(
-                NotePad.Attachments.CONTENT_URI,
-                new String[]{NotePad.Attachments.COLUMN_NAME_FILE_PATH},
-                where, whereArgs, null);
-        if (cursor != null) {
-            while (cursor.moveToNext()) {
-                String filePath = cursor.getString(0);
-                deleteFile(getContext(), filePath);
+    private long[] sweepFiles(boolean reconcile) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long[] reclaimed = new long[2];
+        synchronized (AttachmentStore.LOCK) {
+            long lastQueued = -1;
+            Cursor cursor = db.query(FILE_DELETES_TABLE_NAME, new String[] {
+                    FILE_DELETES_COLUMN_FILE_PATH, "MAX(" + BaseColumns._ID + ")" },
+                    null, null, FILE_DELETES_COLUMN_FILE_PATH, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    lastQueued = Math.max(lastQueued, cursor.getLong(1));
+                    deleteUnreferencedFile(db, cursor.getString(0), reclaimed);
+                }
+            } finally {
+                cursor.close();
             }
-            cursor.close();
+            // Files queued since the query are left for the next sweep
+            if (lastQueued >= 0) {
+                db.delete(FILE_DELETES_TABLE_NAME, BaseColumns._ID + " <= ?",
+                        new String[] { String.valueOf(lastQueued) });
+            }
+
+            if (reconcile) {
+                long staleBefore = System.currentTimeMillis() - STALE_IMPORT_MILLIS;
+                for (String name : getContext().fileList()) {
+                    if (AttachmentStore.isAttachmentFile(name)) {
+                        deleteUnreferencedFile(db, name, reclaimed);
+                    } else if (AttachmentStore.isImportFile(name)) {
+                        File file = getContext().getFileStreamPath(name);
+                        if (file.lastModified() < staleBefore) {
+                            addReclaimed(reclaimed, deleteFile(getContext(), name));
+                        }
+                    }
+                }
+            }
+        }
+        mReclaimedFiles.addAndGet(reclaimed[0]);
+        mReclaimedBytes.addAndGet(reclaimed[1]);
+        return reclaimed;
+    }
+
+    // Deletes an attachment file if no attachment references it, counting it in reclaimed.
+    private void deleteUnreferencedFile(SQLiteDatabase db, String path, long[] reclaimed) {
+        if (DatabaseUtils.queryNumEntries(db, NotePad.Attachments.TABLE_NAME,
+                NotePad.Attachments.COLUMN_NAME_FILE_PATH + " = ?", new String[] { path }) == 0) {
+            addReclaimed(reclaimed, deleteFile(getContext(), path));
+        }
+    }
+
+    private static void addReclaimed(long[] reclaimed, long bytes) {
+        if (bytes >= 0) {
+            reclaimed[0]++;
+            reclaimed[1] += bytes;
         }
     }
 
     /**
      * 辅助方法：删除应用私有目录中的文件
+     *
+     * @return 删除的文件大小（字节），文件不存在或删除失败时返回-1
      */
-    private void deleteFile(Context context, String filePath) {
+    private long deleteFile(Context context, String filePath) {
         File file = context.getFileStreamPath(filePath);
-        if (file.exists()) {
-            file.delete();
+        long length = file.length();
+        if (file.exists() && file.delete()) {
             Log.d(TAG, "Deleted attachment file: " + filePath);
+            return length;
+        }
+        return -1;
+    }
+
+    /**
+     * Inserts an attachment whose content is kept in {@link #INLINE_DATA_TABLE_NAME}, in one
+     * transaction with its content.
+     *
+     * @return The _id of the attachment, or -1 if it could not be inserted.
+     */
+    private long insertInlineAttachment(SQLiteDatabase db, ContentValues initialValues,
+            byte[] data) {
+        ContentValues values = new ContentValues(initialValues);
+        values.remove(ATTACHMENT_VALUE_INLINE_DATA);
+        values.put(NotePad.Attachments.COLUMN_NAME_FILE_PATH, "");
+        db.beginTransactionNonExclusive();
+        try {
+            long attachmentId = executeInsert(db, NotePad.Attachments.TABLE_NAME, values);
+            if (attachmentId > 0) {
+                ContentValues dataValues = new ContentValues();
+                dataValues.put(INLINE_DATA_COLUMN_ATTACHMENT_ID, attachmentId);
+                dataValues.put(INLINE_DATA_COLUMN_DATA, data);
+                if (executeInsert(db, INLINE_DATA_TABLE_NAME, dataValues) < 0) {
+                    return -1;
+                }
+            }
+            db.setTransactionSuccessful();
+            return attachmentId;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the content of a small attachment, or null if it is a file.
+     */
+    private static byte[] getInlineData(SQLiteDatabase db, long attachmentId) {
+        Cursor cursor = db.query(INLINE_DATA_TABLE_NAME, new String[] { INLINE_DATA_COLUMN_DATA },
+                INLINE_DATA_COLUMN_ATTACHMENT_ID + " = ?",
+                new String[] { String.valueOf(attachmentId) }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getBlob(0) : null;
+        } finally {
+            cursor.close();
         }
     }
+
     /**
-     * 辅助方法：获取单个附件的文件路径
+     * Returns a text column of an attachment, or null if there is no such attachment.
      */
-    private String getAttachmentFilePath(long attachmentId) {
-        Cursor cursor = getContext().getContentResolver().query(
-                ContentUris.withAppendedId(NotePad.Attachments.CONTENT_URI, attachmentId),
-                new String[]{NotePad.Attachments.COLUMN_NAME_FILE_PATH},
+    private String getAttachmentString(SQLiteDatabase db, long attachmentId, String column) {
+        Cursor cursor = db.query(NotePad.Attachments.TABLE_NAME, new String[] { column },
+                NotePad.Attachments._ID + " = ?", new String[] { String.valueOf(attachmentId) },
                 null, null, null);
-        if (cursor != null && cursor.moveToFirst()) {
-            String filePath = cursor.getString(0);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
             cursor.close();
-            return filePath;
         }
-        return null;
+    }
+
+    /**
+     * Returns the MIME type of the content of an attachment. Attachments added before file
+     * types were MIME types have only "image", "audio" or "video", which become a wildcard of
+     * that top-level type.
+     */
+    private String getAttachmentDataType(Uri uri) {
+        String type = getAttachmentString(mOpenHelper.getReadableDatabase(),
+                Long.parseLong(uri.getPathSegments().get(1)),
+                NotePad.Attachments.COLUMN_NAME_FILE_TYPE);
+        if (TextUtils.isEmpty(type)) {
+            return DEFAULT_ATTACHMENT_TYPE;
+        }
+        return type.indexOf('/') < 0 ? type + "/*" : type;
+    }
+
+    /**
+     * Returns the {@link OpenableColumns} of the content of an attachment, its file name and
+     * size, as clients that open a content URI expect. Columns of the projection that are not
+     * openable columns are left out.
+     */
+    private Cursor queryAttachmentData(Uri uri, String[] projection) {
+        if (projection == null) {
+            projection = new String[] { OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE };
+        }
+        ArrayList<String> columns = new ArrayList<String>();
+        ArrayList<String> sources = new ArrayList<String>();
+        for (String column : projection) {
+            if (OpenableColumns.DISPLAY_NAME.equals(column)) {
+                sources.add(NotePad.Attachments.COLUMN_NAME_FILE_NAME);
+            } else if (OpenableColumns.SIZE.equals(column)) {
+                sources.add(NotePad.Attachments.COLUMN_NAME_FILE_SIZE);
+            } else {
+                continue;
+            }
+            columns.add(column);
+        }
+        MatrixCursor result = new MatrixCursor(columns.toArray(new String[columns.size()]), 1);
+        if (columns.isEmpty()) {
+            return result;
+        }
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Cursor cursor = db.query(NotePad.Attachments.TABLE_NAME,
+                sources.toArray(new String[sources.size()]), NotePad.Attachments._ID + " = ?",
+                new String[] { uri.getPathSegments().get(1) }, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                Object[] row = new Object[columns.size()];
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = OpenableColumns.SIZE.equals(columns.get(i))
+                            ? (Object) cursor.getLong(i) : cursor.getString(i);
+                }
+                result.addRow(row);
+            }
+        } finally {
+            cursor.close();
+        }
+        result.setNotificationUri(getContext().getContentResolver(), uri);
+        return result;
+    }
+
+    /**
+     * Returns the _id of the note an attachment belongs to, or -1 if there is no such
+     * attachment.
+     */
+    private long getAttachmentNoteId(SQLiteDatabase db, long attachmentId) {
+        Cursor cursor = db.query(NotePad.Attachments.TABLE_NAME,
+                new String[] { NotePad.Attachments.COLUMN_NAME_NOTE_ID },
+                NotePad.Attachments._ID + " = ?", new String[] { String.valueOf(attachmentId) },
+                null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the compiled statement for sql, compiling it on first use. The statement is
+     * returned with a reference acquired for the caller, which must call
+     * {@link SQLiteStatement#releaseReference()} when done with it.
+     */
+    private SQLiteStatement getCachedStatement(SQLiteDatabase db, String sql) {
+        synchronized (mStatementCache) {
+            SQLiteStatement statement = mStatementCache.get(sql);
+            if (statement == null) {
+                statement = db.compileStatement(sql);
+                mStatementCache.put(sql, statement);
+            }
+            // Still referenced by the cache, so not closed yet
+            statement.acquireReference();
+            return statement;
+        }
+    }
+
+    /**
+     * Binds values to a statement in the order of columns, starting at index 1.
+     *
+     * @return The index of the next parameter.
+     */
+    private static int bindValues(SQLiteStatement statement, ContentValues values,
+            String[] columns) {
+        int index = 1;
+        for (String column : columns) {
+            DatabaseUtils.bindObjectToProgram(statement, index++, values.get(column));
+        }
+        return index;
+    }
+
+    /**
+     * Returns the columns of values in a fixed order, so that the same set of columns always
+     * produces the same SQL.
+     */
+    private static String[] sortedColumns(ContentValues values) {
+        String[] columns = values.keySet().toArray(new String[values.size()]);
+        Arrays.sort(columns);
+        return columns;
+    }
+
+    /**
+     * Inserts a row with a cached compiled statement.
+     *
+     * @return The row ID of the new row.
+     */
+    private long executeInsert(SQLiteDatabase db, String table, ContentValues values) {
+        String[] columns = sortedColumns(values);
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? "," : "").append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ",?" : "?");
+        }
+        sql.append(')');
+
+        SQLiteStatement statement = getCachedStatement(db, sql.toString());
+        try {
+            synchronized (statement) {
+                statement.clearBindings();
+                bindValues(statement, values, columns);
+                return statement.executeInsert();
+            }
+        } finally {
+            statement.releaseReference();
+        }
+    }
+
+    /**
+     * Updates the row whose idColumn is id with a cached compiled statement.
+     *
+     * @return The number of rows updated.
+     */
+    private int executeUpdateById(SQLiteDatabase db, String table, String idColumn,
+            ContentValues values, long id) {
+        String[] columns = sortedColumns(values);
+        StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? "," : "").append(columns[i]).append("=?");
+        }
+        sql.append(" WHERE ").append(idColumn).append(" = ?");
+
+        SQLiteStatement statement = getCachedStatement(db, sql.toString());
+        try {
+            synchronized (statement) {
+                statement.clearBindings();
+                statement.bindLong(bindValues(statement, values, columns), id);
+                return statement.executeUpdateDelete();
+            }
+        } finally {
+            statement.releaseReference();
+        }
+    }
+
+    /**
+     * Updates the notes with the given ids, one at a time with the cached compiled statements:
+     * the body in {@link #BODY_TABLE_NAME} and the other columns in the notes table. Notes whose
+     * title or body changed are re-indexed.
+     *
+     * @return The number of notes updated.
+     * @throws IllegalArgumentException if values is empty.
+     */
+    private int updateNotes(SQLiteDatabase db, long[] ids, ContentValues values) {
+        if (values == null || values.size() == 0) {
+            throw new IllegalArgumentException("Empty values");
+        }
+        ContentValues noteValues = new ContentValues(values);
+        removeDerivedColumns(noteValues);
+        ContentValues bodyValues = null;
+        String body = null;
+        if (noteValues.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            body = noteValues.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+            bodyValues = new ContentValues();
+            NoteBodyCodec.putBody(bodyValues, NotePad.Notes.COLUMN_NAME_NOTE, body);
+            noteValues.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+            NoteSummary.putSummary(noteValues, body);
+        }
+
+        int count = 0;
+        for (long id : ids) {
+            int updated = 0;
+            // The body being replaced, which the revisions must include
+            String[] previous = bodyValues != null ? readBodyAndModified(db, id) : null;
+            if (noteValues.size() > 0) {
+                updated = executeUpdateById(db, NotePad.Notes.TABLE_NAME, NotePad.Notes._ID,
+                        noteValues, id);
+            }
+            if (bodyValues != null) {
+                // Every note has a body row, so this also tells whether the note exists
+                updated = executeUpdateById(db, BODY_TABLE_NAME, BODY_COLUMN_NOTE_ID,
+                        bodyValues, id);
+                // The pending edits were made to the body that was just replaced
+                executeDeleteEdits(db, id);
+            }
+            if (updated > 0 && previous != null) {
+                Long modified = noteValues.getAsLong(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+                saveRevision(db, id, previous[0], Long.parseLong(previous[1]),
+                        body != null ? body : "",
+                        modified != null ? modified : System.currentTimeMillis());
+            }
+            if (updated > 0 && changesIndexedText(values)) {
+                reindexNotes(db, NotePad.Notes._ID + " = ?", new String[] { String.valueOf(id) });
+            }
+            count += updated;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the body of a note and its modification date as a string, or null if there is no
+     * such note.
+     */
+    private static String[] readBodyAndModified(SQLiteDatabase db, long noteId) {
+        Cursor c = NoteBodyCodec.wrap(db.query(NOTES_WITH_BODIES, new String[] {
+                        NotePad.Notes.COLUMN_NAME_NOTE,
+                        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+                }, NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " = ?",
+                new String[] { String.valueOf(noteId) }, null, null, null),
+                NotePad.Notes.COLUMN_NAME_NOTE);
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            return new String[] {
+                    c.isNull(0) ? "" : c.getString(0), String.valueOf(c.getLong(1))
+            };
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Saves the new body of a note as its newest revision. A note whose body changes for the
+     * first time, or whose revisions were all removed, first gets a snapshot of the body being
+     * replaced. The revision is a delta from the one before it, unless the chain from the last
+     * snapshot is full or the delta is not much smaller than the body; then it is a snapshot.
+     * Afterwards the oldest revisions beyond {@link #MAX_REVISIONS} are removed.
+     */
+    private void saveRevision(SQLiteDatabase db, long noteId, String previous,
+            long previousModified, String body, long modified) {
+        ContentValues edit = NoteEditJournal.createEdit(previous, body);
+        if (edit == null) {
+            return;
+        }
+        String noteIdString = String.valueOf(noteId);
+        // The revisions from the last snapshot on. Since the first revision is a snapshot, none
+        // means the note has no revisions.
+        long chainLength = DatabaseUtils.longForQuery(db, "SELECT count(*) FROM "
+                + REVISIONS_TABLE_NAME + " WHERE " + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID
+                + " = ?1 AND " + NotePad.NoteRevisions._ID + " >= (SELECT max("
+                + NotePad.NoteRevisions._ID + ") FROM " + REVISIONS_TABLE_NAME + " WHERE "
+                + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = ?1 AND "
+                + REVISION_COLUMN_SNAPSHOT + " IS NOT NULL)", new String[] { noteIdString });
+        if (chainLength == 0) {
+            insertSnapshot(db, noteId, previous, previousModified);
+            chainLength = 1;
+        }
+
+        String inserted = edit.getAsString(NotePad.NoteEdits.COLUMN_NAME_INSERTED);
+        if (chainLength >= REVISION_SNAPSHOT_INTERVAL || inserted.length() * 2 > body.length()) {
+            insertSnapshot(db, noteId, body, modified);
+        } else {
+            // A delta always follows the revision it was made to
+            edit.remove(NotePad.NoteEdits.COLUMN_NAME_BASE_HASH);
+            edit.put(NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID, noteId);
+            edit.put(NotePad.NoteRevisions.COLUMN_NAME_CREATE_DATE, modified);
+            executeInsert(db, REVISIONS_TABLE_NAME, edit);
+        }
+
+        // Removes the revisions before the newest snapshot that still leaves MAX_REVISIONS
+        db.execSQL("DELETE FROM " + REVISIONS_TABLE_NAME + " WHERE "
+                + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = ?1 AND "
+                + NotePad.NoteRevisions._ID + " < (SELECT max(s." + NotePad.NoteRevisions._ID
+                + ") FROM " + REVISIONS_TABLE_NAME + " AS s WHERE s."
+                + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = ?1 AND s."
+                + REVISION_COLUMN_SNAPSHOT + " IS NOT NULL AND (SELECT count(*) FROM "
+                + REVISIONS_TABLE_NAME + " AS r WHERE r."
+                + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = ?1 AND r."
+                + NotePad.NoteRevisions._ID + " >= s." + NotePad.NoteRevisions._ID + ") >= "
+                + MAX_REVISIONS + ")", new Object[] { noteId });
+    }
+
+    // Inserts a revision that holds the whole body.
+    private void insertSnapshot(SQLiteDatabase db, long noteId, String body, long created) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID, noteId);
+        values.put(NotePad.NoteRevisions.COLUMN_NAME_CREATE_DATE, created);
+        NoteBodyCodec.putBody(values, REVISION_COLUMN_SNAPSHOT, body);
+        executeInsert(db, REVISIONS_TABLE_NAME, values);
+    }
+
+    /**
+     * Returns a single revision with its body, rebuilt by applying the deltas after the nearest
+     * snapshot in order.
+     *
+     * @throws IllegalArgumentException if projection names a column a revision does not have.
+     * @throws SQLException if the revision cannot be rebuilt.
+     */
+    private Cursor queryRevision(Uri uri, String[] projection) {
+        long noteId = Long.parseLong(
+                uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+        long revisionId = ContentUris.parseId(uri);
+        if (projection == null) {
+            projection = new String[] {
+                    NotePad.NoteRevisions._ID,
+                    NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID,
+                    NotePad.NoteRevisions.COLUMN_NAME_CREATE_DATE,
+                    NotePad.NoteRevisions.COLUMN_NAME_NOTE
+            };
+        }
+        for (String column : projection) {
+            if (!sRevisionProjectionMap.containsKey(column)
+                    && !NotePad.NoteRevisions.COLUMN_NAME_NOTE.equals(column)) {
+                throw new IllegalArgumentException("Invalid column " + column);
+            }
+        }
+
+        // The revision and the revisions before it back to the nearest snapshot
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Cursor c = NoteBodyCodec.wrap(db.query(REVISIONS_TABLE_NAME, REBUILD_REVISION_PROJECTION,
+                NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = ?1 AND "
+                + NotePad.NoteRevisions._ID + " <= ?2 AND " + NotePad.NoteRevisions._ID
+                + " >= (SELECT max(" + NotePad.NoteRevisions._ID + ") FROM "
+                + REVISIONS_TABLE_NAME + " WHERE " + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID
+                + " = ?1 AND " + NotePad.NoteRevisions._ID + " <= ?2 AND "
+                + REVISION_COLUMN_SNAPSHOT + " IS NOT NULL)",
+                new String[] { String.valueOf(noteId), String.valueOf(revisionId) },
+                null, null, NotePad.NoteRevisions._ID), REVISION_COLUMN_SNAPSHOT);
+        String body = null;
+        long lastId = -1;
+        long created = 0;
+        try {
+            while (c.moveToNext()) {
+                lastId = c.getLong(REBUILD_REVISION_ID_INDEX);
+                created = c.getLong(REBUILD_REVISION_CREATE_DATE_INDEX);
+                if (!c.isNull(REBUILD_REVISION_SNAPSHOT_INDEX)) {
+                    body = c.getString(REBUILD_REVISION_SNAPSHOT_INDEX);
+                } else {
+                    body = body == null ? null : NoteEditJournal.applyEdit(body, c.getInt(3),
+                            c.getInt(4), c.getInt(5), c.getString(6));
+                    if (body == null) {
+                        throw new SQLException("Cannot rebuild revision " + revisionId
+                                + " of note " + noteId);
+                    }
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        MatrixCursor result = new MatrixCursor(projection, 1);
+        // Without a row for the revision itself, the rows were of the revisions before it
+        if (lastId == revisionId) {
+            Object[] row = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                String column = projection[i];
+                if (NotePad.NoteRevisions._ID.equals(column)) {
+                    row[i] = revisionId;
+                } else if (NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID.equals(column)) {
+                    row[i] = noteId;
+                } else if (NotePad.NoteRevisions.COLUMN_NAME_CREATE_DATE.equals(column)) {
+                    row[i] = created;
+                } else {
+                    row[i] = body;
+                }
+            }
+            result.addRow(row);
+        }
+        result.setNotificationUri(getContext().getContentResolver(), uri);
+        return result;
+    }
+
+    /**
+     * Deletes the pending edits of a note with a cached compiled statement.
+     */
+    private void executeDeleteEdits(SQLiteDatabase db, long noteId) {
+        SQLiteStatement statement = getCachedStatement(db, "DELETE FROM " + EDITS_TABLE_NAME
+                + " WHERE " + NotePad.NoteEdits.COLUMN_NAME_NOTE_ID + " = ?");
+        try {
+            synchronized (statement) {
+                statement.clearBindings();
+                statement.bindLong(1, noteId);
+                statement.executeUpdateDelete();
+            }
+        } finally {
+            statement.releaseReference();
+        }
+    }
+
+    /**
+     * Applies the edits in the journal to the note bodies after a quiet period, replacing any
+     * compaction scheduled before.
+     */
+    private void scheduleCompaction() {
+        mCompactionHandler.removeCallbacks(mCompactEdits);
+        mCompactionHandler.postDelayed(mCompactEdits, EDIT_COMPACTION_DELAY_MILLIS);
+    }
+
+    /**
+     * Applies the pending edits of one note, or of every note if noteId is -1, to the note
+     * bodies in one transaction, and notifies the notes that changed. Each body is written
+     * once, however many edits it had.
+     *
+     * @return The number of notes updated.
+     */
+    private int compactEdits(long noteId) {
+        if (!mHasPendingEdits.get()) {
+            return 0;
+        }
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        String[] noteIdArgs = { String.valueOf(noteId) };
+        if (noteId >= 0 && DatabaseUtils.queryNumEntries(db, EDITS_TABLE_NAME,
+                NotePad.NoteEdits.COLUMN_NAME_NOTE_ID + " = ?", noteIdArgs) == 0) {
+            return 0;
+        }
+
+        ArrayList<Long> compacted = new ArrayList<Long>();
+        boolean successful = false;
+        db.beginTransactionNonExclusive();
+        try {
+            // Cleared inside the transaction, so an edit added after this point sets it again
+            if (noteId < 0) {
+                mHasPendingEdits.set(false);
+            }
+            ArrayList<Long> ids = new ArrayList<Long>();
+            if (noteId >= 0) {
+                ids.add(noteId);
+            } else {
+                Cursor c = db.query(true, EDITS_TABLE_NAME,
+                        new String[] { NotePad.NoteEdits.COLUMN_NAME_NOTE_ID },
+                        null, null, null, null, null, null);
+                try {
+                    while (c.moveToNext()) {
+                        ids.add(c.getLong(0));
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            for (long id : ids) {
+                if (compactNoteEdits(db, id)) {
+                    compacted.add(id);
+                }
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            if (!successful && noteId < 0) {
+                mHasPendingEdits.set(true);
+            }
+        }
+
+        for (long id : compacted) {
+            notifyChange(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id),
+                    NotePad.OPERATION_UPDATE);
+        }
+        return compacted.size();
+    }
+
+    /**
+     * Applies the pending edits of one note to its body and removes them.
+     *
+     * @return true if the body changed.
+     */
+    private boolean compactNoteEdits(SQLiteDatabase db, long noteId) {
+        String body = readNoteBody(db, noteId);
+        if (body == null) {
+            // The edits of a note that no longer exists
+            executeDeleteEdits(db, noteId);
+            return false;
+        }
+
+        long[] modified = { -1 };
+        body = applyPendingEdits(db, noteId, body, modified);
+        if (modified[0] < 0) {
+            executeDeleteEdits(db, noteId);
+            return false;
+        }
+        // Writing the body also removes the edits
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body);
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, modified[0]);
+        return updateNotes(db, new long[] { noteId }, values) > 0;
+    }
+
+    /**
+     * Returns the stored body of a note, without its pending edits, or null if there is no such
+     * note.
+     */
+    private static String readNoteBody(SQLiteDatabase db, long noteId) {
+        Cursor c = NoteBodyCodec.wrap(db.query(NOTES_WITH_BODIES, READ_NOTE_PROJECTION,
+                NotePad.Notes._ID + " = ?", new String[] { String.valueOf(noteId) },
+                null, null, null), NotePad.Notes.COLUMN_NAME_NOTE);
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            return c.isNull(READ_NOTE_NOTE_INDEX) ? "" : c.getString(READ_NOTE_NOTE_INDEX);
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns body with the pending edits of a note applied in order. Every edit is checked
+     * against the text before it when it is inserted, and writing the body removes the pending
+     * edits, so an edit only fails to apply if it was inserted before its base hash was stored;
+     * that edit is skipped.
+     *
+     * @param modified If not null, [0] is raised to the time of each edit applied.
+     */
+    private static String applyPendingEdits(SQLiteDatabase db, long noteId, String body,
+            long[] modified) {
+        Cursor c = db.query(EDITS_TABLE_NAME, APPLY_EDIT_PROJECTION,
+                NotePad.NoteEdits.COLUMN_NAME_NOTE_ID + " = ?",
+                new String[] { String.valueOf(noteId) }, null, null, NotePad.NoteEdits._ID);
+        try {
+            while (c.moveToNext()) {
+                String edited = c.isNull(1)
+                        ? NoteEditJournal.applyEdit(body, c.getInt(0), c.getInt(2), c.getInt(3),
+                                c.getString(4))
+                        : NoteEditJournal.applyEdit(body, c.getInt(0), c.getLong(1),
+                                c.getInt(2), c.getInt(3), c.getString(4));
+                if (edited == null) {
+                    Log.w(TAG, "Skipping an edit that does not match the body of note " + noteId);
+                    continue;
+                }
+                body = edited;
+                if (modified != null) {
+                    modified[0] = Math.max(modified[0], c.getLong(5));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return body;
+    }
+
+    /**
+     * Removes the columns that the provider computes, which clients cannot write.
+     */
+    private static void removeDerivedColumns(ContentValues values) {
+        NoteSummary.removeSummary(values);
+        values.remove(NotePad.Notes.COLUMN_NAME_ATTACHMENT_COUNT);
+        values.remove(NotePad.Notes.COLUMN_NAME_ATTACHMENT_BYTES);
+    }
+
+    /**
+     * Deletes the row with the given _id with a cached compiled statement.
+     *
+     * @return The number of rows deleted.
+     */
+    private int executeDeleteById(SQLiteDatabase db, String table, long id) {
+        SQLiteStatement statement = getCachedStatement(db,
+                "DELETE FROM " + table + " WHERE " + BaseColumns._ID + " = ?");
+        try {
+            synchronized (statement) {
+                statement.clearBindings();
+                statement.bindLong(1, id);
+                return statement.executeUpdateDelete();
+            }
+        } finally {
+            statement.releaseReference();
+        }
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#bulkInsert(Uri, ContentValues[])}. Inserts all
+     * rows in one transaction, so the database syncs to storage once instead of once per row, and
+     * notifies observers once at the end.
+     *
+     * @return The number of rows inserted.
+     * @throws SQLException if a row cannot be inserted. No row is inserted then.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean outermost = beginBatch();
+        boolean successful = false;
+        db.beginTransactionNonExclusive();
+        try {
+            for (ContentValues rowValues : values) {
+                insert(uri, rowValues);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            endBatch(outermost, successful);
+        }
+        return values.length;
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#applyBatch(String, ArrayList)}. Applies all
+     * operations in one transaction, so either all of them take effect or none do, and notifies
+     * observers once at the end.
+     *
+     * @throws OperationApplicationException if an operation fails. No operation takes effect
+     * then.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean outermost = beginBatch();
+        boolean successful = false;
+        db.beginTransactionNonExclusive();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            endBatch(outermost, successful);
+        }
+    }
+
+    /**
+     * Starts collecting change notifications on this thread instead of sending them.
+     *
+     * @return true if this is the outermost batch, which must send the notifications.
+     */
+    private boolean beginBatch() {
+        if (mBatchChanges.get() != null) {
+            return false;
+        }
+        mBatchChanges.set(new HashSet<Uri>());
+        return true;
+    }
+
+    /**
+     * Ends a batch started by {@link #beginBatch}. The outermost batch notifies the collected
+     * URIs if its changes were committed.
+     */
+    private void endBatch(boolean outermost, boolean successful) {
+        if (!outermost) {
+            return;
+        }
+        Set<Uri> changes = mBatchChanges.get();
+        mBatchChanges.set(null);
+        if (successful) {
+            for (Uri uri : changes) {
+                mNotifier.notifyChange(uri);
+            }
+        }
+    }
+
+    /**
+     * Notifies observers of a change to uri once the writes around it have settled; see
+     * {@link NotificationCoalescer}. A change to a single note or attachment is notified with
+     * its row URI and the operation in {@link NotePad#QUERY_PARAMETER_OPERATION}, so observers
+     * can update just that row. While a batch runs on this thread, the change is recorded for
+     * the top-level URI instead, such as the notes URI for a note, since notifying it also
+     * reaches the observers of every URI below it.
+     *
+     * @param operation One of the NotePad.OPERATION_ constants.
+     */
+    private void notifyChange(Uri uri, String operation) {
+        Set<Uri> batchChanges = mBatchChanges.get();
+        if (batchChanges != null) {
+            batchChanges.add(NotificationCoalescer.getTopLevelUri(uri));
+            return;
+        }
+        int match = sUriMatcher.match(uri);
+        if (match == NOTE_ID || match == ATTACHMENT_ID) {
+            uri = uri.buildUpon()
+                    .clearQuery()
+                    .appendQueryParameter(NotePad.QUERY_PARAMETER_OPERATION, operation)
+                    .build();
+        }
+        mNotifier.notifyChange(uri);
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#call(Uri, String, String, Bundle)}. Runs the
+     * database maintenance methods defined in {@link NotePad}.
+     *
+     * @return The results of the method, or null if the method is unknown.
+     * @throws IllegalArgumentException if arg is not valid for the method.
+     * @throws SecurityException if the caller is another application.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (NotePad.METHOD_CHECKPOINT.equals(method)) {
+            enforceCallerIsSelf();
+            return checkpoint(arg == null ? "PASSIVE" : arg);
+        }
+        if (NotePad.METHOD_SET_AUTO_CHECKPOINT.equals(method)) {
+            enforceCallerIsSelf();
+            int pages;
+            try {
+                pages = Integer.parseInt(arg);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number of pages: " + arg);
+            }
+            if (pages < 0) {
+                throw new IllegalArgumentException("Invalid number of pages: " + arg);
+            }
+            getContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                    .putInt(KEY_AUTO_CHECKPOINT, pages).apply();
+            long result = DatabaseHelper.setAutoCheckpoint(mOpenHelper.getWritableDatabase(),
+                    pages);
+            Bundle bundle = new Bundle();
+            bundle.putLong(NotePad.EXTRA_AUTO_CHECKPOINT, result);
+            return bundle;
+        }
+        if (NotePad.METHOD_COMPACT_EDITS.equals(method)) {
+            enforceCallerIsSelf();
+            Bundle bundle = new Bundle();
+            bundle.putInt(NotePad.EXTRA_COMPACTED_NOTES, compactEdits(-1));
+            return bundle;
+        }
+        if (NotePad.METHOD_SWEEP_FILES.equals(method)) {
+            enforceCallerIsSelf();
+            long[] reclaimed = sweepFiles(true);
+            Bundle bundle = new Bundle();
+            bundle.putLong(NotePad.EXTRA_RECLAIMED_FILES, reclaimed[0]);
+            bundle.putLong(NotePad.EXTRA_RECLAIMED_BYTES, reclaimed[1]);
+            bundle.putLong(NotePad.EXTRA_TOTAL_RECLAIMED_FILES, mReclaimedFiles.get());
+            bundle.putLong(NotePad.EXTRA_TOTAL_RECLAIMED_BYTES, mReclaimedBytes.get());
+            return bundle;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Copies the write-ahead log back into the database.
+     *
+     * @param mode PASSIVE, FULL or RESTART, as for PRAGMA wal_checkpoint.
+     */
+    private Bundle checkpoint(String mode) {
+        if (!"PASSIVE".equals(mode) && !"FULL".equals(mode) && !"RESTART".equals(mode)) {
+            throw new IllegalArgumentException("Invalid checkpoint mode: " + mode);
+        }
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Cursor c = db.rawQuery("PRAGMA wal_checkpoint(" + mode + ")", null);
+        try {
+            Bundle result = new Bundle();
+            if (c.moveToFirst()) {
+                result.putBoolean(NotePad.EXTRA_CHECKPOINT_BUSY, c.getInt(0) != 0);
+                result.putLong(NotePad.EXTRA_CHECKPOINT_LOG_FRAMES, c.getLong(1));
+                result.putLong(NotePad.EXTRA_CHECKPOINT_CHECKPOINTED_FRAMES, c.getLong(2));
+            }
+            return result;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * The provider is exported for reading notes, but the maintenance methods are for this
+     * application only.
+     */
+    private void enforceCallerIsSelf() {
+        if (Binder.getCallingUid() != Process.myUid()) {
+            throw new SecurityException("Only this application may maintain the database");
+        }
+    }
+
+    /**
+     * Delivers the pending change notifications, then closes the cached statements and the
+     * database. The system never calls this on a running
+     * provider; tests call it between runs.
+     */
+    @Override
+    public void shutdown() {
+        // Waits for a compaction that is running; a scheduled one runs when the provider is
+        // created again
+        mCompactionHandler.removeCallbacks(mCompactEdits);
+        mCompactionHandler.removeCallbacks(mSweepFiles);
+        mCompactionHandler.removeCallbacks(mReconcileFiles);
+        mCompactionThread.quit();
+        try {
+            mCompactionThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mNotifier.flush();
+        synchronized (mStatementCache) {
+            for (SQLiteStatement statement : mStatementCache.values()) {
+                statement.releaseReference();
+            }
+            mStatementCache.clear();
+        }
+        mOpenHelper.close();
     }
 
     /**
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+
+/**
+ * Computes the columns of a note that are derived from its body: a short preview, the length
+ * and the word count. The provider stores them in the notes table whenever the body is written,
+ * so the list can show them without reading the body.
+ */
+final class NoteSummary {
+
+    // The number of characters of the preview, enough for two lines of the list
+    static final int PREVIEW_LENGTH = 200;
+
+    // This class cannot be instantiated
+    private NoteSummary() {
+    }
+
+    /**
+     * Puts the derived columns of body into values. A null body counts as empty.
+     */
+    static void putSummary(ContentValues values, String body) {
+        values.put(NotePad.Notes.COLUMN_NAME_PREVIEW, preview(body));
+        values.put(NotePad.Notes.COLUMN_NAME_BODY_LENGTH,
+                body == null ? 0 : body.codePointCount(0, body.length()));
+        values.put(NotePad.Notes.COLUMN_NAME_WORD_COUNT, wordCount(body));
+    }
+
+    /**
+     * Removes the derived columns from values, which clients cannot write.
+     */
+    static void removeSummary(ContentValues values) {
+        values.remove(NotePad.Notes.COLUMN_NAME_PREVIEW);
+        values.remove(NotePad.Notes.COLUMN_NAME_BODY_LENGTH);
+        values.remove(NotePad.Notes.COLUMN_NAME_WORD_COUNT);
+    }
+
+    /**
+     * Returns the first PREVIEW_LENGTH characters of body, with every run of white space
+     * replaced by one space and no white space at either end.
+     */
+    static String preview(String body) {
+        if (body == null) {
+            return "";
+        }
+        StringBuilder out = new StringBuilder(Math.min(body.length(), PREVIEW_LENGTH));
+        int i = 0;
+        while (i < body.length() && out.length() < PREVIEW_LENGTH) {
+            int c = body.codePointAt(i);
+            i += Character.charCount(c);
+            if (Character.isWhitespace(c)) {
+                if (out.length() > 0 && out.charAt(out.length() - 1) != ' ') {
+                    out.append(' ');
+                }
+            } else if (out.length() + Character.charCount(c) <= PREVIEW_LENGTH) {
+                out.appendCodePoint(c);
+            } else {
+                break;
+            }
+        }
+        if (out.length() > 0 && out.charAt(out.length() - 1) == ' ') {
+            out.setLength(out.length() - 1);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Returns the number of words in body. A word is a run of letters and digits, except that
+     * each Chinese or Japanese character counts as a word of its own, since those scripts do not
+     * separate words with spaces.
+     */
+    static int wordCount(String body) {
+        if (body == null) {
+            return 0;
+        }
+        int count = 0;
+        boolean inWord = false;
+        for (int i = 0; i < body.length(); ) {
+            int c = body.codePointAt(i);
+            i += Character.charCount(c);
+            if (isIdeographic(c)) {
+                count++;
+                inWord = false;
+            } else if (Character.isLetterOrDigit(c)) {
+                if (!inWord) {
+                    count++;
+                    inWord = true;
+                }
+            } else {
+                inWord = false;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isIdeographic(int codePoint) {
+        Character.UnicodeBlock block = Character.UnicodeBlock.of(codePoint);
+        return block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS
+                || block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A
+                || block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_B
+                || block == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS
+                || block == Character.UnicodeBlock.HIRAGANA
+                || block == Character.UnicodeBlock.KATAKANA;
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prepares note text for the FTS "simple" tokenizer so that Chinese, Japanese and Korean text
+ * can be searched. The simple tokenizer treats every run of non-ASCII characters as one token, so
+ * a sentence of CJK characters would only match as a whole. Before indexing, each CJK run is
+ * rewritten as its overlapping two-character pieces (bigrams) plus its last character, and the
+ * search text is rewritten the same way, so a word of any length is found as a phrase of bigrams.
+ *
+ * The rewritten text only adds ASCII control characters as separators, so the original text can
+ * be recovered from it, which is what the search snippets rely on.
+ */
+final class NoteTokenizer {
+
+    // Separates a rewritten CJK run or a non-ASCII symbol from the surrounding text
+    static final char RUN_SEPARATOR = '\u001E';
+
+    // Separates the bigrams inside a rewritten CJK run
+    static final char TOKEN_SEPARATOR = '\u001F';
+
+    // Marks the start and the end of a matched token in a snippet of indexed text
+    static final char MATCH_START = '\u0002';
+    static final char MATCH_END = '\u0003';
+
+    // This class cannot be instantiated
+    private NoteTokenizer() {
+    }
+
+    /**
+     * Rewrites text for storage in the FTS index.
+     *
+     * @param text The title or body of a note, may be null.
+     * @return The text to index, or null if text is null.
+     */
+    static String toIndexText(String text) {
+        if (text == null) {
+            return null;
+        }
+        int length = text.length();
+        StringBuilder out = new StringBuilder(length + length / 2);
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (isCjk(c)) {
+                int end = i + 1;
+                while (end < length && isCjk(text.charAt(end))) {
+                    end++;
+                }
+                out.append(RUN_SEPARATOR);
+                appendBigrams(out, text, i, end, true);
+                out.append(RUN_SEPARATOR);
+                i = end;
+            } else {
+                // Symbols above ASCII would otherwise be glued to the neighbouring word
+                if (c >= 0x80 && !isWordChar(c) && !isSurrogate(c)) {
+                    out.append(RUN_SEPARATOR).append(c).append(RUN_SEPARATOR);
+                } else {
+                    out.append(c);
+                }
+                i++;
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Recovers the original text from a fragment of indexed text, such as the result of the FTS
+     * snippet() function. The fragment may start or end inside a rewritten CJK run. Matched
+     * tokens marked with {@link #MATCH_START} and {@link #MATCH_END} stay marked, and the two
+     * characters of a matched bigram are marked together.
+     *
+     * @param indexed A fragment of text produced by {@link #toIndexText}, may be null.
+     * @return The original text, or null if indexed is null.
+     */
+    static String fromIndexText(String indexed) {
+        if (indexed == null) {
+            return null;
+        }
+        StringBuilder out = new StringBuilder(indexed.length());
+        int start = 0;
+        int length = indexed.length();
+        while (start <= length) {
+            int end = indexed.indexOf(RUN_SEPARATOR, start);
+            if (end < 0) {
+                end = length;
+            }
+            String segment = indexed.substring(start, end);
+            if (segment.indexOf(TOKEN_SEPARATOR) < 0) {
+                // Plain text, a symbol or a CJK run of one character
+                out.append(segment);
+            } else {
+                appendJoinedBigrams(out, segment);
+            }
+            start = end + 1;
+        }
+        return out.toString();
+    }
+
+    /**
+     * Appends the CJK text that a segment of TOKEN_SEPARATOR separated bigrams was made from.
+     * Each bigram after the first only adds its second character, and the trailing single
+     * character duplicates the last one. Text before the first and after the last CJK character
+     * of a token, such as an ellipsis added by snippet(), is kept.
+     */
+    private static void appendJoinedBigrams(StringBuilder out, String segment) {
+        StringBuilder chars = new StringBuilder();
+        List<Boolean> matched = new ArrayList<Boolean>();
+        StringBuilder trailing = new StringBuilder();
+        boolean first = true;
+        for (String token : segment.split(String.valueOf(TOKEN_SEPARATOR))) {
+            boolean isMatch = token.indexOf(MATCH_START) >= 0;
+            StringBuilder cjk = new StringBuilder();
+            StringBuilder leading = new StringBuilder();
+            trailing.setLength(0);
+            for (int i = 0; i < token.length(); i++) {
+                char c = token.charAt(i);
+                if (c == MATCH_START || c == MATCH_END) {
+                    continue;
+                }
+                if (isCjk(c)) {
+                    cjk.append(c);
+                } else if (cjk.length() == 0) {
+                    leading.append(c);
+                } else {
+                    trailing.append(c);
+                }
+            }
+            if (first) {
+                out.append(leading);
+            } else if (cjk.length() == 0) {
+                trailing.append(leading);
+            }
+            int skip = (first || chars.length() == 0) ? 0 : 1;
+            if (skip == 1 && isMatch) {
+                // The first character of this token is the last one already collected
+                matched.set(matched.size() - 1, true);
+            }
+            for (int i = skip; i < cjk.length(); i++) {
+                chars.append(cjk.charAt(i));
+                matched.add(isMatch);
+            }
+            first = false;
+        }
+        for (int i = 0; i < chars.length(); i++) {
+            boolean isMatch = matched.get(i);
+            if (isMatch && (i == 0 || !matched.get(i - 1))) {
+                out.append(MATCH_START);
+            }
+            out.append(chars.charAt(i));
+            if (isMatch && (i == chars.length() - 1 || !matched.get(i + 1))) {
+                out.append(MATCH_END);
+            }
+        }
+        out.append(trailing);
+    }
+
+    /**
+     * Converts the text a user typed into an FTS MATCH expression. Every whitespace-separated word
+     * becomes a quoted phrase of the tokens it produces in the index, so the search behaves like
+     * the old "contains" filter. The last token of a word is a prefix term unless it is a CJK
+     * bigram, so results update while the user is still typing. Characters with a meaning in the
+     * FTS query syntax are treated as separators.
+     *
+     * @param searchText The raw search text, may be null.
+     * @return The MATCH expression, or null if the text contains no searchable words.
+     */
+    static String toMatchQuery(String searchText) {
+        if (searchText == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        List<String> tokens = new ArrayList<String>();
+        for (String word : searchText.trim().split("\\s+")) {
+            tokens.clear();
+            boolean prefix = addQueryTokens(word, tokens);
+            if (tokens.isEmpty()) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"');
+            for (int i = 0; i < tokens.size(); i++) {
+                if (i > 0) {
+                    match.append(' ');
+                }
+                match.append(tokens.get(i));
+            }
+            if (prefix) {
+                match.append('*');
+            }
+            match.append('"');
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    /**
+     * Splits one word of search text into the tokens the index holds for it.
+     *
+     * @return true if the last token should be matched as a prefix.
+     */
+    private static boolean addQueryTokens(String word, List<String> tokens) {
+        boolean prefix = false;
+        int length = word.length();
+        int i = 0;
+        while (i < length) {
+            char c = word.charAt(i);
+            int end = i + 1;
+            if (isCjk(c)) {
+                while (end < length && isCjk(word.charAt(end))) {
+                    end++;
+                }
+                StringBuilder bigrams = new StringBuilder();
+                appendBigrams(bigrams, word, i, end, false);
+                for (String token : bigrams.toString().split(String.valueOf(TOKEN_SEPARATOR))) {
+                    tokens.add(token);
+                }
+                // A single character is indexed on its own and as the start of bigrams
+                prefix = end - i == 1;
+            } else if (isWordChar(c)) {
+                while (end < length && isWordChar(word.charAt(end)) && !isCjk(word.charAt(end))) {
+                    end++;
+                }
+                tokens.add(word.substring(i, end));
+                prefix = true;
+            }
+            i = end;
+        }
+        return prefix;
+    }
+
+    /**
+     * Appends the bigrams of the CJK run text[start, end) separated by TOKEN_SEPARATOR. A run of
+     * a single character is appended as is. When indexing, the last character of a longer run is
+     * appended as well, so a one-character search can find it.
+     */
+    private static void appendBigrams(StringBuilder out, String text, int start, int end,
+            boolean withLastChar) {
+        if (end - start == 1) {
+            out.append(text.charAt(start));
+            return;
+        }
+        for (int k = start; k < end - 1; k++) {
+            if (k > start) {
+                out.append(TOKEN_SEPARATOR);
+            }
+            out.append(text, k, k + 2);
+        }
+        if (withLastChar) {
+            out.append(TOKEN_SEPARATOR).append(text.charAt(end - 1));
+        }
+    }
+
+    /**
+     * Returns true if c belongs to a script that is written without spaces between words.
+     */
+    static boolean isCjk(char c) {
+        Character.UnicodeBlock block = Character.UnicodeBlock.of(c);
+        return block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS
+                || block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A
+                || block == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS
+                || block == Character.UnicodeBlock.HIRAGANA
+                || block == Character.UnicodeBlock.KATAKANA
+                || block == Character.UnicodeBlock.HANGUL_SYLLABLES;
+    }
+
+    /**
+     * Returns true if the simple tokenizer treats c as part of a word and c is not a symbol.
+     */
+    private static boolean isWordChar(char c) {
+        if (c < 0x80) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+        }
+        return Character.isLetterOrDigit(c);
+    }
+
+    private static boolean isSurrogate(char c) {
+        return Character.isHighSurrogate(c) || Character.isLowSurrogate(c);
+    }
+}
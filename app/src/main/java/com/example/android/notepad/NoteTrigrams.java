@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Splits note text into trigrams, the overlapping three-character pieces of the text, for the
+ * infix and typo-tolerant search. A search text of length m has m - 2 trigrams, and each typing
+ * error changes at most three of them, so a note can only contain the search text with k errors
+ * if it shares at least (number of search trigrams - 3k) trigrams with it. The trigram index
+ * finds those candidates, and {@link #substringDistance} checks them.
+ */
+final class NoteTrigrams {
+
+    // The number of characters of a note that are indexed, so huge notes stay cheap to update
+    static final int MAX_INDEXED_LENGTH = 32 * 1024;
+
+    // The number of characters of search text that are used
+    static final int MAX_QUERY_LENGTH = 64;
+
+    // This class cannot be instantiated
+    private NoteTrigrams() {
+    }
+
+    /**
+     * Returns the text that trigrams are taken from: the title and the body of a note, lower
+     * case, with every run of white space replaced by one space, cut to MAX_INDEXED_LENGTH.
+     */
+    static String normalizeNote(String title, String note) {
+        StringBuilder text = new StringBuilder();
+        appendNormalized(text, title, MAX_INDEXED_LENGTH);
+        if (text.length() > 0 && text.length() < MAX_INDEXED_LENGTH) {
+            text.append(' ');
+        }
+        appendNormalized(text, note, MAX_INDEXED_LENGTH);
+        return text.toString();
+    }
+
+    /**
+     * Returns search text normalized like {@link #normalizeNote}, cut to MAX_QUERY_LENGTH.
+     */
+    static String normalizeQuery(String searchText) {
+        StringBuilder text = new StringBuilder();
+        appendNormalized(text, searchText, MAX_QUERY_LENGTH);
+        return text.toString();
+    }
+
+    /**
+     * Returns the distinct trigrams of normalized text. Text shorter than three characters has
+     * none.
+     */
+    static Set<String> trigrams(String normalized) {
+        Set<String> trigrams = new HashSet<String>();
+        for (int i = 0; i + 3 <= normalized.length(); i++) {
+            trigrams.add(normalized.substring(i, i + 3));
+        }
+        return trigrams;
+    }
+
+    /**
+     * Returns the number of typing errors allowed by default for normalized search text: none
+     * for short words, where a single error already matches too much.
+     */
+    static int defaultDistance(String normalizedQuery) {
+        int length = normalizedQuery.length();
+        return length < 5 ? 0 : (length < 9 ? 1 : 2);
+    }
+
+    /**
+     * Returns the smallest number of inserted, deleted or replaced characters that turn pattern
+     * into some substring of text, stopping as soon as a substring within maxDistance is found.
+     *
+     * @return The distance, at most maxDistance if the pattern was found, greater otherwise.
+     */
+    static int substringDistance(String pattern, String text, int maxDistance) {
+        int m = pattern.length();
+        // column[i] is the distance between pattern[0, i) and the best substring ending here.
+        // A match may start anywhere in text, so the empty prefix always costs nothing.
+        int[] column = new int[m + 1];
+        for (int i = 0; i <= m; i++) {
+            column[i] = i;
+        }
+        int best = m;
+        if (best <= maxDistance) {
+            return best;
+        }
+        for (int j = 0; j < text.length(); j++) {
+            char c = text.charAt(j);
+            int diagonal = column[0];
+            for (int i = 1; i <= m; i++) {
+                int above = column[i];
+                int cost = pattern.charAt(i - 1) == c ? 0 : 1;
+                column[i] = Math.min(diagonal + cost, Math.min(above, column[i - 1]) + 1);
+                diagonal = above;
+            }
+            if (column[m] < best) {
+                best = column[m];
+                if (best <= maxDistance) {
+                    return best;
+                }
+            }
+        }
+        return best;
+    }
+
+    private static void appendNormalized(StringBuilder out, String text, int maxLength) {
+        if (text == null) {
+            return;
+        }
+        String lower = text.toLowerCase(Locale.ROOT);
+        for (int i = 0; i < lower.length() && out.length() < maxLength; i++) {
+            char c = lower.charAt(i);
+            if (Character.isWhitespace(c)) {
+                if (out.length() > 0 && out.charAt(out.length() - 1) != ' ') {
+                    out.append(' ');
+                }
+            } else {
+                out.append(c);
+            }
+        }
+        // Trailing white space would add trigrams that no search text produces
+        if (out.length() > 0 && out.charAt(out.length() - 1) == ' ') {
+            out.setLength(out.length() - 1);
+        }
+    }
+}
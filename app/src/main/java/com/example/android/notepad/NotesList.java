@@ -25,9 +25,12 @@ import android.content.ComponentName;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.text.Html;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.Menu;
@@ -36,6 +39,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.inputmethod.EditorInfo;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
@@ -48,6 +52,7 @@ import android.content.SharedPreferences;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 
@@ -67,15 +72,34 @@ public class NotesList extends ListActivity {
     private static final String TAG = "NotesList";
 
     /**
-     * The columns needed by the cursor adapter
+     * The columns needed by the cursor adapter. Set to package visibility so the query plan of
+     * the list can be tested.
      */
-    private static final String[] PROJECTION = new String[] {
+    static final String[] PROJECTION = new String[] {
             NotePad.Notes._ID, // 0
             NotePad.Notes.COLUMN_NAME_TITLE, // 1
             NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, // 2 最后修改时间
-            NotePad.Notes.COLUMN_NAME_CATEGORY // 3 分类
+            NotePad.Notes.COLUMN_NAME_CATEGORY, // 3 分类
+            NotePad.Notes.COLUMN_NAME_PREVIEW, // 4 正文预览（由provider维护，不需要读取正文）
+            NotePad.Notes.COLUMN_NAME_ATTACHMENT_COUNT // 5 附件数量（由触发器维护，不需要查询附件表）
     };
 
+    /**
+     * The columns needed by the cursor adapter while searching: the list columns plus the
+     * highlighted snippet, so the note body never has to be loaded
+     */
+    private static final String[] SEARCH_PROJECTION = new String[] {
+            NotePad.Notes._ID, // 0
+            NotePad.Notes.COLUMN_NAME_TITLE, // 1
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, // 2 最后修改时间
+            NotePad.Notes.COLUMN_NAME_CATEGORY, // 3 分类
+            NotePad.Notes.COLUMN_NAME_SNIPPET, // 4 搜索摘要
+            NotePad.Notes.COLUMN_NAME_ATTACHMENT_COUNT // 5 附件数量
+    };
+
+    /** The index of the id column */
+    private static final int COLUMN_INDEX_ID = 0;
+
     /** The index of the title column */
     private static final int COLUMN_INDEX_TITLE = 1;
 
@@ -83,6 +107,31 @@ public class NotesList extends ListActivity {
     private static final int COLUMN_INDEX_MODIFY_DATE = 2;
     //新增分类字段的索引
     private static final int COLUMN_INDEX_CATEGORY = 3;
+    //标题下方第二行的索引：列表中是正文预览，全文搜索结果中是搜索摘要
+    private static final int COLUMN_INDEX_SUMMARY = 4;
+    //附件数量字段的索引
+    private static final int COLUMN_INDEX_ATTACHMENT_COUNT = 5;
+
+    //分页加载：每页的笔记数，以及距离列表末尾多少行时加载下一页
+    private static final int PAGE_SIZE = 50;
+    private static final int LOAD_MORE_THRESHOLD = 10;
+
+    //已加载的行（不搜索时按页追加，搜索时是全部结果）和是否还有下一页。
+    //单条笔记变化时只查询这一行并更新模型，不重新查询整个列表
+    private final NoteListModel mModel = new NoteListModel();
+    private boolean mHasMorePages;
+    //当前列表的分类过滤条件，加载下一页时使用
+    private String mSelection;
+    private String[] mSelectionArgs;
+
+    //笔记数据变化时更新变化的行，无法确定哪些行变化时重新加载已加载的行
+    private ContentObserver mNotesObserver;
+
+    //容错搜索至少需要的字符数（一个三元组）
+    private static final int MIN_FUZZY_SEARCH_LENGTH = 3;
+
+    //搜索最多显示的结果数：常见的词不必把所有匹配的笔记读进内存
+    private static final int MAX_SEARCH_RESULTS = 200;
 
     //新增：搜索关键词 + 适配器全局引用
     private String mSearchKeyword = "";
@@ -137,11 +186,57 @@ public class NotesList extends ListActivity {
 
         // 关键修改4：设置无结果提示
         getListView().setEmptyView(findViewById(R.id.empty_view));
+
+        // 滚动到接近列表末尾时加载下一页
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                int lastVisibleItem = firstVisibleItem + visibleItemCount;
+                if (totalItemCount > 0 && lastVisibleItem >= totalItemCount - LOAD_MORE_THRESHOLD) {
+                    loadNextPage();
+                }
+            }
+        });
+
+        // 单条笔记变化时只更新这一行；其他变化（多行修改、批量操作、旧系统不提供URI）
+        // 按已加载的行数重新查询，保证分页之间不会漏掉或重复笔记
+        mNotesObserver = new ContentObserver(new Handler()) {
+            @Override
+            public void onChange(boolean selfChange) {
+                reloadNoteList();
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                if (uri == null || !applyNoteChange(uri)) {
+                    reloadNoteList();
+                }
+            }
+        };
+        getContentResolver().registerContentObserver(NotePad.Notes.CONTENT_URI, true,
+                mNotesObserver);
         
         // 新增：初始化分类过滤Spinner
         initCategoryFilter();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        getContentResolver().unregisterContentObserver(mNotesObserver);
+        if (mAdapter != null) {
+            Cursor cursor = mAdapter.swapCursor(null);
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     /**
      * 新增方法：初始化搜索框，监听输入事件
      */
@@ -248,7 +343,18 @@ public class NotesList extends ListActivity {
      * @param keyword 搜索关键词（空则显示全部）
      */
     private void updateNoteList(String keyword) {
-        // 构建搜索条件：模糊匹配标题 + 分类过滤
+        updateNoteList(keyword, PAGE_SIZE);
+    }
+
+    /**
+     * 更新笔记列表。不搜索时只加载第一页，滚动到列表末尾时再加载后面的页，
+     * 这样首屏显示的时间与笔记总数无关
+     * @param keyword 搜索关键词（空则显示全部）
+     * @param firstPageSize 第一页的笔记数（数据变化后重新加载时，保留已加载的行数）
+     */
+    private void updateNoteList(String keyword, int firstPageSize) {
+        // 构建查询条件：分类过滤；关键词通过全文检索URI匹配标题和内容
+        Uri uri = getIntent().getData();
         String selection = null;
         String[] selectionArgs = null;
         
@@ -257,32 +363,53 @@ public class NotesList extends ListActivity {
             selection = NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?";
             selectionArgs = new String[]{mSelectedCategory};
         }
-        
-        // 搜索关键词条件
-        if (!keyword.isEmpty()) {
-            if (selection != null) {
-                // 如果已有分类条件，添加AND连接
-                selection += " AND " + NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ?";
-                // 扩展参数数组
-                String[] newSelectionArgs = new String[selectionArgs.length + 1];
-                System.arraycopy(selectionArgs, 0, newSelectionArgs, 0, selectionArgs.length);
-                newSelectionArgs[selectionArgs.length] = "%" + keyword + "%";
-                selectionArgs = newSelectionArgs;
-            } else {
-                // 只有搜索条件
-                selection = NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ?";
-                selectionArgs = new String[]{"%" + keyword + "%"};
+
+        Cursor cursor;
+        if (keyword.isEmpty()) {
+            // 分页查询第一页：按(modified, _id)排序，后续页从上一页最后一行之后开始
+            cursor = getContentResolver().query(
+                    uri.buildUpon()
+                            .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT,
+                                    String.valueOf(firstPageSize))
+                            .build(),
+                    PROJECTION,
+                    selection,
+                    selectionArgs,
+                    NotePad.Notes.PAGE_SORT_ORDER
+            );
+            mHasMorePages = cursor != null && cursor.getCount() >= firstPageSize;
+        } else {
+            // 搜索关键词条件：使用FTS索引，避免 LIKE '%kw%' 全表扫描
+            // 搜索结果按相关度排序（不指定排序规则），并带上高亮摘要，不分页，只取相关度最高的结果
+            Uri searchUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, keyword)
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT,
+                            String.valueOf(MAX_SEARCH_RESULTS))
+                    .build();
+            cursor = getContentResolver().query(searchUri, SEARCH_PROJECTION, selection,
+                    selectionArgs, null);
+
+            // 全文检索没有结果时（拼写错误或只输入了词的一部分），改用三元组容错搜索
+            if (cursor != null && cursor.getCount() == 0
+                    && keyword.trim().length() >= MIN_FUZZY_SEARCH_LENGTH) {
+                cursor.close();
+                Uri fuzzyUri = NotePad.Notes.FUZZY_SEARCH_URI.buildUpon()
+                        .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, keyword)
+                        .build();
+                cursor = getContentResolver().query(fuzzyUri, PROJECTION, selection,
+                        selectionArgs, NotePad.Notes.DEFAULT_SORT_ORDER);
             }
+            mHasMorePages = false;
         }
 
-        // 执行查询（替换原固定查询）
-        Cursor cursor = managedQuery(
-                getIntent().getData(),            // 数据源URI
-                PROJECTION,                       // 查询字段
-                selection,                        // 筛选条件（搜索关键词 + 分类）
-                selectionArgs,                    // 筛选参数
-                NotePad.Notes.DEFAULT_SORT_ORDER  // 排序规则
-        );
+        // 用新的第一页替换已加载的行，适配器显示模型的快照
+        if (cursor != null) {
+            mModel.setRows(cursor);
+            cursor.close();
+            cursor = mModel.toCursor();
+        }
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
 
         // 初始化/更新适配器
         if (mAdapter == null) {
@@ -296,13 +423,15 @@ public class NotesList extends ListActivity {
                     R.id.note_modify_time
             };
 
-            // 自定义适配器格式化时间
+            // 自定义适配器格式化时间。
+            // 不让适配器自动重新查询：数据变化时由mNotesObserver重新加载已加载的页
             mAdapter = new SimpleCursorAdapter(
                     this,
                     R.layout.noteslist_item,
                     cursor,
                     dataColumns,
-                    viewIDs
+                    viewIDs,
+                    0
             ) {
                 @Override
                 public void bindView(View view, Context context, Cursor cursor) {
@@ -323,12 +452,131 @@ public class NotesList extends ListActivity {
                     } else {
                         categoryTv.setVisibility(View.GONE);
                     }
+
+                    // 显示搜索摘要（匹配的词已用<b>标记）或正文预览
+                    TextView snippetTv = (TextView) view.findViewById(R.id.note_snippet);
+                    String summary = cursor.getColumnCount() > COLUMN_INDEX_SUMMARY
+                            ? cursor.getString(COLUMN_INDEX_SUMMARY) : null;
+                    if (summary != null && !summary.isEmpty()) {
+                        boolean isSnippet = NotePad.Notes.COLUMN_NAME_SNIPPET.equals(
+                                cursor.getColumnName(COLUMN_INDEX_SUMMARY));
+                        snippetTv.setText(isSnippet ? Html.fromHtml(summary) : summary);
+                        snippetTv.setVisibility(View.VISIBLE);
+                    } else {
+                        snippetTv.setVisibility(View.GONE);
+                    }
+
+                    // 显示附件数量
+                    TextView attachmentsTv = (TextView) view.findViewById(R.id.note_attachments);
+                    int attachmentCount = cursor.getInt(COLUMN_INDEX_ATTACHMENT_COUNT);
+                    if (attachmentCount > 0) {
+                        attachmentsTv.setText(getString(R.string.attachment_badge,
+                                attachmentCount));
+                        attachmentsTv.setVisibility(View.VISIBLE);
+                    } else {
+                        attachmentsTv.setVisibility(View.GONE);
+                    }
                 }
             };
             setListAdapter(mAdapter);
         } else {
-            // 更新适配器数据（避免重复创建）
-            mAdapter.changeCursor(cursor);
+            // 更新适配器数据
+            swapAdapterCursor(cursor);
+        }
+    }
+
+    /**
+     * 加载下一页：从当前最后一行之后开始，用索引定位，不需要跳过前面的行
+     */
+    private void loadNextPage() {
+        String after = mModel.getPageToken();
+        if (!mHasMorePages || after == null) {
+            mHasMorePages = false;
+            return;
+        }
+        Cursor page = getContentResolver().query(
+                getIntent().getData().buildUpon()
+                        .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT,
+                                String.valueOf(PAGE_SIZE))
+                        .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER, after)
+                        .build(),
+                PROJECTION,
+                mSelection,
+                mSelectionArgs,
+                NotePad.Notes.PAGE_SORT_ORDER
+        );
+        if (page == null) {
+            mHasMorePages = false;
+            return;
+        }
+        mHasMorePages = page.getCount() >= PAGE_SIZE;
+        int count = page.getCount();
+        mModel.addRows(page);
+        page.close();
+        if (count > 0) {
+            swapAdapterCursor(mModel.toCursor());
+        }
+    }
+
+    /**
+     * 按已加载的行数重新加载列表
+     */
+    private void reloadNoteList() {
+        updateNoteList(mSearchKeyword, Math.max(PAGE_SIZE, mModel.size()));
+    }
+
+    /**
+     * 把单条笔记的变化应用到已加载的行：删除时直接移除，插入和修改时只查询这一行，
+     * 按排序放到对应位置（属于尚未加载的页时不加入）
+     * @param uri 变化通知的URI
+     * @return 已处理返回true；不是单条笔记的变化或正在搜索时返回false，需要重新加载
+     */
+    private boolean applyNoteChange(Uri uri) {
+        String operation = uri.getQueryParameter(NotePad.QUERY_PARAMETER_OPERATION);
+        List<String> segments = uri.getPathSegments();
+        // 搜索结果按相关度排序，内容变化会影响是否匹配和排名，仍然重新查询
+        if (operation == null || !mSearchKeyword.isEmpty() || segments.size() != 2
+                || !NotePad.Notes.CONTENT_URI.getPathSegments().get(0).equals(segments.get(0))) {
+            return false;
+        }
+        long noteId;
+        try {
+            noteId = Long.parseLong(segments.get(1));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        boolean changed;
+        if (NotePad.OPERATION_DELETE.equals(operation)) {
+            changed = mModel.remove(noteId);
+        } else {
+            // 带上当前的分类过滤条件，不再属于当前分类的笔记查不到，从列表移除
+            Cursor row = getContentResolver().query(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId),
+                    PROJECTION, mSelection, mSelectionArgs, null);
+            if (row == null) {
+                return false;
+            }
+            try {
+                changed = row.moveToFirst()
+                        ? mModel.update(row, !mHasMorePages) : mModel.remove(noteId);
+            } finally {
+                row.close();
+            }
+        }
+        if (changed) {
+            swapAdapterCursor(mModel.toCursor());
+        }
+        return true;
+    }
+
+    /**
+     * 让适配器显示新的游标，并关闭旧的游标
+     */
+    private void swapAdapterCursor(Cursor cursor) {
+        Cursor old = mAdapter.swapCursor(cursor);
+        if (old != null && old != cursor) {
+            old.close();
         }
     }
 
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Merges the change notifications of a content provider that arrive close together, so that a
+ * burst of writes makes observers requery once instead of once per row.
+ *
+ * A notification is held until no other one has arrived for the quiet period, but never longer
+ * than the maximum delay, so a steady stream of writes still reaches observers. Every URI that
+ * was notified is delivered after the last write that notified it, so observers always see the
+ * final state. When more URIs are pending than an observer would usefully tell apart, they are
+ * collapsed into their top-level URIs, such as the notes URI for many notes; notifying a URI also
+ * reaches the observers of every URI below it.
+ *
+ * This class is thread-safe. Notifications are delivered on the thread of the given looper.
+ */
+final class NotificationCoalescer {
+
+    // The number of distinct URIs held before they are collapsed into their top-level URIs
+    static final int MAX_PENDING_URIS = 16;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+    private final long mQuietPeriodMillis;
+    private final long mMaxDelayMillis;
+
+    // The URIs to notify at the next delivery, in the order they were last notified, so that
+    // the operations of a row that changed back and forth end with the latest one.
+    // All of the fields below are guarded by this.
+    private final Set<Uri> mPending = new LinkedHashSet<Uri>();
+
+    // The uptime of the first and of the last notification since the last delivery
+    private long mFirstPendingTime;
+    private long mLastPendingTime;
+
+    // True while a delivery is posted to the handler
+    private boolean mScheduled;
+
+    private final Runnable mDeliver = new Runnable() {
+        @Override
+        public void run() {
+            List<Uri> uris;
+            synchronized (NotificationCoalescer.this) {
+                long now = SystemClock.uptimeMillis();
+                long due = Math.min(mLastPendingTime + mQuietPeriodMillis,
+                        mFirstPendingTime + mMaxDelayMillis);
+                if (now < due) {
+                    // Another notification arrived in the meantime, so waits for it to settle
+                    mHandler.postAtTime(this, due);
+                    return;
+                }
+                mScheduled = false;
+                uris = takePending();
+            }
+            deliver(uris);
+        }
+    };
+
+    /**
+     * @param resolver The resolver that observers registered with.
+     * @param looper The looper of the thread that delivers the notifications.
+     * @param quietPeriodMillis How long no notification must arrive before delivering.
+     * @param maxDelayMillis The longest a notification is held.
+     */
+    NotificationCoalescer(ContentResolver resolver, Looper looper, long quietPeriodMillis,
+            long maxDelayMillis) {
+        mResolver = resolver;
+        mHandler = new Handler(looper);
+        mQuietPeriodMillis = quietPeriodMillis;
+        mMaxDelayMillis = Math.max(quietPeriodMillis, maxDelayMillis);
+    }
+
+    /**
+     * Schedules a notification of a change to uri.
+     */
+    void notifyChange(Uri uri) {
+        synchronized (this) {
+            long now = SystemClock.uptimeMillis();
+            if (mPending.isEmpty()) {
+                mFirstPendingTime = now;
+            }
+            mLastPendingTime = now;
+            // A URI notified again moves to the end
+            mPending.remove(uri);
+            mPending.add(uri);
+            if (mPending.size() > MAX_PENDING_URIS) {
+                collapsePending();
+            }
+            if (!mScheduled) {
+                mScheduled = true;
+                mHandler.postAtTime(mDeliver, now + mQuietPeriodMillis);
+            }
+        }
+    }
+
+    /**
+     * Delivers the pending notifications on the calling thread.
+     */
+    void flush() {
+        List<Uri> uris;
+        synchronized (this) {
+            if (mScheduled) {
+                mHandler.removeCallbacks(mDeliver);
+                mScheduled = false;
+            }
+            uris = takePending();
+        }
+        deliver(uris);
+    }
+
+    /**
+     * Returns the top-level URI of uri, which has only its first path segment.
+     */
+    static Uri getTopLevelUri(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() <= 1 && uri.getQuery() == null) {
+            return uri;
+        }
+        Uri.Builder builder = new Uri.Builder().scheme(uri.getScheme())
+                .authority(uri.getAuthority());
+        if (!segments.isEmpty()) {
+            builder.appendPath(segments.get(0));
+        }
+        return builder.build();
+    }
+
+    // Replaces the pending URIs by their top-level URIs. Called with the lock held.
+    private void collapsePending() {
+        List<Uri> uris = new ArrayList<Uri>(mPending);
+        mPending.clear();
+        for (Uri uri : uris) {
+            mPending.add(getTopLevelUri(uri));
+        }
+    }
+
+    // Returns and clears the pending URIs. Called with the lock held.
+    private List<Uri> takePending() {
+        List<Uri> uris = new ArrayList<Uri>(mPending);
+        mPending.clear();
+        return uris;
+    }
+
+    private void deliver(List<Uri> uris) {
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null);
+        }
+    }
+}
@@ -0,0 +1,594 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads the thumbnails of image and video attachments into ImageViews. Thumbnails are made on a
+ * background thread from the content of the attachment, by decoding images downsampled to about
+ * the thumbnail size and by taking a frame of videos, and are kept in two caches: in memory,
+ * bounded by the bytes of the bitmaps, and as JPEG files in the cache directory, bounded by their
+ * total size. Both drop the least recently used thumbnails first. Thumbnails are cached by a key
+ * that names the content, such as its digest, so a thumbnail never goes stale.
+ *
+ * Thumbnails are all made the same square size, so a thumbnail dropped from memory can be
+ * reused through {@link BitmapPool} to decode another from disk. A bitmap is only given to the
+ * pool once no view shows it: views that are no longer needed must be given back through
+ * {@link #release(ImageView)}. The caches are trimmed when the system is low on memory.
+ */
+final class ThumbnailLoader {
+
+    private static final String TAG = "ThumbnailLoader";
+
+    // The size thumbnails are made to fit, in dp
+    static final int THUMBNAIL_SIZE_DP = 64;
+
+    // The most bytes the thumbnail files may take
+    private static final long MAX_DISK_BYTES = 8 * 1024 * 1024;
+
+    // The share of the application's memory class the thumbnails in memory may take
+    private static final int MEMORY_CACHE_FRACTION = 16;
+
+    private static final String DISK_CACHE_DIRECTORY = "thumbnails";
+
+    private static final int JPEG_QUALITY = 85;
+
+    private static ThumbnailLoader sInstance;
+
+    private final Context mContext;
+    private final int mThumbnailSize;
+    private final File mDiskCacheDirectory;
+    private final long mMaxMemoryBytes;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final BitmapPool mPool;
+
+    /*
+     * The thumbnails in memory, least recently used first, and their total size. Guarded by
+     * mMemoryCache, as are the fields below.
+     */
+    private final LinkedHashMap<String, Bitmap> mMemoryCache =
+            new LinkedHashMap<String, Bitmap>(16, 0.75f, true);
+    private long mMemoryBytes;
+
+    // The number of views showing, or about to show, each thumbnail
+    private final IdentityHashMap<Bitmap, Integer> mShown = new IdentityHashMap<Bitmap, Integer>();
+
+    // Thumbnails dropped from memory while shown, given to the pool once they are not
+    private final IdentityHashMap<Bitmap, Boolean> mEvictedWhileShown =
+            new IdentityHashMap<Bitmap, Boolean>();
+
+    // What a view has been asked to show, kept as its tag
+    private static final class Request {
+        final String mKey;
+        Bitmap mShown;
+
+        Request(String key) {
+            mKey = key;
+        }
+    }
+
+    // Thumbnails are made one at a time, so scrolling does not compete with many decodes
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, TAG);
+                }
+            });
+
+    /**
+     * Returns the loader of the application, which keeps its caches across activities.
+     */
+    static synchronized ThumbnailLoader getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            ActivityManager activityManager =
+                    (ActivityManager) appContext.getSystemService(Context.ACTIVITY_SERVICE);
+            long maxMemoryBytes = activityManager.getMemoryClass() * 1024L * 1024L
+                    / MEMORY_CACHE_FRACTION;
+            int thumbnailSize = Math.round(THUMBNAIL_SIZE_DP
+                    * appContext.getResources().getDisplayMetrics().density);
+            sInstance = new ThumbnailLoader(appContext, thumbnailSize, maxMemoryBytes);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+                final ThumbnailLoader loader = sInstance;
+                appContext.registerComponentCallbacks(new ComponentCallbacks2() {
+                    @Override
+                    public void onTrimMemory(int level) {
+                        loader.trimMemory(level);
+                    }
+
+                    @Override
+                    public void onLowMemory() {
+                        loader.trimMemory(TRIM_MEMORY_COMPLETE);
+                    }
+
+                    @Override
+                    public void onConfigurationChanged(Configuration newConfig) {
+                    }
+                });
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Set to package visibility for testing purposes.
+     */
+    ThumbnailLoader(Context context, int thumbnailSize, long maxMemoryBytes) {
+        mContext = context;
+        mThumbnailSize = thumbnailSize;
+        mMaxMemoryBytes = maxMemoryBytes;
+        // Holds about as many thumbnails as memory, enough for every miss while scrolling
+        mPool = new BitmapPool(maxMemoryBytes);
+        mDiskCacheDirectory = new File(context.getCacheDir(), DISK_CACHE_DIRECTORY);
+    }
+
+    /**
+     * Returns true if attachments of the type have thumbnails.
+     */
+    static boolean hasThumbnail(String fileType) {
+        return fileType != null && (fileType.startsWith("image") || fileType.startsWith("video"));
+    }
+
+    /**
+     * Shows the thumbnail of an attachment in view, which is tagged with the request. A
+     * thumbnail in memory is shown at once; otherwise view keeps what it shows until the
+     * thumbnail has been made, and is left alone if it has been given another attachment by then.
+     *
+     * @param key Names the content of the attachment, and so its thumbnail.
+     * @param source The URI the content is read from.
+     */
+    void load(final String key, final Uri source, final String fileType,
+            final ImageView view) {
+        release(view);
+        final Request request = new Request(key);
+        view.setTag(request);
+        Bitmap bitmap = retainFromMemory(key);
+        if (bitmap != null) {
+            request.mShown = bitmap;
+            view.setImageBitmap(bitmap);
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap thumbnail = getThumbnail(key, source, fileType);
+                if (thumbnail == null) {
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (view.getTag() == request) {
+                            request.mShown = thumbnail;
+                            view.setImageBitmap(thumbnail);
+                        } else {
+                            release(thumbnail);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stops view from showing a thumbnail, so the bitmap can be reused once no view shows it.
+     * Must be called for every view given to {@link #load} that is no longer needed.
+     */
+    void release(ImageView view) {
+        Object tag = view.getTag();
+        if (!(tag instanceof Request)) {
+            return;
+        }
+        view.setTag(null);
+        Bitmap shown = ((Request) tag).mShown;
+        if (shown != null) {
+            view.setImageDrawable(null);
+            release(shown);
+        }
+    }
+
+    /**
+     * Returns the thumbnail of an attachment from the caches, making it if neither has it. The
+     * thumbnail is counted as shown until it is given to {@link #release(Bitmap)}. Called on the
+     * background thread. Set to package visibility for testing purposes.
+     *
+     * @return The thumbnail, or null if the content cannot be decoded.
+     */
+    Bitmap getThumbnail(String key, Uri source, String fileType) {
+        Bitmap bitmap = retainFromMemory(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        File cached = getDiskCacheFile(key);
+        if (cached.exists()) {
+            bitmap = decodeCached(cached.getPath());
+            if (bitmap != null) {
+                // Marks the file as recently used
+                cached.setLastModified(System.currentTimeMillis());
+                putInMemoryRetained(key, bitmap);
+                return bitmap;
+            }
+        }
+
+        Bitmap decoded;
+        if (fileType.startsWith("video")) {
+            decoded = getVideoFrame(source);
+        } else {
+            decoded = decodeSampled(source, mThumbnailSize);
+        }
+        if (decoded == null) {
+            return null;
+        }
+        mPool.recordAllocation(decoded);
+        bitmap = cropToThumbnail(decoded);
+        decoded.recycle();
+        writeToDisk(cached, bitmap);
+        putInMemoryRetained(key, bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Decodes a cached thumbnail into a bitmap of the pool if it has one of the right size.
+     */
+    private Bitmap decodeCached(String path) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Bitmap reused = mPool.get(options.outWidth, options.outHeight, Bitmap.Config.ARGB_8888);
+        options.inBitmap = reused;
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException e) {
+            // The decoder cannot decode this file into the bitmap
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(path, options);
+        }
+        if (bitmap != null && bitmap == reused) {
+            mPool.recordReuse();
+            return bitmap;
+        }
+        if (reused != null) {
+            mPool.put(reused);
+        }
+        if (bitmap != null) {
+            mPool.recordAllocation(bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Scales and crops a decoded image or video frame to fill a square thumbnail, in a bitmap
+     * of the pool if it has one.
+     */
+    private Bitmap cropToThumbnail(Bitmap source) {
+        Bitmap thumbnail = mPool.get(mThumbnailSize, mThumbnailSize, Bitmap.Config.ARGB_8888);
+        if (thumbnail != null) {
+            mPool.recordReuse();
+            thumbnail.eraseColor(0);
+        } else {
+            thumbnail = Bitmap.createBitmap(mThumbnailSize, mThumbnailSize,
+                    Bitmap.Config.ARGB_8888);
+            mPool.recordAllocation(thumbnail);
+        }
+        float scale = Math.max((float) mThumbnailSize / source.getWidth(),
+                (float) mThumbnailSize / source.getHeight());
+        Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        matrix.postTranslate((mThumbnailSize - source.getWidth() * scale) / 2,
+                (mThumbnailSize - source.getHeight() * scale) / 2);
+        new Canvas(thumbnail).drawBitmap(source, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        return thumbnail;
+    }
+
+    /**
+     * Decodes an image at the largest power-of-two reduction that is still at least size in
+     * both dimensions, so the decoder never holds the full image. The content is read twice,
+     * first for its size, since a pipe cannot be rewound.
+     */
+    private Bitmap decodeSampled(Uri source, int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeStream(source, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, size);
+        return decodeStream(source, options);
+    }
+
+    private Bitmap decodeStream(Uri source, BitmapFactory.Options options) {
+        try {
+            InputStream in = mContext.getContentResolver().openInputStream(source);
+            if (in == null) {
+                return null;
+            }
+            try {
+                return BitmapFactory.decodeStream(in, null, options);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read " + source, e);
+            return null;
+        }
+    }
+
+    // Returns a frame of a video, or null if it cannot be decoded.
+    private Bitmap getVideoFrame(Uri source) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(mContext, source);
+            return retriever.getFrameAtTime();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Cannot read a frame of " + source, e);
+            return null;
+        } finally {
+            retriever.release();
+        }
+    }
+
+    /**
+     * Returns the largest power of two that, dividing width and height, leaves both at least
+     * size. Set to package visibility for testing purposes.
+     */
+    static int calculateInSampleSize(int width, int height, int size) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= size && height / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Returns a thumbnail from memory, or null.
+     */
+    Bitmap getFromMemory(String key) {
+        synchronized (mMemoryCache) {
+            return mMemoryCache.get(key);
+        }
+    }
+
+    // Returns a thumbnail from memory, counted as shown, or null.
+    private Bitmap retainFromMemory(String key) {
+        synchronized (mMemoryCache) {
+            Bitmap bitmap = mMemoryCache.get(key);
+            if (bitmap != null) {
+                retain(bitmap);
+            }
+            return bitmap;
+        }
+    }
+
+    // Keeps a thumbnail in memory, counted as shown so it cannot be reused before it is.
+    private void putInMemoryRetained(String key, Bitmap bitmap) {
+        synchronized (mMemoryCache) {
+            retain(bitmap);
+            putInMemory(key, bitmap);
+        }
+    }
+
+    private void retain(Bitmap bitmap) {
+        Integer count = mShown.get(bitmap);
+        mShown.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Counts a thumbnail as no longer shown by one view. A thumbnail that is neither shown nor
+     * in memory goes to the pool. Set to package visibility for testing purposes.
+     */
+    void release(Bitmap bitmap) {
+        synchronized (mMemoryCache) {
+            Integer count = mShown.get(bitmap);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                mShown.put(bitmap, count - 1);
+                return;
+            }
+            mShown.remove(bitmap);
+            if (mEvictedWhileShown.remove(bitmap) != null) {
+                mPool.put(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Keeps a thumbnail in memory, then drops the least recently used thumbnails until the
+     * thumbnails fit in the memory budget.
+     */
+    void putInMemory(String key, Bitmap bitmap) {
+        synchronized (mMemoryCache) {
+            Bitmap previous = mMemoryCache.put(key, bitmap);
+            if (previous != null) {
+                mMemoryBytes -= BitmapPool.getByteCount(previous);
+                if (previous != bitmap) {
+                    evict(previous);
+                }
+            }
+            mMemoryBytes += BitmapPool.getByteCount(bitmap);
+            trimMemoryCache(mMaxMemoryBytes);
+        }
+    }
+
+    // Drops the least recently used thumbnails until the rest take at most maxBytes.
+    private void trimMemoryCache(long maxBytes) {
+        Iterator<Map.Entry<String, Bitmap>> eldest = mMemoryCache.entrySet().iterator();
+        while (mMemoryBytes > maxBytes && eldest.hasNext()) {
+            Bitmap bitmap = eldest.next().getValue();
+            eldest.remove();
+            mMemoryBytes -= BitmapPool.getByteCount(bitmap);
+            evict(bitmap);
+        }
+    }
+
+    // Gives a thumbnail dropped from memory to the pool, or to release() if it is shown.
+    private void evict(Bitmap bitmap) {
+        if (mShown.containsKey(bitmap)) {
+            mEvictedWhileShown.put(bitmap, Boolean.TRUE);
+        } else {
+            mPool.put(bitmap);
+        }
+    }
+
+    /**
+     * Frees memory as the system asks: the pool when memory is low, and the thumbnails not
+     * shown as well once the process is likely to be killed.
+     *
+     * @param level A level of {@link ComponentCallbacks2#onTrimMemory}.
+     */
+    void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            synchronized (mMemoryCache) {
+                trimMemoryCache(0);
+            }
+        }
+        mPool.trimToSize(0);
+    }
+
+    /**
+     * Returns the bytes the thumbnails in memory take.
+     */
+    long getMemoryBytes() {
+        synchronized (mMemoryCache) {
+            return mMemoryBytes;
+        }
+    }
+
+    /**
+     * Returns the pool thumbnails are decoded into, which counts the bitmaps decoding allocates.
+     */
+    BitmapPool getBitmapPool() {
+        return mPool;
+    }
+
+    // Returns the cache file of a thumbnail.
+    private File getDiskCacheFile(String key) {
+        try {
+            return new File(mDiskCacheDirectory, AttachmentStore.toHex(
+                    AttachmentStore.newDigest().digest(key.getBytes("UTF-8"))) + ".jpg");
+        } catch (UnsupportedEncodingException e) {
+            // Every Java platform has UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes a thumbnail to its cache file, then deletes the least recently used files until
+     * the files fit in {@link #MAX_DISK_BYTES}. A thumbnail that cannot be written is only
+     * kept in memory.
+     */
+    private void writeToDisk(File file, Bitmap bitmap) {
+        if (!mDiskCacheDirectory.isDirectory() && !mDiskCacheDirectory.mkdirs()) {
+            return;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write thumbnail " + file, e);
+            temp.delete();
+            return;
+        }
+        trimDiskCache();
+    }
+
+    private void trimDiskCache() {
+        File[] files = mDiskCacheDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File cached : files) {
+            total += cached.length();
+        }
+        if (total <= MAX_DISK_BYTES) {
+            return;
+        }
+        // Oldest use first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < files.length && total > MAX_DISK_BYTES; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
+    }
+}
@@ -58,6 +58,9 @@ public class TitleEditor extends Activity {
     // A URI object for the note whose title is being edited.
     private Uri mUri;
 
+    // Tracks whether the title differs from the saved one, so an unchanged title is not written.
+    private final ChangeTracker mTitleTracker = new ChangeTracker();
+
     /**
      * This method is called by Android when the Activity is first started. From the incoming
      * Intent, it determines what kind of editing is desired, and then does it.
@@ -92,6 +95,7 @@ public class TitleEditor extends Activity {
 
         // Gets the View ID for the EditText box
         mText = (EditText) this.findViewById(R.id.title);
+        mText.addTextChangedListener(mTitleTracker);
     }
 
     /**
@@ -114,6 +118,7 @@ public class TitleEditor extends Activity {
 
             // Displays the current title text in the EditText object.
             mText.setText(mCursor.getString(COLUMN_INDEX_TITLE));
+            mTitleTracker.setSaved(mText.getText());
         }
     }
 
@@ -126,7 +131,9 @@ public class TitleEditor extends Activity {
      * to it to complete their work. The act of going away should save everything and leave the
      * Activity in a state where Android can destroy it if necessary.
      *
-     * Updates the note with the text currently in the text box.
+     * Updates the note with the text currently in the text box, unless the title has not
+     * changed. Leaving the title as it was writes nothing, so the note keeps its modification
+     * date and observers are not notified.
      */
     @Override
     protected void onPause() {
@@ -135,7 +142,7 @@ public class TitleEditor extends Activity {
         // Verifies that the query made in onCreate() actually worked. If it worked, then the
         // Cursor object is not null. If it is *empty*, then mCursor.getCount() == 0.
 
-        if (mCursor != null) {
+        if (mCursor != null && mTitleTracker.hasChanged(mText.getText())) {
 
             // Creates a values map for updating the provider.
             ContentValues values = new ContentValues();
@@ -157,6 +164,7 @@ public class TitleEditor extends Activity {
                 null,    // No selection criteria is used, so no "where" columns are needed.
                 null     // No "where" columns are used, so no "where" values are needed.
             );
+            mTitleTracker.setSaved(mText.getText());
 
         }
     }